@@ -0,0 +1,294 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Stops, relaunches and health-checks the application configured under the
+ * restart.* keys of server_config.properties, replacing the
+ * "kill; sleep; nohup ...; sleep" shell strings used as auto commands.
+ *
+ * Keys (for a named target use restart.&lt;app&gt;.* instead of restart.*):
+ *   launch          command or script that starts the application
+ *   workingDir      directory to launch from (default: current directory)
+ *   outputFile      file receiving the application's output (default: discarded)
+ *   stopPattern     command line pattern of the processes to stop (default: java)
+ *   stopExclude     comma separated patterns never stopped (default: TerminalServer.jar)
+ *   stopTimeoutMs   grace period before stopped processes are killed forcibly
+ *   readyTimeoutMs  how long to wait for the readiness probes
+ *   ready.process   command line pattern that must be running once ready
+ *   ready.port      local TCP port that must accept connections once ready
+ *   ready.logFile   file to watch for ready.logLine (default: outputFile)
+ *   ready.logLine   text that must appear in ready.logFile once ready
+ *
+ * Without any ready.* key the application counts as ready once a process
+ * matching stopPattern runs that this launch started: the launched process
+ * itself or one in the session setsid gave it. An instance that survived the
+ * stop, or one started by someone else, does not count. Where the launch
+ * cannot be told apart (no setsid or /proc, e.g. on Windows) a ready.* key is
+ * required and the restart is refused before anything is stopped.
+ */
+class AppRestarter {
+    static final long DEFAULT_STOP_TIMEOUT_MS = 10000;
+    static final long DEFAULT_READY_TIMEOUT_MS = 60000;
+    private static final long PROBE_INTERVAL_MS = 100;
+    private static final int PORT_PROBE_TIMEOUT_MS = 200;
+    private static final String SETSID = "/usr/bin/setsid";
+
+    private final String app;
+    private final String launch;
+    private final File workingDir;
+    private final File outputFile;
+    private final String stopPattern;
+    private final List<String> stopExcludes = new ArrayList<String>();
+    private final long stopTimeoutMs;
+    private final long readyTimeoutMs;
+    private final String readyProcess;
+    private final int readyPort;
+    private final File readyLogFile;
+    private final String readyLogLine;
+
+    /**
+     * Timings and outcome of one restart, one line per phase.
+     */
+    static class RestartReport {
+        final List<String> lines = new ArrayList<String>();
+        boolean success;
+        long stopMs;
+        long launchMs;
+        long readyMs;
+        long totalMs;
+
+        void add(String line) {
+            lines.add(line);
+        }
+
+        String summary() {
+            return (success ? "RESTART OK" : "RESTART FAILED") + " stop=" + stopMs + "ms launch=" + launchMs
+                    + "ms ready=" + readyMs + "ms total=" + totalMs + "ms";
+        }
+    }
+
+    AppRestarter(Properties config, String app) {
+        this.app = app == null || app.isEmpty() ? null : app;
+        this.launch = get(config, "launch", "");
+        String dir = get(config, "workingDir", "");
+        this.workingDir = dir.isEmpty() ? null : new File(dir);
+        String output = get(config, "outputFile", "");
+        this.outputFile = output.isEmpty() ? null : new File(output);
+        this.stopPattern = get(config, "stopPattern", ProcessControl.DEFAULT_PATTERN);
+        for (String exclude : get(config, "stopExclude", ProcessControl.DEFAULT_EXCLUDE).split(",")) {
+            if (!exclude.trim().isEmpty()) {
+                stopExcludes.add(exclude.trim());
+            }
+        }
+        this.stopTimeoutMs = getLong(config, "stopTimeoutMs", DEFAULT_STOP_TIMEOUT_MS);
+        this.readyTimeoutMs = getLong(config, "readyTimeoutMs", DEFAULT_READY_TIMEOUT_MS);
+        this.readyProcess = get(config, "ready.process", "");
+        this.readyPort = (int) getLong(config, "ready.port", -1);
+        String logFile = get(config, "ready.logFile", "");
+        this.readyLogFile = logFile.isEmpty() ? outputFile : new File(logFile);
+        this.readyLogLine = get(config, "ready.logLine", "");
+    }
+
+    boolean isConfigured() {
+        return !launch.isEmpty();
+    }
+
+    String keyPrefix() {
+        return app == null ? "restart." : "restart." + app + ".";
+    }
+
+    RestartReport restart() {
+        RestartReport report = new RestartReport();
+        long start = System.currentTimeMillis();
+        if (!hasReadyProbe() && !canTrackLaunch()) {
+            report.add("No readiness probe: set " + keyPrefix() + "ready.process, ready.port or ready.logLine,"
+                    + " the launched process cannot be told apart from other '" + stopPattern + "' processes here");
+            return finish(report, start, false);
+        }
+        try {
+            // Stop the running instance and wait for it to exit
+            long phase = System.currentTimeMillis();
+            List<ProcessControl.KillResult> stopped = ProcessControl.killMatching(stopPattern, stopExcludes, stopTimeoutMs);
+            report.stopMs = System.currentTimeMillis() - phase;
+            for (ProcessControl.KillResult result : stopped) {
+                if (result.outcome == ProcessControl.Outcome.FAILED) {
+                    report.add("Could not stop " + result);
+                    return finish(report, start, false);
+                }
+            }
+            report.add("Stopped " + stopped.size() + " process(es) in " + report.stopMs + " ms");
+
+            // Launch detached, remembering where the log ended so only new lines count
+            long logOffset = readyLogFile != null && readyLogFile.exists() ? readyLogFile.length() : 0;
+            phase = System.currentTimeMillis();
+            Process process = launchDetached();
+            report.launchMs = System.currentTimeMillis() - phase;
+            long pid = ProcessControl.pidOf(process);
+            report.add("Launched " + launch + (pid > 0 ? " (pid " + pid + ")" : "") + " in " + report.launchMs + " ms");
+
+            // Probe until ready or timed out
+            phase = System.currentTimeMillis();
+            long deadline = phase + readyTimeoutMs;
+            String pending = pendingProbe(logOffset, pid);
+            while (pending != null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(PROBE_INTERVAL_MS);
+                pending = pendingProbe(logOffset, pid);
+            }
+            report.readyMs = System.currentTimeMillis() - phase;
+            if (pending != null) {
+                report.add("Not ready after " + report.readyMs + " ms: waiting for " + pending);
+                return finish(report, start, false);
+            }
+            report.add("Ready in " + report.readyMs + " ms");
+            return finish(report, start, true);
+        } catch (Exception e) {
+            report.add("Error: " + e.getMessage());
+            return finish(report, start, false);
+        }
+    }
+
+    private RestartReport finish(RestartReport report, long start, boolean success) {
+        report.success = success;
+        report.totalMs = System.currentTimeMillis() - start;
+        report.add(report.summary());
+        return report;
+    }
+
+    private Process launchDetached() throws IOException {
+        ProcessBuilder pb;
+        if (System.getProperty("os.name").toLowerCase().contains("win")) {
+            pb = new ProcessBuilder("cmd", "/c", "start", "\"\"", "/b", launch);
+        } else if (new File(SETSID).exists()) {
+            // New session so the application outlives this server and its terminal
+            pb = new ProcessBuilder(SETSID, "/bin/sh", "-c", "exec " + launch);
+        } else {
+            pb = new ProcessBuilder("/bin/sh", "-c", "exec " + launch);
+        }
+        if (workingDir != null) {
+            pb.directory(workingDir);
+        }
+        File sink = outputFile != null ? outputFile : nullFile();
+        pb.redirectInput(ProcessBuilder.Redirect.from(nullFile()));
+        pb.redirectOutput(ProcessBuilder.Redirect.appendTo(sink));
+        pb.redirectErrorStream(true);
+        return pb.start();
+    }
+
+    private boolean hasReadyProbe() {
+        return !readyProcess.isEmpty() || readyPort > 0 || (!readyLogLine.isEmpty() && readyLogFile != null);
+    }
+
+    /**
+     * True where a launched process gets its own session, so the processes it
+     * starts can be recognised by their session ID.
+     */
+    private static boolean canTrackLaunch() {
+        return !System.getProperty("os.name").toLowerCase().contains("win") && new File(SETSID).exists()
+                && ProcessControl.sessionOf(ProcessControl.currentPid()) >= 0;
+    }
+
+    /**
+     * True while a process matching stopPattern runs in the session of the
+     * launched process.
+     */
+    private boolean isLaunchRunning(long launchedPid) throws IOException {
+        if (launchedPid <= 0) {
+            return false;
+        }
+        for (ProcessControl.ProcessEntry entry : ProcessControl.find(stopPattern, stopExcludes)) {
+            if (entry.pid == launchedPid || ProcessControl.sessionOf(entry.pid) == launchedPid) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a description of the first readiness probe that does not pass
+     * yet, or null when the application is ready.
+     */
+    private String pendingProbe(long logOffset, long launchedPid) throws IOException {
+        boolean anyProbe = false;
+        if (!readyProcess.isEmpty()) {
+            anyProbe = true;
+            if (ProcessControl.find(readyProcess, stopExcludes).isEmpty()) {
+                return "process '" + readyProcess + "'";
+            }
+        }
+        if (readyPort > 0) {
+            anyProbe = true;
+            if (!isPortOpen(readyPort)) {
+                return "port " + readyPort;
+            }
+        }
+        if (!readyLogLine.isEmpty() && readyLogFile != null) {
+            anyProbe = true;
+            if (!logContains(readyLogFile, logOffset, readyLogLine)) {
+                return "'" + readyLogLine + "' in " + readyLogFile;
+            }
+        }
+        if (!anyProbe && !isLaunchRunning(launchedPid)) {
+            return "process '" + stopPattern + "' started by pid " + launchedPid;
+        }
+        return null;
+    }
+
+    private static boolean isPortOpen(int port) {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress("127.0.0.1", port), PORT_PROBE_TIMEOUT_MS);
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    private static boolean logContains(File file, long offset, String text) throws IOException {
+        if (!file.exists()) {
+            return false;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // A truncated/rotated log starts over from the beginning
+            raf.seek(raf.length() < offset ? 0 : offset);
+            String line;
+            while ((line = raf.readLine()) != null) {
+                if (line.contains(text)) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static File nullFile() {
+        return new File(System.getProperty("os.name").toLowerCase().contains("win") ? "NUL" : "/dev/null");
+    }
+
+    private String get(Properties config, String key, String defaultValue) {
+        String value = config.getProperty(keyPrefix() + key);
+        return value == null ? defaultValue : value.trim();
+    }
+
+    private long getLong(Properties config, String key, long defaultValue) {
+        try {
+            return Long.parseLong(get(config, key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,486 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Sends one command to many hosts in parallel, collects each host's full
+ * response, and renders a grouped summary plus a JSON report.
+ */
+class BroadcastRunner {
+    static final String RELAY_STATUS = "RELAY_STATUS";
+    private static final double SLOW_FACTOR = 3.0;
+    private static final long SLOW_MIN_MS = 500;
+
+    private final int parallelism;
+    private final long timeoutMs;
+    private long deadline = Long.MAX_VALUE;
+    private ResultListener listener;
+    private boolean reconnectOnce;
+
+    /**
+     * Full response of a single host
+     */
+    static class HostResult {
+        final HostConfig host;
+        final StringBuilder output = new StringBuilder();
+        final StringBuilder stderr = new StringBuilder();
+        BroadcastStatus status = BroadcastStatus.OK;
+        int exitCode = -1; // -1 when the server reported none
+        String error;
+        long latencyMs;
+        Map<String, String> trailer = new LinkedHashMap<String, String>();
+
+        HostResult(HostConfig host) {
+            this.host = host;
+        }
+
+        String normalizedOutput() {
+            return output.toString().trim();
+        }
+
+        /**
+         * Adds a response line, routing STDERR lines to stderr.
+         */
+        void append(String line) {
+            if (line.startsWith(ConnectionManager.STDERR_PREFIX)) {
+                stderr.append(line.substring(ConnectionManager.STDERR_PREFIX.length())).append("\n");
+            } else {
+                output.append(line).append("\n");
+            }
+        }
+
+        void readExitCode(Map<String, String> values) {
+            try {
+                if (values.containsKey("exit")) {
+                    exitCode = Integer.parseInt(values.get("exit"));
+                }
+            } catch (NumberFormatException e) {
+                exitCode = -1;
+            }
+        }
+
+        /**
+         * Output used to group hosts: stdout plus any stderr.
+         */
+        String groupKey() {
+            String errors = stderr.toString().trim();
+            return errors.isEmpty() ? normalizedOutput() : normalizedOutput() + "\n[stderr]\n" + errors;
+        }
+    }
+
+    /**
+     * Supplies the command to run on each host
+     */
+    interface CommandSource {
+        String commandFor(HostConfig host);
+    }
+
+    /**
+     * Notified from worker threads as soon as each host finishes
+     */
+    interface ResultListener {
+        void completed(HostResult result);
+    }
+
+    BroadcastRunner(int parallelism, long timeoutMs) {
+        this.parallelism = Math.max(1, parallelism);
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * Sets a time (in epoch milliseconds) by which every host must have
+     * answered, on top of the per-host timeout.
+     */
+    void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    void setResultListener(ResultListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Reconnects and runs the command again once when a connection fails
+     * before any of the response arrived, as a pooled connection does after
+     * a server restart.
+     */
+    void setReconnectOnce(boolean reconnectOnce) {
+        this.reconnectOnce = reconnectOnce;
+    }
+
+    /**
+     * Runs {@code command} on every connection and waits for all responses.
+     * Results are returned in the order of the given connections.
+     */
+    List<HostResult> run(final String command, List<ConnectionManager> targets) {
+        return run(new CommandSource() {
+            public String commandFor(HostConfig host) {
+                return command;
+            }
+        }, targets);
+    }
+
+    /**
+     * Like {@link #run(String, List)} but with a command chosen per host.
+     */
+    List<HostResult> run(final CommandSource commands, List<ConnectionManager> targets) {
+        List<HostResult> results = new ArrayList<HostResult>();
+        if (targets.isEmpty()) {
+            return results;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, targets.size()));
+        try {
+            List<Future<HostResult>> futures = new ArrayList<Future<HostResult>>();
+            for (final ConnectionManager connection : targets) {
+                futures.add(pool.submit(new Callable<HostResult>() {
+                    public HostResult call() {
+                        HostResult result = runOne(commands.commandFor(connection.getConfig()), connection);
+                        if (listener != null) {
+                            listener.completed(result);
+                        }
+                        return result;
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (Exception e) {
+                    HostResult failed = new HostResult(targets.get(i).getConfig());
+                    failed.status = BroadcastStatus.ERROR;
+                    failed.error = e.getMessage();
+                    results.add(failed);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return results;
+    }
+
+    HostResult runOne(String command, ConnectionManager connection) {
+        HostResult result = runOnce(command, connection);
+        if (reconnectOnce && result.status == BroadcastStatus.DISCONNECTED && result.output.length() == 0
+                && result.stderr.length() == 0 && result.trailer.isEmpty()) {
+            try {
+                connection.reconnect();
+            } catch (IOException e) {
+                result.error = result.error + "; reconnect failed: " + e.getMessage();
+                return result;
+            }
+            result = runOnce(command, connection);
+        }
+        return result;
+    }
+
+    private HostResult runOnce(String command, ConnectionManager connection) {
+        HostResult result = new HostResult(connection.getConfig());
+        long start = System.currentTimeMillis();
+        long deadline = Math.min(start + timeoutMs, this.deadline);
+        try {
+            connection.sendCommand(command);
+            while (true) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("No response within " + Math.max(0, deadline - start) + " ms");
+                }
+                connection.setReadTimeout((int) Math.min(Integer.MAX_VALUE, remaining));
+                String line = connection.readResponse();
+                if (ConnectionManager.isEndOfResponse(line)) {
+                    result.trailer = ConnectionManager.parseTrailer(line);
+                    result.readExitCode(result.trailer);
+                    if ("error".equals(result.trailer.get("status"))) {
+                        result.status = BroadcastStatus.ERROR;
+                    }
+                    break;
+                }
+                result.append(line);
+            }
+        } catch (SocketTimeoutException e) {
+            // The rest of the response is still on its way; a pooled connection must not hand it to the next command
+            connection.close();
+            result.status = BroadcastStatus.TIMEOUT;
+            result.error = e.getMessage();
+        } catch (IOException e) {
+            result.status = BroadcastStatus.DISCONNECTED;
+            result.error = e.getMessage();
+        } finally {
+            connection.setReadTimeout(ConnectionManager.TIMEOUT_MS);
+        }
+        result.latencyMs = System.currentTimeMillis() - start;
+        return result;
+    }
+
+    /**
+     * Prints hosts grouped by identical output; minority groups, failures and
+     * unusually slow hosts are flagged.
+     */
+    static void printSummary(String command, List<HostResult> results, PrintStream out) {
+        Map<String, List<HostResult>> groups = new LinkedHashMap<String, List<HostResult>>();
+        List<HostResult> failures = new ArrayList<HostResult>();
+        for (HostResult result : results) {
+            if (result.status == BroadcastStatus.OK) {
+                String key = result.groupKey();
+                List<HostResult> group = groups.get(key);
+                if (group == null) {
+                    group = new ArrayList<HostResult>();
+                    groups.put(key, group);
+                }
+                group.add(result);
+            } else {
+                failures.add(result);
+            }
+        }
+
+        List<List<HostResult>> ordered = new ArrayList<List<HostResult>>(groups.values());
+        Collections.sort(ordered, new Comparator<List<HostResult>>() {
+            public int compare(List<HostResult> a, List<HostResult> b) {
+                return b.size() - a.size();
+            }
+        });
+        int majority = ordered.isEmpty() ? 0 : ordered.get(0).size();
+        long median = medianLatency(results);
+
+        out.println("=== " + command + " ===");
+        for (List<HostResult> group : ordered) {
+            boolean outlier = ordered.size() > 1 && group.size() < majority;
+            out.println("--- " + group.size() + " host(s)" + (outlier ? " [OUTLIER]" : "") + ": " + hostList(group, median));
+            String output = group.get(0).groupKey();
+            out.println(output.isEmpty() ? "(no output)" : output);
+        }
+        for (HostResult failure : failures) {
+            String exit = failure.exitCode >= 0 ? " exit " + failure.exitCode : "";
+            out.println("--- [" + failure.status + "] " + failure.host.hostname + exit + " after " + failure.latencyMs
+                    + " ms: " + (failure.error != null ? failure.error : failure.groupKey()));
+        }
+
+        int ok = results.size() - failures.size();
+        out.println("=== " + ok + "/" + results.size() + " host(s) OK, " + failures.size() + " failed; latency min/median/max "
+                + minLatency(results) + "/" + median + "/" + maxLatency(results) + " ms ===");
+    }
+
+    /**
+     * Writes the results as JSON so scripts can consume them.
+     */
+    static void writeReport(File file, String command, List<HostResult> results) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+        try {
+            writer.write("{\"command\":" + json(command) + ",\"timestamp\":" + System.currentTimeMillis() + ",\"hosts\":[");
+            for (int i = 0; i < results.size(); i++) {
+                HostResult r = results.get(i);
+                if (i > 0) {
+                    writer.write(",");
+                }
+                writer.newLine();
+                writer.write("{\"host\":" + json(r.host.hostname) + ",\"port\":" + r.host.port
+                        + ",\"clientName\":" + json(r.host.clientName) + ",\"status\":" + json(r.status.name())
+                        + ",\"exitCode\":" + (r.exitCode >= 0 ? String.valueOf(r.exitCode) : "null")
+                        + ",\"latencyMs\":" + r.latencyMs + ",\"error\":" + json(r.error)
+                        + ",\"output\":" + json(r.output.toString()) + ",\"stderr\":" + json(r.stderr.toString()) + "}");
+            }
+            writer.newLine();
+            writer.write("]}");
+            writer.newLine();
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Formats the status line a relay sends after each downstream host.
+     */
+    static String relayStatusLine(HostResult result) {
+        String clientName = result.host.clientName;
+        return RELAY_STATUS + " status=" + result.status + " latencyMs=" + result.latencyMs
+                + (result.exitCode >= 0 ? " exit=" + result.exitCode : "")
+                + (clientName != null && !clientName.isEmpty() && clientName.indexOf(' ') < 0
+                        ? " client=" + clientName : "")
+                + (result.error != null ? " error=" + result.error : "");
+    }
+
+    /**
+     * The fields of a RELAY_STATUS line; the free-text error, if any, is
+     * always last and kept whole under "error".
+     */
+    static Map<String, String> relayStatusValues(String text) {
+        int error = text.indexOf(" error=");
+        Map<String, String> values = ConnectionManager.parseTrailer(ConnectionManager.END_OF_RESPONSE
+                + (error >= 0 ? text.substring(0, error) : text).substring(RELAY_STATUS.length()));
+        if (error >= 0) {
+            values.put("error", text.substring(error + 7));
+        }
+        return values;
+    }
+
+    /**
+     * The host behind a relay label, "host:port" or "host:port/subgroup".
+     */
+    static HostConfig relayLabelHost(String label, int defaultPort, String clientName) {
+        String address = label;
+        int slash = address.indexOf('/');
+        if (slash >= 0) {
+            address = address.substring(0, slash);
+        }
+        int colon = address.lastIndexOf(':');
+        if (colon > 0) {
+            try {
+                return new HostConfig(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)),
+                        clientName, "");
+            } catch (NumberFormatException e) {
+                // Not a port; the whole label is the host
+            }
+        }
+        return new HostConfig(address, defaultPort, clientName, "");
+    }
+
+    /**
+     * Splits the response of a "-relay" command into one result per
+     * downstream host, using the "[host:port] ..." and RELAY_STATUS lines.
+     * Each host gets the port and the client name the relay used for it.
+     */
+    static List<HostResult> expandRelayResult(HostResult relay) {
+        String[] lines = relay.output.toString().split("\n");
+        // The status line, which names the client, comes after a host's output
+        Map<String, String> clientNames = new HashMap<String, String>();
+        for (String line : lines) {
+            int close = line.indexOf("] " + RELAY_STATUS + " ");
+            if (line.startsWith("[") && close > 0) {
+                String clientName = relayStatusValues(line.substring(close + 2)).get("client");
+                if (clientName != null) {
+                    clientNames.put(line.substring(1, close), clientName);
+                }
+            }
+        }
+        Map<String, HostResult> hosts = new LinkedHashMap<String, HostResult>();
+        for (String line : lines) {
+            if (!line.startsWith("[")) {
+                continue;
+            }
+            int close = line.indexOf("] ");
+            if (close < 0) {
+                continue;
+            }
+            String name = line.substring(1, close);
+            String text = line.substring(close + 2);
+            if (text.startsWith(RelayForwarder.RELAY_SUMMARY + " ")) {
+                // A sub-relay's own summary, not a host
+                continue;
+            }
+            HostResult result = hosts.get(name);
+            if (result == null) {
+                String clientName = clientNames.get(name);
+                result = new HostResult(relayLabelHost(name, relay.host.port,
+                        clientName != null ? clientName : relay.host.clientName));
+                hosts.put(name, result);
+            }
+            if (text.startsWith(RELAY_STATUS + " ")) {
+                Map<String, String> values = relayStatusValues(text);
+                result.error = values.get("error");
+                try {
+                    result.status = BroadcastStatus.valueOf(values.get("status"));
+                    result.latencyMs = Long.parseLong(values.get("latencyMs"));
+                    result.readExitCode(values);
+                } catch (RuntimeException e) {
+                    result.status = BroadcastStatus.ERROR;
+                }
+            } else {
+                result.append(text);
+            }
+        }
+        return new ArrayList<HostResult>(hosts.values());
+    }
+
+    static boolean allSucceeded(List<HostResult> results) {
+        for (HostResult result : results) {
+            if (result.status != BroadcastStatus.OK) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String hostList(List<HostResult> group, long median) {
+        StringBuilder hosts = new StringBuilder();
+        for (HostResult result : group) {
+            if (hosts.length() > 0) {
+                hosts.append(", ");
+            }
+            hosts.append(result.host.hostname).append(" (").append(result.latencyMs).append(" ms");
+            if (result.latencyMs > SLOW_MIN_MS && result.latencyMs > median * SLOW_FACTOR) {
+                hosts.append(", SLOW");
+            }
+            hosts.append(")");
+        }
+        return hosts.toString();
+    }
+
+    private static long medianLatency(List<HostResult> results) {
+        if (results.isEmpty()) {
+            return 0;
+        }
+        List<Long> latencies = new ArrayList<Long>();
+        for (HostResult result : results) {
+            latencies.add(result.latencyMs);
+        }
+        Collections.sort(latencies);
+        return latencies.get(latencies.size() / 2);
+    }
+
+    private static long minLatency(List<HostResult> results) {
+        long min = results.isEmpty() ? 0 : Long.MAX_VALUE;
+        for (HostResult result : results) {
+            min = Math.min(min, result.latencyMs);
+        }
+        return min;
+    }
+
+    private static long maxLatency(List<HostResult> results) {
+        long max = 0;
+        for (HostResult result : results) {
+            max = Math.max(max, result.latencyMs);
+        }
+        return max;
+    }
+
+    static String json(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append("\"").toString();
+    }
+}
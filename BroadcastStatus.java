@@ -0,0 +1,9 @@
+/**
+ * Outcome of a broadcast command on one host
+ */
+enum BroadcastStatus {
+    OK,
+    ERROR,
+    TIMEOUT,
+    DISCONNECTED
+}
@@ -0,0 +1,277 @@
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rate limits and quotas of a TerminalServer's clients, so one client cannot
+ * flood the box, and the POS application running on it, with commands that
+ * each fork a process. Clients are told apart by IP address, as the client
+ * name is whatever the client sends.
+ *
+ * Commands are admitted by token buckets: one per client and one for the
+ * whole server, each refilled at a steady rate up to its burst. A client may
+ * run at most limits.client.maxProcesses commands, jobs and PTY sessions at
+ * once, and the output of its shell commands draws on a byte bucket; a
+ * command that finds it empty is stopped. Every limit is off when its rate
+ * or maximum is 0, which is the default.
+ */
+class ClientLimits {
+    static final int DEFAULT_COMMAND_BURST = 10;
+    static final int DEFAULT_GLOBAL_COMMAND_BURST = 50;
+    static final long DEFAULT_OUTPUT_BURST_BYTES = 10L * 1024 * 1024;
+    // Idle clients are forgotten once there are more than this many
+    private static final int MAX_IDLE_CLIENTS = 256;
+    private static final long IDLE_MS = 10 * 60 * 1000L;
+
+    /**
+     * A command or process refused by a limit; the message says which.
+     */
+    static class LimitExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        LimitExceededException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Tokens refilled continuously at ratePerSec, holding at most capacity.
+     */
+    static class TokenBucket {
+        private final double capacity;
+        private final double ratePerSec;
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+
+        TokenBucket(double capacity, double ratePerSec) {
+            this.capacity = capacity;
+            this.ratePerSec = ratePerSec;
+            this.tokens = capacity;
+        }
+
+        /**
+         * Takes n tokens if there are that many.
+         */
+        synchronized boolean tryTake(double n) {
+            refill();
+            if (tokens < n) {
+                return false;
+            }
+            tokens -= n;
+            return true;
+        }
+
+        /**
+         * Milliseconds until n tokens are available.
+         */
+        synchronized long waitMs(double n) {
+            refill();
+            return tokens >= n ? 0 : (long) Math.ceil((n - tokens) * 1000 / ratePerSec);
+        }
+
+        synchronized boolean isFull() {
+            refill();
+            return tokens >= capacity;
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - refilledAt) / 1e9 * ratePerSec);
+            refilledAt = now;
+        }
+    }
+
+    /**
+     * Limit settings, compared to notice config changes
+     */
+    private static class Settings {
+        final double commandsPerSec;
+        final int commandBurst;
+        final double globalCommandsPerSec;
+        final int globalCommandBurst;
+        final int maxProcesses;
+        final double outputBytesPerSec;
+        final long outputBurstBytes;
+
+        Settings(Properties config) {
+            commandsPerSec = Double.parseDouble(config.getProperty("limits.client.commandsPerSec", "0"));
+            commandBurst = Integer.parseInt(config.getProperty("limits.client.commandBurst",
+                    String.valueOf(DEFAULT_COMMAND_BURST)));
+            globalCommandsPerSec = Double.parseDouble(config.getProperty("limits.global.commandsPerSec", "0"));
+            globalCommandBurst = Integer.parseInt(config.getProperty("limits.global.commandBurst",
+                    String.valueOf(DEFAULT_GLOBAL_COMMAND_BURST)));
+            maxProcesses = Integer.parseInt(config.getProperty("limits.client.maxProcesses", "0"));
+            outputBytesPerSec = Double.parseDouble(config.getProperty("limits.client.outputBytesPerSec", "0"));
+            outputBurstBytes = Long.parseLong(config.getProperty("limits.client.outputBurstBytes",
+                    String.valueOf(DEFAULT_OUTPUT_BURST_BYTES)));
+        }
+
+        String signature() {
+            return commandsPerSec + "/" + commandBurst + "/" + globalCommandsPerSec + "/" + globalCommandBurst + "/"
+                    + maxProcesses + "/" + outputBytesPerSec + "/" + outputBurstBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "commands " + rate(commandsPerSec, commandBurst) + " per client, "
+                    + rate(globalCommandsPerSec, globalCommandBurst) + " in total; processes "
+                    + (maxProcesses > 0 ? "at most " + maxProcesses : "unlimited") + " per client; output "
+                    + (outputBytesPerSec > 0 ? (long) outputBytesPerSec + " B/s (burst " + outputBurstBytes + ")"
+                            : "unlimited") + " per client";
+        }
+
+        private static String rate(double perSec, int burst) {
+            return perSec > 0 ? perSec + "/s (burst " + burst + ")" : "unlimited";
+        }
+    }
+
+    /**
+     * Buckets and running processes of one client
+     */
+    private static class Usage {
+        TokenBucket commands;
+        TokenBucket output;
+        int processes;
+        volatile long lastUsed = System.currentTimeMillis();
+    }
+
+    private final Map<String, Usage> clients = new ConcurrentHashMap<String, Usage>();
+    private volatile Settings settings;
+    private volatile TokenBucket global;
+
+    ClientLimits(Properties config) {
+        configure(config);
+    }
+
+    /**
+     * Applies the limits of a freshly loaded config. Buckets start over
+     * when a setting changed; running processes are still counted.
+     */
+    synchronized boolean configure(Properties config) {
+        Settings updated = new Settings(config);
+        if (settings != null && settings.signature().equals(updated.signature())) {
+            return false;
+        }
+        settings = updated;
+        global = updated.globalCommandsPerSec > 0
+                ? new TokenBucket(Math.max(1, updated.globalCommandBurst), updated.globalCommandsPerSec) : null;
+        for (Usage usage : clients.values()) {
+            synchronized (usage) {
+                usage.commands = null;
+                usage.output = null;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return settings.toString();
+    }
+
+    /**
+     * Admits one command of a client, or throws when a rate limit refuses it.
+     */
+    void admitCommand(String client) throws LimitExceededException {
+        Settings current = settings;
+        Usage usage = usage(client);
+        synchronized (usage) {
+            if (current.commandsPerSec > 0) {
+                if (usage.commands == null) {
+                    usage.commands = new TokenBucket(Math.max(1, current.commandBurst), current.commandsPerSec);
+                }
+                if (!usage.commands.tryTake(1)) {
+                    throw new LimitExceededException("Rate limit of " + current.commandsPerSec
+                            + " commands/s exceeded; retry in " + usage.commands.waitMs(1) + " ms");
+                }
+            }
+            TokenBucket total = global;
+            if (total != null && !total.tryTake(1)) {
+                throw new LimitExceededException("Server is busy (" + current.globalCommandsPerSec
+                        + " commands/s in total); retry in " + total.waitMs(1) + " ms");
+            }
+        }
+    }
+
+    /**
+     * Counts a process the client starts, or throws when the client already
+     * runs as many as it may. Each successful call must be paired with
+     * {@link #releaseProcess}.
+     */
+    void acquireProcess(String client) throws LimitExceededException {
+        int max = settings.maxProcesses;
+        Usage usage = usage(client);
+        synchronized (usage) {
+            if (max > 0 && usage.processes >= max) {
+                throw new LimitExceededException("Process limit reached: " + client + " already runs " + max
+                        + " commands, jobs or PTY sessions");
+            }
+            usage.processes++;
+        }
+    }
+
+    void releaseProcess(String client) {
+        Usage usage = usage(client);
+        synchronized (usage) {
+            usage.processes = Math.max(0, usage.processes - 1);
+        }
+    }
+
+    /**
+     * Charges output bytes to a client; false when its output budget is
+     * used up. A single charge is capped at the burst so one long line can
+     * still pass once the budget is full.
+     */
+    boolean takeOutput(String client, long bytes) {
+        Settings current = settings;
+        if (current.outputBytesPerSec <= 0) {
+            return true;
+        }
+        Usage usage = usage(client);
+        TokenBucket bucket;
+        synchronized (usage) {
+            if (usage.output == null) {
+                usage.output = new TokenBucket(Math.max(1, current.outputBurstBytes), current.outputBytesPerSec);
+            }
+            bucket = usage.output;
+        }
+        return bucket.tryTake(Math.min(bytes, Math.max(1, current.outputBurstBytes)));
+    }
+
+    private Usage usage(String client) {
+        Usage usage = clients.get(client);
+        if (usage == null) {
+            if (clients.size() > MAX_IDLE_CLIENTS) {
+                prune();
+            }
+            Usage created = new Usage();
+            usage = clients.putIfAbsent(client, created);
+            if (usage == null) {
+                usage = created;
+            }
+        }
+        usage.lastUsed = System.currentTimeMillis();
+        return usage;
+    }
+
+    /**
+     * Forgets clients that have been idle for a while and whose buckets
+     * have refilled, so forgetting them loses nothing.
+     */
+    private void prune() {
+        long cutoff = System.currentTimeMillis() - IDLE_MS;
+        Iterator<Usage> iterator = clients.values().iterator();
+        while (iterator.hasNext()) {
+            Usage usage = iterator.next();
+            synchronized (usage) {
+                if (usage.lastUsed < cutoff && usage.processes == 0
+                        && (usage.commands == null || usage.commands.isFull())
+                        && (usage.output == null || usage.output.isFull())) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+}
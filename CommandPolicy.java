@@ -0,0 +1,450 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Which commands each client may run, from a policy file named by
+ * policy.file in server_config.properties. Each line of the file is a rule:
+ *
+ *   allow|deny  &lt;clients&gt;  &lt;pattern&gt;
+ *
+ where clients is * or a comma separated list of IP addresses and
+ * cn=&lt;name&gt; entries, the common name of a verified TLS client
+ * certificate. Client names are not accepted: a client sends whatever name
+ * it likes. The pattern is the command's whitespace separated words: a
+ * literal word, * for any one word or ** for any number of words, e.g.
+ *
+ *   allow  *                     df -h
+ *   allow  *                     -job list
+ *   allow  cn=ops,192.168.0.10   systemctl restart **
+ *   deny   *                     **
+ *
+ * The first rule in the file that matches both the client and the command
+ * decides; a command no rule matches gets policy.default (deny). Unless
+ * policy.shellOperators=allow, commands with ; &amp; | &lt; &gt; or a
+ * backtick are denied before the rules, as the shell would otherwise run
+ * more than the words that matched.
+ *
+ * All patterns are compiled into one trie over words, walked once per
+ * command, and the file is compiled again when it changes. Without
+ * policy.file every command is allowed, as before.
+ */
+class CommandPolicy {
+    static final long CHECK_INTERVAL_MS = 1000;
+    private static final String SHELL_OPERATORS = ";&|<>`";
+    private static final String ANY_WORD = "*";
+    private static final String ANY_WORDS = "**";
+    private static final String CERTIFICATE_NAME = "cn=";
+
+    /**
+     * The outcome of one check; reason is null for an allowed command.
+     */
+    static class Decision {
+        final boolean allowed;
+        final String reason;
+
+        Decision(boolean allowed, String reason) {
+            this.allowed = allowed;
+            this.reason = reason;
+        }
+    }
+
+    /**
+     * One line of the policy file
+     */
+    private static class Rule {
+        final int line;
+        final boolean allow;
+        // IPs and "cn=" certificate names; null for every client
+        final Set<String> clients;
+        final String text;
+        final AtomicLong hits = new AtomicLong();
+
+        Rule(int line, boolean allow, Set<String> clients, String text) {
+            this.line = line;
+            this.allow = allow;
+            this.clients = clients;
+            this.text = text;
+        }
+
+        boolean appliesTo(String clientIp, String certificateName) {
+            return clients == null || clients.contains(clientIp)
+                    || certificateName != null && clients.contains(CERTIFICATE_NAME + certificateName);
+        }
+    }
+
+    /**
+     * A trie node: the words read so far of one or more patterns.
+     */
+    private static class Node {
+        final Map<String, Node> words = new HashMap<String, Node>();
+        Node anyWord;
+        // The node after a **, which loops on every word
+        Node anyWords;
+        boolean loops;
+        // Rules whose pattern ends here, in file order
+        final List<Rule> rules = new ArrayList<Rule>();
+    }
+
+    /**
+     * A compiled policy file; replaced as a whole on reload.
+     */
+    private static class Compiled {
+        final Node root;
+        final List<Rule> rules;
+        final long modified;
+        final long length;
+
+        Compiled(Node root, List<Rule> rules, long modified, long length) {
+            this.root = root;
+            this.rules = rules;
+            this.modified = modified;
+            this.length = length;
+        }
+    }
+
+    private volatile File file;
+    private volatile boolean defaultAllow;
+    private volatile boolean shellOperators;
+    private volatile Compiled compiled;
+    // Set when the configured file could not be loaded at all; every command is denied
+    private volatile String broken;
+    private volatile long checkedAt;
+
+    private final AtomicLong allowed = new AtomicLong();
+    private final AtomicLong deniedByRule = new AtomicLong();
+    private final AtomicLong deniedByDefault = new AtomicLong();
+    private final AtomicLong deniedOperators = new AtomicLong();
+    private final AtomicLong checkNanos = new AtomicLong();
+    private final AtomicLong maxCheckNanos = new AtomicLong();
+    private final AtomicLong reloads = new AtomicLong();
+
+    /**
+     * Applies policy.* of a freshly loaded config and loads the policy file
+     * when it is a different one. Returns true when the policy changed;
+     * throws when the new file cannot be loaded, after which every command
+     * is denied until it can.
+     */
+    synchronized boolean configure(Properties config) throws IOException {
+        String path = config.getProperty("policy.file", "").trim();
+        String defaultDecision = config.getProperty("policy.default", "deny").trim();
+        String operators = config.getProperty("policy.shellOperators", "deny").trim();
+        if (!"allow".equals(defaultDecision) && !"deny".equals(defaultDecision)
+                || !"allow".equals(operators) && !"deny".equals(operators)) {
+            throw new IllegalArgumentException("policy.default and policy.shellOperators must be allow or deny");
+        }
+        boolean changed = defaultAllow != "allow".equals(defaultDecision)
+                || shellOperators != "allow".equals(operators);
+        defaultAllow = "allow".equals(defaultDecision);
+        shellOperators = "allow".equals(operators);
+        File updated = path.isEmpty() ? null : new File(path);
+        if (updated == null ? file == null : updated.equals(file)) {
+            return changed && file != null;
+        }
+        file = updated;
+        compiled = null;
+        broken = null;
+        if (updated != null) {
+            load();
+        }
+        return true;
+    }
+
+    /**
+     * Compiles the policy file again if it changed since it was last read,
+     * checking at most every CHECK_INTERVAL_MS. Returns true when it was
+     * reloaded; throws once per change when it could not be, and the
+     * previous rules stay in force.
+     */
+    boolean refresh() throws IOException {
+        if (file == null || System.currentTimeMillis() - checkedAt < CHECK_INTERVAL_MS) {
+            return false;
+        }
+        synchronized (this) {
+            if (file == null || System.currentTimeMillis() - checkedAt < CHECK_INTERVAL_MS) {
+                return false;
+            }
+            Compiled previous = compiled;
+            if (previous != null && previous.modified == file.lastModified() && previous.length == file.length()) {
+                checkedAt = System.currentTimeMillis();
+                return false;
+            }
+            String failure = broken;
+            try {
+                load();
+                return true;
+            } catch (IOException e) {
+                // A file that could never be loaded is only reported again when the error changes
+                if (previous == null && e.getMessage().equals(failure)) {
+                    return false;
+                }
+                throw e;
+            }
+        }
+    }
+
+    private void load() throws IOException {
+        File current = file;
+        checkedAt = System.currentTimeMillis();
+        Compiled previous = compiled;
+        try {
+            compiled = compile(current);
+            broken = null;
+            reloads.incrementAndGet();
+        } catch (IOException | IllegalArgumentException e) {
+            String message = "Command policy " + current + " could not be loaded: " + e.getMessage();
+            if (previous == null) {
+                broken = message;
+                throw new IOException(message);
+            }
+            // Do not read the same broken file again until it changes
+            compiled = new Compiled(previous.root, previous.rules, current.lastModified(), current.length());
+            throw new IOException(message + "; keeping the previous rules");
+        }
+    }
+
+    /**
+     * Whether a client may run a command line. certificateName is the
+     * common name of the client's verified TLS certificate, or null.
+     */
+    Decision check(String command, String clientIp, String certificateName) {
+        if (file == null) {
+            return new Decision(true, null);
+        }
+        long started = System.nanoTime();
+        Decision decision = decide(command.trim(), clientIp, certificateName);
+        long nanos = System.nanoTime() - started;
+        checkNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxCheckNanos.get()) && !maxCheckNanos.compareAndSet(max, nanos)) {
+            // Lost a race with another check; read the maximum again
+        }
+        return decision;
+    }
+
+    private Decision decide(String command, String clientIp, String certificateName) {
+        Compiled current = compiled;
+        if (current == null) {
+            deniedByDefault.incrementAndGet();
+            return new Decision(false, broken != null ? broken : "Command policy is not loaded yet");
+        }
+        if (!shellOperators) {
+            for (int i = 0; i < command.length(); i++) {
+                if (SHELL_OPERATORS.indexOf(command.charAt(i)) >= 0 || command.startsWith("$(", i)) {
+                    deniedOperators.incrementAndGet();
+                    return new Decision(false, "Denied by policy: shell operators are not allowed");
+                }
+            }
+        }
+        Rule rule = match(current.root, command, clientIp, certificateName);
+        if (rule == null) {
+            if (defaultAllow) {
+                allowed.incrementAndGet();
+                return new Decision(true, null);
+            }
+            deniedByDefault.incrementAndGet();
+            return new Decision(false, "Denied by policy: no rule allows this command");
+        }
+        rule.hits.incrementAndGet();
+        if (rule.allow) {
+            allowed.incrementAndGet();
+            return new Decision(true, null);
+        }
+        deniedByRule.incrementAndGet();
+        return new Decision(false, "Denied by policy (line " + rule.line + ")");
+    }
+
+    /**
+     * Walks the trie with every word of the command at once, keeping the set
+     * of nodes the words read so far can be at, and returns the first rule
+     * in file order that ends in one of the final nodes and applies to the
+     * client.
+     */
+    private static Rule match(Node root, String command, String clientIp, String certificateName) {
+        List<Node> active = new ArrayList<Node>();
+        enter(root, active);
+        int length = command.length();
+        int end = 0;
+        while (true) {
+            int start = end;
+            while (start < length && Character.isWhitespace(command.charAt(start))) {
+                start++;
+            }
+            if (start == length) {
+                break;
+            }
+            end = start;
+            while (end < length && !Character.isWhitespace(command.charAt(end))) {
+                end++;
+            }
+            String word = command.substring(start, end);
+            List<Node> next = new ArrayList<Node>(active.size() + 1);
+            for (Node node : active) {
+                Node literal = node.words.get(word);
+                if (literal != null) {
+                    enter(literal, next);
+                }
+                if (node.anyWord != null) {
+                    enter(node.anyWord, next);
+                }
+                if (node.loops) {
+                    enter(node, next);
+                }
+            }
+            if (next.isEmpty()) {
+                return null;
+            }
+            active = next;
+        }
+        Rule first = null;
+        for (Node node : active) {
+            for (Rule rule : node.rules) {
+                if (first != null && rule.line >= first.line) {
+                    break;
+                }
+                if (rule.appliesTo(clientIp, certificateName)) {
+                    first = rule;
+                    break;
+                }
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Adds a node, and the ** nodes reachable from it without reading a
+     * word, unless already there.
+     */
+    private static void enter(Node node, List<Node> active) {
+        while (node != null && !active.contains(node)) {
+            active.add(node);
+            node = node.anyWords;
+        }
+    }
+
+    private static Compiled compile(File file) throws IOException {
+        long modified = file.lastModified();
+        long length = file.length();
+        Node root = new Node();
+        List<Rule> rules = new ArrayList<Rule>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String text;
+            int line = 0;
+            while ((text = reader.readLine()) != null) {
+                line++;
+                text = text.trim();
+                if (text.isEmpty() || text.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = text.split("\\s+", 3);
+                if (parts.length < 3 || !"allow".equals(parts[0]) && !"deny".equals(parts[0])) {
+                    throw new IllegalArgumentException("line " + line + ": expected allow|deny <clients> <pattern>");
+                }
+                Set<String> clients = ANY_WORD.equals(parts[1]) ? null
+                        : new HashSet<String>(Arrays.asList(parts[1].split(",")));
+                if (clients != null) {
+                    for (String client : clients) {
+                        if (!isClient(client)) {
+                            throw new IllegalArgumentException("line " + line + ": " + client
+                                    + " is not an IP address or cn=<certificate name>");
+                        }
+                    }
+                }
+                Rule rule = new Rule(line, "allow".equals(parts[0]), clients, text);
+                add(root, parts[2].split("\\s+"), rule);
+                rules.add(rule);
+            }
+        }
+        return new Compiled(root, Collections.unmodifiableList(rules), modified, length);
+    }
+
+    /**
+     * An IP address literal or a certificate name; never a host or client
+     * name, which would need trusting DNS or the client.
+     */
+    private static boolean isClient(String entry) {
+        return entry.startsWith(CERTIFICATE_NAME) && entry.length() > CERTIFICATE_NAME.length()
+                || entry.matches("\\d{1,3}(\\.\\d{1,3}){3}") || entry.contains(":") && entry.matches("[0-9a-fA-F:.]+(%\\w+)?");
+    }
+
+    private static void add(Node root, String[] pattern, Rule rule) {
+        Node node = root;
+        for (String word : pattern) {
+            if (ANY_WORDS.equals(word)) {
+                if (node.anyWords == null) {
+                    node.anyWords = new Node();
+                    node.anyWords.loops = true;
+                }
+                node = node.anyWords;
+            } else if (ANY_WORD.equals(word)) {
+                if (node.anyWord == null) {
+                    node.anyWord = new Node();
+                }
+                node = node.anyWord;
+            } else {
+                Node next = node.words.get(word);
+                if (next == null) {
+                    next = new Node();
+                    node.words.put(word, next);
+                }
+                node = next;
+            }
+        }
+        // Rules are added in file order, so each list stays sorted by line
+        node.rules.add(rule);
+    }
+
+    /**
+     * Decision counts, check times and the hits of each rule, for
+     * "-policy".
+     */
+    List<String> report() {
+        List<String> lines = new ArrayList<String>();
+        if (file == null) {
+            lines.add("No command policy (policy.file), every command is allowed");
+            return lines;
+        }
+        lines.add("Policy " + this);
+        long denied = deniedByRule.get() + deniedByDefault.get() + deniedOperators.get();
+        long checks = allowed.get() + denied;
+        lines.add(checks + " checks: " + allowed.get() + " allowed, " + denied + " denied (" + deniedByRule.get()
+                + " by a rule, " + deniedByDefault.get() + " by default, " + deniedOperators.get()
+                + " for shell operators)");
+        if (checks > 0) {
+            lines.add(String.format("Check time: %.1f us average, %.1f us max",
+                    checkNanos.get() / 1000.0 / checks, maxCheckNanos.get() / 1000.0));
+        }
+        Compiled current = compiled;
+        if (current != null) {
+            for (Rule rule : current.rules) {
+                lines.add(String.format("%8d  line %-4d %s", rule.hits.get(), rule.line, rule.text));
+            }
+        }
+        return lines;
+    }
+
+    @Override
+    public String toString() {
+        if (file == null) {
+            return "off, every command is allowed";
+        }
+        Compiled current = compiled;
+        return file + " (" + (current != null ? current.rules.size() + " rules" : "not loaded") + ", default "
+                + (defaultAllow ? "allow" : "deny") + ", shell operators " + (shellOperators ? "allowed" : "denied")
+                + ", " + reloads.get() + " loads)";
+    }
+}
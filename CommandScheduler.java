@@ -0,0 +1,500 @@
+import java.io.IOException;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Commands a TerminalServer runs on its own, on a cron schedule or at a
+ * fixed interval, so periodic maintenance needs no client connecting from
+ * elsewhere. Schedules are server_config.properties keys:
+ *
+ *   schedule.&lt;name&gt;.command    the shell command
+ *   schedule.&lt;name&gt;.cron       minute hour day-of-month month day-of-week,
+ *                              or @hourly, @daily, @weekly, @monthly
+ *   schedule.&lt;name&gt;.everySec   instead of cron, a fixed interval
+ *   schedule.&lt;name&gt;.jitterSec  a random delay picked once per schedule, so
+ *                              a fleet with the same config does not run it
+ *                              at the same moment (schedule.jitterSec, 30)
+ *   schedule.&lt;name&gt;.class      resource class of the runs
+ *
+ * Due times sit in a hashed timing wheel of one second ticks, so a tick
+ * only looks at the schedules that hash to it. Each run is a background job
+ * with its output captured as usual; a run that is due while the previous
+ * one is still going is skipped. The last schedule.history runs of each
+ * schedule are kept for "-schedule".
+ */
+class CommandScheduler {
+    static final String PREFIX = "schedule.";
+    static final int DEFAULT_JITTER_SEC = 30;
+    static final int DEFAULT_HISTORY = 20;
+    private static final int WHEEL_SLOTS = 512;
+    private static final long TICK_MS = 1000;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    /**
+     * What the scheduler needs from the server.
+     */
+    interface Launcher {
+        /**
+         * Starts a run as a background job.
+         */
+        JobManager.Job launch(String name, String command, String resourceClass) throws IOException;
+
+        void log(String level, String message);
+    }
+
+    /**
+     * A five field cron expression, matched in the server's time zone.
+     */
+    static class CronExpression {
+        private final String text;
+        private final BitSet minutes;
+        private final BitSet hours;
+        private final BitSet days;
+        private final BitSet months;
+        private final BitSet weekdays;
+        private final boolean anyDay;
+        private final boolean anyWeekday;
+
+        CronExpression(String expression) {
+            text = expression.trim();
+            String fields = "@hourly".equals(text) ? "0 * * * *" : "@daily".equals(text) ? "0 0 * * *"
+                    : "@weekly".equals(text) ? "0 0 * * 0" : "@monthly".equals(text) ? "0 0 1 * *" : text;
+            String[] parts = fields.split("\\s+");
+            if (parts.length != 5) {
+                throw new IllegalArgumentException("Invalid cron " + text + " (minute hour day month weekday)");
+            }
+            minutes = parse(parts[0], 0, 59);
+            hours = parse(parts[1], 0, 23);
+            days = parse(parts[2], 1, 31);
+            months = parse(parts[3], 1, 12);
+            weekdays = parse(parts[4], 0, 7);
+            // 0 and 7 are both Sunday
+            if (weekdays.get(7)) {
+                weekdays.set(0);
+            }
+            anyDay = "*".equals(parts[2]);
+            anyWeekday = "*".equals(parts[4]);
+        }
+
+        private BitSet parse(String field, int min, int max) {
+            BitSet values = new BitSet(max + 1);
+            for (String item : field.split(",")) {
+                String[] stepped = item.split("/", 2);
+                int step = stepped.length == 2 ? number(stepped[1], 1, max) : 1;
+                int from;
+                int to;
+                if ("*".equals(stepped[0])) {
+                    from = min;
+                    to = max;
+                } else if (stepped[0].contains("-")) {
+                    String[] range = stepped[0].split("-", 2);
+                    from = number(range[0], min, max);
+                    to = number(range[1], from, max);
+                } else {
+                    from = number(stepped[0], min, max);
+                    to = stepped.length == 2 ? max : from;
+                }
+                for (int value = from; value <= to; value += step) {
+                    values.set(value);
+                }
+            }
+            return values;
+        }
+
+        private int number(String value, int min, int max) {
+            try {
+                int number = Integer.parseInt(value);
+                if (number >= min && number <= max) {
+                    return number;
+                }
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+            throw new IllegalArgumentException("Invalid cron " + text + ": " + value + " is not in " + min + "-" + max);
+        }
+
+        /**
+         * The first matching minute after the given time, in epoch ms.
+         */
+        long next(long afterMs, ZoneId zone) {
+            ZonedDateTime time = Instant.ofEpochMilli(afterMs).atZone(zone).truncatedTo(ChronoUnit.MINUTES)
+                    .plusMinutes(1);
+            ZonedDateTime limit = time.plusYears(5);
+            while (time.isBefore(limit)) {
+                if (!months.get(time.getMonthValue())) {
+                    time = time.withDayOfMonth(1).truncatedTo(ChronoUnit.DAYS).plusMonths(1);
+                } else if (!dayMatches(time)) {
+                    time = time.truncatedTo(ChronoUnit.DAYS).plusDays(1);
+                } else if (!hours.get(time.getHour())) {
+                    time = time.truncatedTo(ChronoUnit.HOURS).plusHours(1);
+                } else if (!minutes.get(time.getMinute())) {
+                    time = time.plusMinutes(1);
+                } else {
+                    return time.toInstant().toEpochMilli();
+                }
+            }
+            throw new IllegalArgumentException("Cron " + text + " never matches");
+        }
+
+        /**
+         * Like cron: with both fields restricted, either may match.
+         */
+        private boolean dayMatches(ZonedDateTime time) {
+            boolean day = days.get(time.getDayOfMonth());
+            boolean weekday = weekdays.get(time.getDayOfWeek() == DayOfWeek.SUNDAY ? 0 : time.getDayOfWeek().getValue());
+            if (anyDay || anyWeekday) {
+                return anyDay ? weekday : day;
+            }
+            return day || weekday;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    /**
+     * One schedule as configured
+     */
+    static class Schedule {
+        final String name;
+        final String command;
+        final CronExpression cron;
+        final long everyMs;
+        final long jitterMs;
+        final String resourceClass;
+        // The fixed part of the jitter, picked when the schedule is loaded
+        long offsetMs;
+        long nextAt;
+
+        Schedule(Properties config, String name) {
+            String prefix = PREFIX + name + ".";
+            this.name = name;
+            command = config.getProperty(prefix + "command", "").trim();
+            String cronText = config.getProperty(prefix + "cron", "").trim();
+            String every = config.getProperty(prefix + "everySec", "").trim();
+            if (command.isEmpty() || cronText.isEmpty() == every.isEmpty()) {
+                throw new IllegalArgumentException("Schedule " + name + " needs a command and either cron or everySec");
+            }
+            cron = cronText.isEmpty() ? null : new CronExpression(cronText);
+            if (cron != null) {
+                // Fails for expressions like "0 0 31 2 *"
+                cron.next(System.currentTimeMillis(), ZoneId.systemDefault());
+            }
+            everyMs = every.isEmpty() ? 0 : Long.parseLong(every) * 1000;
+            if (cron == null && everyMs < TICK_MS) {
+                throw new IllegalArgumentException("Schedule " + name + " needs an everySec of at least 1");
+            }
+            long jitterSec = Long.parseLong(config.getProperty(prefix + "jitterSec",
+                    config.getProperty(PREFIX + "jitterSec", String.valueOf(DEFAULT_JITTER_SEC))).trim());
+            // Never so much that runs of an interval schedule could swap places
+            jitterMs = Math.min(Math.max(0, jitterSec) * 1000, cron == null ? everyMs - TICK_MS : Long.MAX_VALUE);
+            String cls = config.getProperty(prefix + "class", "").trim();
+            resourceClass = cls.isEmpty() ? null : cls;
+        }
+
+        String signature() {
+            return command + "|" + cron + "|" + everyMs + "|" + jitterMs + "|" + resourceClass;
+        }
+
+        /**
+         * The first run after the given time, jitter included. Interval
+         * runs fall on multiples of the interval since the epoch, so they
+         * keep their times across restarts.
+         */
+        long next(long afterMs, ZoneId zone) {
+            long base = afterMs - offsetMs;
+            long next = cron != null ? cron.next(base, zone) : (Math.floorDiv(base, everyMs) + 1) * everyMs;
+            return next + offsetMs;
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + (cron != null ? "cron \"" + cron + "\"" : "every " + everyMs / 1000 + "s")
+                    + (offsetMs > 0 ? " +" + offsetMs / 1000 + "s jitter" : "")
+                    + (resourceClass != null ? " class " + resourceClass : "") + ": " + command;
+        }
+    }
+
+    /**
+     * One run of a schedule; its outcome is read from the job.
+     */
+    static class Run {
+        final long plannedAt;
+        final long startedAt = System.currentTimeMillis();
+        final boolean manual;
+        final JobManager.Job job;
+        final String failure;
+
+        Run(long plannedAt, boolean manual, JobManager.Job job, String failure) {
+            this.plannedAt = plannedAt;
+            this.manual = manual;
+            this.job = job;
+            this.failure = failure;
+        }
+
+        boolean isRunning() {
+            return job != null && job.isRunning();
+        }
+
+        @Override
+        public String toString() {
+            String when = format(startedAt) + (manual ? " (run now)" : "");
+            if (job == null) {
+                return when + " " + failure;
+            }
+            long elapsed = (job.endedAt > 0 ? job.endedAt : System.currentTimeMillis()) - job.startedAt;
+            String result = job.isRunning() ? "RUNNING" : job.state + " exit=" + job.exitCode;
+            return when + " " + result + " " + elapsed + "ms job=" + job.id;
+        }
+    }
+
+    /**
+     * Due times in slots of one tick each; a schedule due in more than one
+     * turn of the wheel waits in its slot until its tick comes around.
+     */
+    private static class TimingWheel {
+        private final List<List<Schedule>> slots = new ArrayList<List<Schedule>>();
+        private long tick;
+
+        TimingWheel(long nowMs) {
+            for (int i = 0; i < WHEEL_SLOTS; i++) {
+                slots.add(new ArrayList<Schedule>());
+            }
+            tick = nowMs / TICK_MS;
+        }
+
+        void add(Schedule schedule) {
+            // Rounded up, so a run never starts before its time
+            long due = Math.max(tick, (schedule.nextAt + TICK_MS - 1) / TICK_MS);
+            slots.get((int) (due % WHEEL_SLOTS)).add(schedule);
+        }
+
+        void remove(Schedule schedule) {
+            for (List<Schedule> slot : slots) {
+                slot.remove(schedule);
+            }
+        }
+
+        /**
+         * Moves the wheel up to the given time and returns what came due.
+         */
+        List<Schedule> advance(long nowMs) {
+            List<Schedule> due = new ArrayList<Schedule>();
+            long now = nowMs / TICK_MS;
+            // After a long stall, one turn visits every slot
+            long from = Math.max(tick, now - WHEEL_SLOTS + 1);
+            for (long t = from; t <= now; t++) {
+                Iterator<Schedule> slot = slots.get((int) (t % WHEEL_SLOTS)).iterator();
+                while (slot.hasNext()) {
+                    Schedule schedule = slot.next();
+                    if (schedule.nextAt <= nowMs) {
+                        slot.remove();
+                        due.add(schedule);
+                    }
+                }
+            }
+            tick = Math.max(tick, now + 1);
+            return due;
+        }
+    }
+
+    private final Launcher launcher;
+    private final ZoneId zone = ZoneId.systemDefault();
+    private final Random random = new Random();
+    private final Map<String, Schedule> schedules = new TreeMap<String, Schedule>();
+    private final Map<String, Deque<Run>> history = new TreeMap<String, Deque<Run>>();
+    // The last error of each invalid schedule, so it is logged once, not at every reload
+    private final Map<String, String> invalid = new TreeMap<String, String>();
+    private final TimingWheel wheel = new TimingWheel(System.currentTimeMillis());
+    private int retain = DEFAULT_HISTORY;
+    private Thread thread;
+
+    CommandScheduler(Launcher launcher) {
+        this.launcher = launcher;
+    }
+
+    /**
+     * Applies the schedule.* keys of a freshly loaded config: new and
+     * changed schedules are timed afresh, removed ones dropped. Invalid
+     * schedules are logged and skipped. Returns true when anything changed.
+     */
+    synchronized boolean configure(Properties config) {
+        retain = Math.max(1, Integer.parseInt(config.getProperty(PREFIX + "history",
+                String.valueOf(DEFAULT_HISTORY)).trim()));
+        Map<String, Schedule> loaded = new TreeMap<String, Schedule>();
+        Set<String> configured = new HashSet<String>();
+        for (String key : config.stringPropertyNames()) {
+            if (key.startsWith(PREFIX) && key.endsWith(".command")) {
+                String name = key.substring(PREFIX.length(), key.length() - ".command".length());
+                configured.add(name);
+                try {
+                    loaded.put(name, new Schedule(config, name));
+                    invalid.remove(name);
+                } catch (IllegalArgumentException e) {
+                    Schedule current = schedules.get(name);
+                    if (!e.getMessage().equals(invalid.put(name, e.getMessage()))) {
+                        launcher.log("ERROR", "Invalid schedule " + name + ": " + e.getMessage()
+                                + (current != null ? "; keeping the previous one" : ""));
+                    }
+                    if (current != null) {
+                        loaded.put(name, current);
+                    }
+                }
+            }
+        }
+        boolean changed = false;
+        for (Iterator<Schedule> it = schedules.values().iterator(); it.hasNext();) {
+            Schedule current = it.next();
+            Schedule updated = loaded.get(current.name);
+            if (updated == null || updated != current && !updated.signature().equals(current.signature())) {
+                wheel.remove(current);
+                it.remove();
+                changed = true;
+            }
+        }
+        long now = System.currentTimeMillis();
+        for (Schedule updated : loaded.values()) {
+            if (!schedules.containsKey(updated.name)) {
+                updated.offsetMs = updated.jitterMs > 0 ? (long) (random.nextDouble() * updated.jitterMs) : 0;
+                updated.nextAt = updated.next(now, zone);
+                schedules.put(updated.name, updated);
+                wheel.add(updated);
+                changed = true;
+            }
+        }
+        history.keySet().retainAll(schedules.keySet());
+        invalid.keySet().retainAll(configured);
+        if (!schedules.isEmpty() && thread == null) {
+            thread = new Thread(new Runnable() {
+                public void run() {
+                    tick();
+                }
+            }, "scheduler");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return changed;
+    }
+
+    private void tick() {
+        while (true) {
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                for (Schedule schedule : wheel.advance(now)) {
+                    fire(schedule, schedule.nextAt, false);
+                    schedule.nextAt = schedule.next(Math.max(now, schedule.nextAt), zone);
+                    wheel.add(schedule);
+                }
+            }
+            try {
+                Thread.sleep(TICK_MS - System.currentTimeMillis() % TICK_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void fire(Schedule schedule, long plannedAt, boolean manual) {
+        Deque<Run> runs = history.get(schedule.name);
+        if (runs == null) {
+            runs = new ArrayDeque<Run>();
+            history.put(schedule.name, runs);
+        }
+        Run last = runs.peekLast();
+        Run run;
+        if (last != null && last.isRunning()) {
+            run = new Run(plannedAt, manual, null, "SKIPPED, job " + last.job.id + " is still running");
+            launcher.log("INFO", "Schedule " + schedule.name + " skipped: job " + last.job.id + " is still running");
+        } else {
+            try {
+                run = new Run(plannedAt, manual, launcher.launch(schedule.name, schedule.command,
+                        schedule.resourceClass), null);
+            } catch (IOException | IllegalArgumentException e) {
+                run = new Run(plannedAt, manual, null, "NOT STARTED: " + e.getMessage());
+                // A schedule that keeps failing the same way is logged once
+                if (last == null || !run.failure.equals(last.failure)) {
+                    launcher.log("ERROR", "Schedule " + schedule.name + " could not start: " + e.getMessage());
+                }
+            }
+        }
+        runs.addLast(run);
+        while (runs.size() > retain) {
+            runs.removeFirst();
+        }
+    }
+
+    /**
+     * Starts a schedule now, outside its times. False if there is no such
+     * schedule.
+     */
+    synchronized boolean runNow(String name) {
+        Schedule schedule = schedules.get(name);
+        if (schedule == null) {
+            return false;
+        }
+        fire(schedule, System.currentTimeMillis(), true);
+        return true;
+    }
+
+    /**
+     * Every schedule with its next time and last result, for "-schedule".
+     */
+    synchronized List<String> list() {
+        List<String> lines = new ArrayList<String>();
+        for (Schedule schedule : schedules.values()) {
+            Deque<Run> runs = history.get(schedule.name);
+            Run last = runs != null ? runs.peekLast() : null;
+            lines.add(schedule + "\n    next " + format(schedule.nextAt)
+                    + (last != null ? ", last " + last : ", not run yet"));
+        }
+        lines.add(schedules.size() + " schedule(s)");
+        return lines;
+    }
+
+    /**
+     * The retained runs of one schedule, oldest first; null if there is no
+     * such schedule.
+     */
+    synchronized List<String> history(String name) {
+        Schedule schedule = schedules.get(name);
+        if (schedule == null) {
+            return null;
+        }
+        List<String> lines = new ArrayList<String>();
+        lines.add(schedule.toString());
+        Deque<Run> runs = history.get(name);
+        if (runs != null) {
+            for (Run run : runs) {
+                lines.add(run.toString());
+            }
+        }
+        lines.add((runs != null ? runs.size() : 0) + " run(s), next " + format(schedule.nextAt));
+        return lines;
+    }
+
+    synchronized int size() {
+        return schedules.size();
+    }
+
+    private static String format(long epochMs) {
+        return TIME.format(Instant.ofEpochMilli(epochMs).atZone(ZoneId.systemDefault()));
+    }
+}
@@ -0,0 +1,151 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Named command with ${name} placeholders, defined once as
+ * template.&lt;name&gt; in client_config.properties and filled in per host.
+ * The text is split into literals and variable names when the config is
+ * loaded, so expanding it for a host is a single pass over those parts.
+ *
+ * Variables come from var.&lt;name&gt;, overridden by host.N.var.&lt;name&gt;;
+ * host, port, clientName and index are always defined. "$${" stands for a
+ * literal "${", e.g. for shell parameter expansion.
+ */
+class CommandTemplate {
+    static final String PREFIX = "template.";
+    static final String VAR_PREFIX = "var.";
+    static final String REFERENCE = "@";
+
+    final String name;
+    final String source;
+    // literals.length == variables.length + 1; the expansion is literals[0] variables[0] literals[1] ...
+    private final String[] literals;
+    private final String[] variables;
+    private final int literalLength;
+
+    private CommandTemplate(String name, String source, List<String> literals, List<String> variables) {
+        this.name = name;
+        this.source = source;
+        this.literals = literals.toArray(new String[0]);
+        this.variables = variables.toArray(new String[0]);
+        int length = 0;
+        for (String literal : this.literals) {
+            length += literal.length();
+        }
+        this.literalLength = length;
+    }
+
+    /**
+     * Parses a template; throws IllegalArgumentException for an unclosed
+     * or empty placeholder.
+     */
+    static CommandTemplate compile(String name, String source) {
+        List<String> literals = new ArrayList<String>();
+        List<String> variables = new ArrayList<String>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < source.length()) {
+            if (source.startsWith("$${", i)) {
+                literal.append("${");
+                i += 3;
+            } else if (source.startsWith("${", i)) {
+                int end = source.indexOf('}', i + 2);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unclosed ${ in template " + name);
+                }
+                String variable = source.substring(i + 2, end).trim();
+                if (variable.isEmpty()) {
+                    throw new IllegalArgumentException("Empty ${} in template " + name);
+                }
+                literals.add(literal.toString());
+                literal.setLength(0);
+                variables.add(variable);
+                i = end + 1;
+            } else {
+                literal.append(source.charAt(i++));
+            }
+        }
+        literals.add(literal.toString());
+        return new CommandTemplate(name, source, literals, variables);
+    }
+
+    /**
+     * Variable names in order of first use.
+     */
+    Set<String> variables() {
+        Set<String> names = new LinkedHashSet<String>();
+        for (String variable : variables) {
+            names.add(variable);
+        }
+        return names;
+    }
+
+    /**
+     * Fills in the variables; throws IllegalArgumentException naming the
+     * first one that is not defined.
+     */
+    String expand(Map<String, String> values) {
+        if (variables.length == 0) {
+            return literals[0];
+        }
+        StringBuilder out = new StringBuilder(literalLength + variables.length * 16);
+        out.append(literals[0]);
+        for (int i = 0; i < variables.length; i++) {
+            String value = values.get(variables[i]);
+            if (value == null) {
+                throw new IllegalArgumentException("Template " + name + " uses undefined variable ${" + variables[i] + "}");
+            }
+            out.append(value).append(literals[i + 1]);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Compiles every template.&lt;name&gt; entry of a config.
+     */
+    static Map<String, CommandTemplate> loadAll(Properties config) {
+        Map<String, CommandTemplate> templates = new HashMap<String, CommandTemplate>();
+        for (String key : config.stringPropertyNames()) {
+            if (key.startsWith(PREFIX) && key.length() > PREFIX.length()) {
+                String name = key.substring(PREFIX.length());
+                templates.put(name, compile(name, config.getProperty(key).trim()));
+            }
+        }
+        return templates;
+    }
+
+    /**
+     * The key=value pairs under prefix + "var." (e.g. "" or "host.3.").
+     */
+    static Map<String, String> loadVariables(Properties config, String prefix) {
+        Map<String, String> values = new HashMap<String, String>();
+        String varPrefix = prefix + VAR_PREFIX;
+        for (String key : config.stringPropertyNames()) {
+            if (key.startsWith(varPrefix) && key.length() > varPrefix.length()) {
+                values.put(key.substring(varPrefix.length()), config.getProperty(key).trim());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * The template a command refers to as "@name", or null if the command is
+     * not a reference.
+     */
+    static CommandTemplate lookup(String command, Map<String, CommandTemplate> templates) {
+        String trimmed = command.trim();
+        if (!trimmed.startsWith(REFERENCE)) {
+            return null;
+        }
+        CommandTemplate template = templates.get(trimmed.substring(REFERENCE.length()));
+        if (template == null) {
+            throw new IllegalArgumentException("No template named " + trimmed.substring(REFERENCE.length()));
+        }
+        return template;
+    }
+}
@@ -0,0 +1,503 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Manages network connections to remote hosts
+ */
+class ConnectionManager {
+    static final int TIMEOUT_MS = 30000;
+    static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+    // Head start of each address over the next one, as recommended by RFC 8305
+    static final int ATTEMPT_DELAY_MS = 250;
+    // How long a lookup is reused, like the JVM's own default cache; a daemon may run for days
+    static final long RESOLVE_TTL_MS = 30000;
+    private static final int MAX_LOOKUPS = 16;
+    // Hosts in one batch usually share a few names
+    private static final Map<String, Lookup> resolved = new ConcurrentHashMap<String, Lookup>();
+    // Lookups still running, shared by everyone waiting for the same name
+    private static final Map<String, PendingLookup> lookingUp = new ConcurrentHashMap<String, PendingLookup>();
+    private static final ThreadPoolExecutor LOOKUPS = new ThreadPoolExecutor(MAX_LOOKUPS, MAX_LOOKUPS, 60,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "resolver");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    static {
+        LOOKUPS.allowCoreThreadTimeOut(true);
+    }
+    private static volatile int connectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+    // TLS and/or pre-shared key; null for plaintext. One per process so TLS sessions are resumed
+    private static volatile SecureTransport security;
+    static final String END_OF_RESPONSE = "END_OF_RESPONSE";
+    static final String STDERR_PREFIX = "STDERR ";
+    private static LogCallback logCallback;
+    private Socket socket;
+    private PrintWriter writer;
+    private BufferedReader reader;
+    private HostConfig config;
+
+    public static void setLogCallback(LogCallback callback) {
+        logCallback = callback;
+    }
+
+    interface LogCallback {
+        void log(String message);
+    }
+
+    static void setConnectTimeout(int timeoutMs) {
+        connectTimeoutMs = timeoutMs > 0 ? timeoutMs : DEFAULT_CONNECT_TIMEOUT_MS;
+    }
+
+    static int getConnectTimeout() {
+        return connectTimeoutMs;
+    }
+
+    static void setSecurity(SecureTransport transport) {
+        security = transport;
+    }
+
+    static SecureTransport getSecurity() {
+        return security;
+    }
+
+    /**
+     * Addresses of a host and when they were looked up
+     */
+    private static class Lookup {
+        final InetAddress[] addresses;
+        final long at = System.currentTimeMillis();
+
+        Lookup(InetAddress[] addresses) {
+            this.addresses = addresses;
+        }
+
+        boolean isFresh() {
+            return System.currentTimeMillis() - at < RESOLVE_TTL_MS;
+        }
+    }
+
+    /**
+     * A lookup that is still running, shared by everyone waiting for the
+     * same name
+     */
+    private static class PendingLookup {
+        final FutureTask<InetAddress[]> task;
+        final long startedAt = System.currentTimeMillis();
+
+        PendingLookup(FutureTask<InetAddress[]> task) {
+            this.task = task;
+        }
+    }
+
+    /**
+     * All addresses of a host, waiting at most the connect timeout.
+     */
+    static InetAddress[] resolve(String hostname) throws UnknownHostException {
+        return resolve(hostname, connectTimeoutMs);
+    }
+
+    /**
+     * All addresses of a host, reused for RESOLVE_TTL_MS. Failed lookups
+     * are not remembered, so a name that appears later is found. A lookup
+     * cannot be interrupted, so it runs on a resolver thread and is given up
+     * timeoutMs after it started; a late answer is still cached.
+     */
+    static InetAddress[] resolve(String hostname, long timeoutMs) throws UnknownHostException {
+        Lookup lookup = resolved.get(hostname);
+        if (lookup != null && lookup.isFresh()) {
+            return lookup.addresses;
+        }
+        PendingLookup pending = startLookup(hostname);
+        long waitMs = pending.startedAt + timeoutMs - System.currentTimeMillis();
+        try {
+            if (waitMs <= 0 && !pending.task.isDone()) {
+                throw new TimeoutException();
+            }
+            return pending.task.get(Math.max(1, waitMs), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new UnknownHostException(hostname + ": lookup timed out after " + timeoutMs + " ms");
+        } catch (ExecutionException e) {
+            throw new UnknownHostException(hostname + ": unknown host");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException(hostname + ": lookup interrupted");
+        }
+    }
+
+    private static PendingLookup startLookup(final String hostname) {
+        PendingLookup pending = lookingUp.get(hostname);
+        if (pending != null) {
+            return pending;
+        }
+        PendingLookup started = new PendingLookup(new FutureTask<InetAddress[]>(new Callable<InetAddress[]>() {
+            public InetAddress[] call() throws UnknownHostException {
+                try {
+                    InetAddress[] addresses = InetAddress.getAllByName(hostname);
+                    resolved.put(hostname, new Lookup(addresses));
+                    return addresses;
+                } catch (UnknownHostException e) {
+                    resolved.remove(hostname);
+                    throw e;
+                } finally {
+                    lookingUp.remove(hostname);
+                }
+            }
+        }));
+        pending = lookingUp.putIfAbsent(hostname, started);
+        if (pending != null) {
+            return pending;
+        }
+        LOOKUPS.execute(started.task);
+        return started;
+    }
+
+    /**
+     * Starts the lookups of many host names in parallel, e.g. before
+     * connecting to a whole batch, and waits at most timeoutMs for them; with
+     * 0 it only starts them.
+     */
+    static void prefetch(Collection<String> hostnames, long timeoutMs) {
+        List<PendingLookup> pending = new ArrayList<PendingLookup>();
+        for (String hostname : new LinkedHashSet<String>(hostnames)) {
+            Lookup lookup = resolved.get(hostname);
+            if (lookup == null || !lookup.isFresh()) {
+                pending.add(startLookup(hostname));
+            }
+        }
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        for (PendingLookup lookup : pending) {
+            long waitMs = deadline - System.currentTimeMillis();
+            if (waitMs <= 0) {
+                return;
+            }
+            try {
+                lookup.task.get(waitMs, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                // Reported by resolve when the host is connected
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Opens a connected channel to a host within timeoutMs. With several
+     * addresses the attempts are staggered by ATTEMPT_DELAY_MS and run in
+     * parallel, alternating address families, and the first one to connect
+     * wins; a failed attempt starts the next one right away.
+     */
+    static SocketChannel open(String hostname, int port, int timeoutMs) throws IOException {
+        // The lookup counts against the same deadline as the connect
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        List<InetAddress> addresses = interleaveFamilies(resolve(hostname, timeoutMs));
+        if (addresses.size() == 1) {
+            SocketChannel channel = SocketChannel.open();
+            try {
+                channel.socket().connect(new InetSocketAddress(addresses.get(0), port),
+                        (int) Math.max(1, deadline - System.currentTimeMillis()));
+                return channel;
+            } catch (SocketTimeoutException e) {
+                channel.close();
+                throw new SocketTimeoutException("Connect to " + hostname + ":" + port + " timed out after "
+                        + timeoutMs + " ms");
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        Selector selector = Selector.open();
+        List<SocketChannel> attempts = new ArrayList<SocketChannel>();
+        SocketChannel winner = null;
+        try {
+            long nextAttempt = 0;
+            int next = 0;
+            int pending = 0;
+            IOException lastError = null;
+            while (winner == null) {
+                long now = System.currentTimeMillis();
+                if (next < addresses.size() && (pending == 0 || now >= nextAttempt)) {
+                    SocketChannel channel = SocketChannel.open();
+                    attempts.add(channel);
+                    try {
+                        channel.configureBlocking(false);
+                        if (channel.connect(new InetSocketAddress(addresses.get(next), port))) {
+                            winner = channel;
+                        } else {
+                            channel.register(selector, SelectionKey.OP_CONNECT);
+                            pending++;
+                        }
+                    } catch (IOException e) {
+                        lastError = e;
+                        channel.close();
+                    }
+                    next++;
+                    nextAttempt = now + ATTEMPT_DELAY_MS;
+                    continue;
+                }
+                if (pending == 0) {
+                    throw lastError != null ? lastError : new IOException("No address of " + hostname + " connected");
+                }
+                if (now >= deadline) {
+                    throw new SocketTimeoutException("Connect to " + hostname + ":" + port + " timed out after "
+                            + timeoutMs + " ms");
+                }
+                long wakeAt = next < addresses.size() ? Math.min(nextAttempt, deadline) : deadline;
+                selector.select(Math.max(1, wakeAt - now));
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext() && winner == null) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    try {
+                        if (channel.finishConnect()) {
+                            winner = channel;
+                        }
+                    } catch (IOException e) {
+                        lastError = e;
+                        key.cancel();
+                        channel.close();
+                        pending--;
+                        nextAttempt = 0;
+                    }
+                }
+            }
+        } finally {
+            // Closing the selector deregisters the winner so it can block again
+            selector.close();
+            for (SocketChannel channel : attempts) {
+                if (channel != winner) {
+                    channel.close();
+                }
+            }
+        }
+        winner.configureBlocking(true);
+        return winner;
+    }
+
+    /**
+     * Orders addresses so the families alternate, starting with the one the
+     * resolver preferred.
+     */
+    static List<InetAddress> interleaveFamilies(InetAddress[] addresses) {
+        List<InetAddress> first = new ArrayList<InetAddress>();
+        List<InetAddress> other = new ArrayList<InetAddress>();
+        for (InetAddress address : addresses) {
+            if (address.getClass() == addresses[0].getClass()) {
+                first.add(address);
+            } else {
+                other.add(address);
+            }
+        }
+        List<InetAddress> ordered = new ArrayList<InetAddress>();
+        for (int i = 0; i < Math.max(first.size(), other.size()); i++) {
+            if (i < first.size()) {
+                ordered.add(first.get(i));
+            }
+            if (i < other.size()) {
+                ordered.add(other.get(i));
+            }
+        }
+        return ordered;
+    }
+
+    public ConnectionManager(HostConfig config) {
+        this.config = config;
+    }
+
+    public HostConfig getConfig() {
+        return config;
+    }
+
+    Socket getSocket() {
+        return socket;
+    }
+
+    /**
+     * True for the line the server sends after each complete response.
+     */
+    static boolean isEndOfResponse(String line) {
+        return line.equals(END_OF_RESPONSE) || line.startsWith(END_OF_RESPONSE + " ");
+    }
+
+    /**
+     * Parses the key=value pairs following END_OF_RESPONSE.
+     */
+    static Map<String, String> parseTrailer(String line) {
+        Map<String, String> values = new HashMap<String, String>();
+        for (String token : line.substring(END_OF_RESPONSE.length()).trim().split("\\s+")) {
+            int eq = token.indexOf('=');
+            if (eq > 0) {
+                values.put(token.substring(0, eq), token.substring(eq + 1));
+            }
+        }
+        return values;
+    }
+
+    public void setReadTimeout(int timeoutMs) {
+        try {
+            if (socket != null) {
+                socket.setSoTimeout(timeoutMs);
+            }
+        } catch (IOException e) {
+            if (logCallback != null) {
+                logCallback.log("Error setting read timeout: " + e.getMessage());
+            }
+        }
+    }
+
+    public boolean connect() throws IOException {
+        return connect(connectTimeoutMs);
+    }
+
+    public boolean connect(int timeoutMs) throws IOException {
+        try {
+            // Channel-backed so plaintext file transfers can use zero-copy transferTo/transferFrom
+            socket = open(config.hostname, config.port, timeoutMs).socket();
+            SecureTransport transport = security;
+            if (transport != null && transport.encrypts()) {
+                socket = transport.wrapClient(socket, config.hostname, config.port, timeoutMs);
+            }
+            socket.setSoTimeout(TIMEOUT_MS);
+            socket.setKeepAlive(true);
+            writer = new PrintWriter(socket.getOutputStream(), true);
+            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            if (transport != null && transport.usesPsk()) {
+                socket.setSoTimeout(timeoutMs);
+                transport.proveClient(reader, writer);
+                socket.setSoTimeout(TIMEOUT_MS);
+            }
+            config.state = ConnectionState.CONNECTED;
+            return true;
+        } catch (IOException e) {
+            config.state = ConnectionState.FAILED;
+            close(); // Ensure cleanup on connection failure
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the connection again and sends the client name, e.g. after the
+     * server restarted under a pooled connection.
+     */
+    void reconnect() throws IOException {
+        close();
+        connect();
+        sendCommand(config.clientName);
+    }
+
+    /**
+     * True if an open connection can take the next command: the server has
+     * not closed it, and nothing is left unread from an earlier response.
+     * Waits at most a millisecond; a connection that fails the check is
+     * closed.
+     */
+    boolean isUsable() {
+        if (!config.state.equals(ConnectionState.CONNECTED) || socket == null || socket.isClosed()) {
+            return false;
+        }
+        boolean usable = false;
+        try {
+            if (!reader.ready()) {
+                socket.setSoTimeout(1);
+                reader.read(); // End of stream or a stray line; either way not usable
+            }
+        } catch (SocketTimeoutException e) {
+            usable = true; // Idle and still open
+        } catch (IOException e) {
+            // Reset by the server
+        }
+        if (usable) {
+            setReadTimeout(TIMEOUT_MS);
+        } else {
+            close();
+        }
+        return usable;
+    }
+
+    public void sendCommand(String command) throws IOException {
+        if (!config.state.equals(ConnectionState.CONNECTED) || socket == null || socket.isClosed()) {
+            throw new IOException("Not connected to host: " + config.hostname);
+        }
+        try {
+            writer.println(command);
+            if (writer.checkError()) { // Check for write errors
+                throw new IOException("Write error occurred");
+            }
+        } catch (Exception e) {
+            close(); // Cleanup on error
+            throw new IOException("Failed to send command: " + e.getMessage());
+        }
+    }
+
+    public String readResponse() throws IOException {
+        if (!config.state.equals(ConnectionState.CONNECTED) || reader == null) {
+            throw new IOException("Not connected to host: " + config.hostname);
+        }
+        try {
+            String response = reader.readLine();
+            if (response == null) {
+                throw new IOException("Connection closed by server");
+            }
+            return response;
+        } catch (IOException e) {
+            close(); // Cleanup on error
+            throw e;
+        }
+    }
+
+    public void close() {
+        try {
+            if (writer != null) {
+                writer.close();
+            }
+            if (reader != null) {
+                reader.close();
+            }
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // Log close errors but don't throw
+            if (logCallback != null) {
+                logCallback.log("Error closing connection: " + e.getMessage());
+            }
+        } finally {
+            config.state = ConnectionState.DISCONNECTED;
+            reader = null;
+            writer = null;
+            socket = null;
+        }
+    }
+}
@@ -0,0 +1,9 @@
+/**
+ * Represents the connection state of a host
+ */
+enum ConnectionState {
+    DISCONNECTED,
+    CONNECTING,
+    CONNECTED,
+    FAILED
+}
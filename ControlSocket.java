@@ -0,0 +1,309 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local control channel of a client daemon. Uses a Unix domain socket where
+ * the JVM has them (Java 16+, looked up at runtime) and otherwise a loopback
+ * TCP port guarded by a random token. The port and token are written to a
+ * file only the owner can read, as "&lt;port&gt; &lt;token&gt;".
+ *
+ * Protocol, one request per connection:
+ *   cli    "DTCTL &lt;token or -&gt;", "ARGS &lt;n&gt;", then n argument lines
+ *   daemon output lines, then "DTCTL_EXIT &lt;code&gt;"
+ */
+class ControlSocket implements Closeable {
+    // Any free port; the token file tells --ctl which one
+    static final int DEFAULT_PORT = 0;
+    private static final String HELLO = "DTCTL";
+    private static final String EXIT = "DTCTL_EXIT ";
+    // How long a connection may take to send its request before it is dropped
+    static final long REQUEST_TIMEOUT_MS = 5000;
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "control-timeout");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final ServerSocketChannel server;
+    private final File socketFile;
+    private final String token;
+    private final String description;
+
+    /**
+     * One accepted request
+     */
+    static class Request implements Closeable {
+        final List<String> args;
+        final OutputStream output;
+        private final SocketChannel channel;
+
+        private Request(SocketChannel channel, List<String> args) {
+            this.channel = channel;
+            this.args = args;
+            this.output = Channels.newOutputStream(channel);
+        }
+
+        void finish(int exitCode) throws IOException {
+            output.write((EXIT + exitCode + "\n").getBytes("UTF-8"));
+            output.flush();
+            close();
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private ControlSocket(ServerSocketChannel server, File socketFile, String token, String description) {
+        this.server = server;
+        this.socketFile = socketFile;
+        this.token = token;
+        this.description = description;
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+
+    /**
+     * Binds the daemon's control socket: the Unix socket at path when
+     * supported, else 127.0.0.1:port with the port and token written to
+     * tokenFile.
+     */
+    static ControlSocket listen(String path, int port, File tokenFile) throws IOException {
+        SocketAddress unixAddress = unixAddress(path);
+        if (unixAddress != null) {
+            File socketFile = new File(path).getAbsoluteFile();
+            // The caller holds the instance lock, so a leftover file is from a crashed daemon
+            Files.deleteIfExists(socketFile.toPath());
+            // Bound inside a private directory and moved into place once only the owner can use it
+            Path privateDir = createOwnerOnly(socketFile.getParentFile().toPath(), true);
+            File bound = new File(privateDir.toFile(), "socket");
+            ServerSocketChannel server = openServer(unixFamily());
+            try {
+                server.bind(unixAddress(bound.getPath()));
+                ownerOnly(bound);
+                Files.move(bound.toPath(), socketFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException | RuntimeException e) {
+                server.close();
+                throw e;
+            } finally {
+                Files.deleteIfExists(bound.toPath());
+                Files.deleteIfExists(privateDir);
+            }
+            return new ControlSocket(server, socketFile, null, "unix:" + socketFile);
+        }
+        byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        StringBuilder token = new StringBuilder();
+        for (byte b : random) {
+            token.append(String.format("%02x", b));
+        }
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        int boundPort = server.socket().getLocalPort();
+        Files.deleteIfExists(tokenFile.toPath());
+        OutputStream out = Files.newOutputStream(createOwnerOnly(tokenFile.toPath(), false));
+        try {
+            out.write((boundPort + " " + token).getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return new ControlSocket(server, tokenFile, token.toString(), "127.0.0.1:" + boundPort);
+    }
+
+    /**
+     * Waits for the next well-formed request; connections that fail the
+     * token check or the protocol, or that do not send their request
+     * within REQUEST_TIMEOUT_MS, are closed and skipped.
+     */
+    Request accept() throws IOException {
+        while (true) {
+            final SocketChannel channel = server.accept();
+            // Channel streams ignore SO_TIMEOUT, so a stalled request is closed from the timer instead
+            ScheduledFuture<?> timeout = TIMER.schedule(new Runnable() {
+                public void run() {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        // Already closed
+                    }
+                }
+            }, REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), "UTF-8"));
+                String hello = reader.readLine();
+                String header = reader.readLine();
+                if (hello != null && hello.equals(HELLO + " " + (token != null ? token : "-")) && header != null
+                        && header.startsWith("ARGS ")) {
+                    int count = Integer.parseInt(header.substring(5).trim());
+                    List<String> args = new ArrayList<String>();
+                    String arg;
+                    while (args.size() < count && (arg = reader.readLine()) != null) {
+                        args.add(arg);
+                    }
+                    if (args.size() == count && timeout.cancel(false)) {
+                        return new Request(channel, args);
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                // Treated like a bad request
+            }
+            timeout.cancel(false);
+            channel.close();
+        }
+    }
+
+    public void close() throws IOException {
+        server.close();
+        Files.deleteIfExists(socketFile.toPath());
+    }
+
+    /**
+     * Sends the arguments to a running daemon and copies its output to out.
+     * Returns the daemon's exit code for the request.
+     */
+    static int call(String path, File tokenFile, List<String> args, PrintStream out) throws IOException {
+        SocketChannel channel;
+        String token = "-";
+        SocketAddress unixAddress = unixAddress(path);
+        if (unixAddress != null && new File(path).exists()) {
+            channel = openClient(unixFamily());
+            try {
+                channel.connect(unixAddress);
+            } catch (IOException e) {
+                // A daemon killed without cleanup leaves its socket file behind
+                channel.close();
+                throw new IOException("No client daemon is running on " + path + ": " + e.getMessage());
+            }
+        } else {
+            if (!tokenFile.isFile()) {
+                throw new IOException("No client daemon is running (no " + path + " or " + tokenFile + ")");
+            }
+            String[] portAndToken = new String(Files.readAllBytes(tokenFile.toPath()), "UTF-8").trim().split(" ");
+            if (portAndToken.length != 2) {
+                throw new IOException("Malformed " + tokenFile);
+            }
+            token = portAndToken[1];
+            channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    Integer.parseInt(portAndToken[0])));
+        }
+        try {
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(Channels.newOutputStream(channel), "UTF-8"));
+            writer.print(HELLO + " " + token + "\n");
+            writer.print("ARGS " + args.size() + "\n");
+            for (String arg : args) {
+                if (arg.indexOf('\n') >= 0) {
+                    throw new IOException("Arguments cannot contain line breaks");
+                }
+                writer.print(arg + "\n");
+            }
+            writer.flush();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(EXIT)) {
+                    return Integer.parseInt(line.substring(EXIT.length()).trim());
+                }
+                out.println(line);
+            }
+            throw new IOException("Daemon closed the connection without an exit code");
+        } finally {
+            channel.close();
+        }
+    }
+
+    // ----- Unix domain sockets, Java 16+ -----
+
+    private static SocketAddress unixAddress(String path) {
+        if (path == null || path.isEmpty()) {
+            return null;
+        }
+        try {
+            Class<?> type = Class.forName("java.net.UnixDomainSocketAddress");
+            return (SocketAddress) type.getMethod("of", String.class).invoke(null, path);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static ProtocolFamily unixFamily() {
+        return Enum.valueOf(StandardProtocolFamily.class, "UNIX");
+    }
+
+    private static ServerSocketChannel openServer(ProtocolFamily family) throws IOException {
+        try {
+            return (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null,
+                    family);
+        } catch (Exception e) {
+            throw new IOException("Cannot open a Unix domain socket: " + e);
+        }
+    }
+
+    private static SocketChannel openClient(ProtocolFamily family) throws IOException {
+        try {
+            return (SocketChannel) SocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, family);
+        } catch (Exception e) {
+            throw new IOException("Cannot open a Unix domain socket: " + e);
+        }
+    }
+
+    /**
+     * Creates a file, or a directory, that only the owner can use. Where
+     * the file system has POSIX permissions they are set as it is created.
+     */
+    private static Path createOwnerOnly(Path path, boolean directory) throws IOException {
+        FileAttribute<?> permissions;
+        try {
+            permissions = PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString(directory ? "rwx------" : "rw-------"));
+            return directory ? Files.createTempDirectory(path, ".ctl", permissions)
+                    : Files.createFile(path, permissions);
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system
+        }
+        Path created = directory ? Files.createTempDirectory(path, ".ctl") : Files.createFile(path);
+        ownerOnly(created.toFile());
+        return created;
+    }
+
+    private static void ownerOnly(File file) {
+        file.setReadable(false, false);
+        file.setWritable(false, false);
+        file.setExecutable(false, false);
+        file.setReadable(true, true);
+        file.setWritable(true, true);
+    }
+}
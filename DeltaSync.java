@@ -0,0 +1,458 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * rsync-style delta transfer: the server sends rolling and strong checksums
+ * of the blocks of the file it already has, and the client answers with
+ * instructions to copy those blocks plus the literal bytes that changed.
+ *
+ * Protocol:
+ *   client "-sync &lt;blockSize&gt; &lt;size&gt; &lt;sha256&gt; &lt;path&gt;"
+ *   server "UPTODATE" | "SIGS &lt;n&gt;" followed by n "&lt;weak&gt; &lt;md5&gt;" lines
+ *   client "C &lt;firstBlock&gt; &lt;count&gt;" and "L &lt;base64&gt;" lines, then "END"
+ *   server "OK ..." or "FAILED ..."
+ */
+class DeltaSync {
+    static final int MIN_BLOCK_SIZE = 2048;
+    static final int MAX_BLOCK_SIZE = 64 * 1024;
+    private static final int LITERAL_CHUNK = 32 * 1024;
+
+    private DeltaSync() {
+    }
+
+    /**
+     * A local file to keep in sync with a path on a host
+     */
+    static class SyncEntry {
+        final File local;
+        final String remote;
+
+        SyncEntry(File local, String remote) {
+            this.local = local;
+            this.remote = remote;
+        }
+    }
+
+    /**
+     * Result of syncing one file to one host
+     */
+    static class SyncResult {
+        final HostConfig host;
+        final SyncEntry entry;
+        boolean success;
+        boolean upToDate;
+        String message;
+        long literalBytes;
+        long reusedBytes;
+        long wireBytes;
+        long durationMs;
+
+        SyncResult(HostConfig host, SyncEntry entry) {
+            this.host = host;
+            this.entry = entry;
+        }
+
+        @Override
+        public String toString() {
+            String prefix = "[" + host.hostname + "] " + entry.remote + ": ";
+            if (!success) {
+                return prefix + "FAILED " + message + " (" + durationMs + " ms)";
+            }
+            if (upToDate) {
+                return prefix + "up to date (" + durationMs + " ms)";
+            }
+            return prefix + "OK sent " + wireBytes + " bytes for " + (literalBytes + reusedBytes) + " byte file, "
+                    + reusedBytes + " reused (" + durationMs + " ms)";
+        }
+    }
+
+    /**
+     * Parses a host.N.sync value: "local -&gt; remote; local2 -&gt; remote2".
+     */
+    static List<SyncEntry> parseSpec(String spec) {
+        List<SyncEntry> entries = new ArrayList<SyncEntry>();
+        if (spec == null) {
+            return entries;
+        }
+        for (String pair : spec.split(";")) {
+            int arrow = pair.indexOf("->");
+            if (arrow > 0) {
+                entries.add(new SyncEntry(new File(pair.substring(0, arrow).trim()), pair.substring(arrow + 2).trim()));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Roughly sqrt(size), rounded to 1 KB and clamped, like rsync does.
+     */
+    static int chooseBlockSize(long size) {
+        long block = ((long) Math.sqrt(size) + 1023) / 1024 * 1024;
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, block));
+    }
+
+    /**
+     * rsync's weak checksum: a is the byte sum, b the position-weighted sum.
+     */
+    static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0, b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = data[offset + i] & 0xff;
+            a += x;
+            b += (length - i) * x;
+        }
+        return (a & 0xffff) | ((b & 0xffff) << 16);
+    }
+
+    // ----- server side -----
+
+    /**
+     * Handles "-sync &lt;blockSize&gt; &lt;size&gt; &lt;sha256&gt; &lt;path&gt;". Returns true
+     * when the file matches the client's copy afterwards.
+     */
+    static boolean serve(String args, BufferedReader reader, PrintWriter writer, OutputStream out, File root)
+            throws IOException {
+        String[] parts = args.split("\\s+", 4);
+        if (parts.length < 4) {
+            writer.println("ERROR Usage: -sync <blockSize> <size> <sha256> <path>");
+            return false;
+        }
+        int blockSize;
+        long size;
+        try {
+            blockSize = Integer.parseInt(parts[0]);
+            size = Long.parseLong(parts[1]);
+        } catch (NumberFormatException e) {
+            writer.println("ERROR Invalid block size or file size");
+            return false;
+        }
+        if (blockSize < 1 || blockSize > MAX_BLOCK_SIZE) {
+            writer.println("ERROR Block size must be between 1 and " + MAX_BLOCK_SIZE);
+            return false;
+        }
+        String sha = parts[2].toLowerCase();
+        File target = FileTransfer.resolve(root, parts[3]);
+        if (target == null) {
+            writer.println("ERROR Path outside transfer.rootDir: " + parts[3]);
+            return false;
+        }
+        if (target.isFile() && target.length() == size && FileTransfer.sha256(target).equals(sha)) {
+            writer.println("UPTODATE");
+            return true;
+        }
+        File parent = target.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            writer.println("ERROR Cannot create directory " + parent);
+            return false;
+        }
+
+        File part = new File(target.getPath() + ".sync.part");
+        String failure = null;
+        RandomAccessFile output = new RandomAccessFile(part, "rw");
+        RandomAccessFile old = target.isFile() ? new RandomAccessFile(target, "r") : null;
+        try {
+            FileLock lock;
+            try {
+                lock = output.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                writer.println("ERROR Sync of " + target + " already in progress");
+                return false;
+            }
+            output.setLength(0);
+            try {
+                sendSignatures(old, blockSize, writer, out);
+            } catch (IOException e) {
+                // The client waits for the rest of the signatures; the session cannot get back in step
+                out.close();
+                throw e;
+            }
+
+            // Rebuild the file from copied blocks and literal data
+            FileChannel source = old != null ? old.getChannel() : null;
+            FileChannel sink = output.getChannel();
+            long position = 0;
+            String line;
+            while ((line = reader.readLine()) != null && !"END".equals(line)) {
+                if (failure != null) {
+                    // Drain the client's remaining instructions so they are not read as commands
+                    continue;
+                }
+                try {
+                    if (line.startsWith("C ")) {
+                        String[] copy = line.split(" ");
+                        long from = Long.parseLong(copy[1]) * blockSize;
+                        long length = Long.parseLong(copy[2]) * blockSize;
+                        if (source == null || from < 0 || length < 0 || from + length > source.size()) {
+                            throw new IOException("Invalid block reference: " + line);
+                        }
+                        long end = from + length;
+                        while (from < end) {
+                            long moved = source.transferTo(from, end - from, sink);
+                            from += moved;
+                            position += moved;
+                            sink.position(position);
+                        }
+                    } else if (line.startsWith("L ")) {
+                        ByteBuffer literal = ByteBuffer.wrap(Base64.getDecoder().decode(line.substring(2)));
+                        while (literal.hasRemaining()) {
+                            position += sink.write(literal);
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failure = e.getMessage() != null ? e.getMessage() : e.toString();
+                }
+            }
+            if (line == null) {
+                throw new IOException("Connection closed during sync");
+            }
+        } finally {
+            if (old != null) {
+                old.close();
+            }
+            output.close();
+        }
+
+        if (failure != null) {
+            part.delete();
+            writer.println("FAILED " + failure);
+            return false;
+        }
+        String actual = FileTransfer.sha256(part);
+        if (!actual.equals(sha)) {
+            part.delete();
+            writer.println("FAILED checksum mismatch: expected " + sha + " got " + actual);
+            return false;
+        }
+        if (target.exists() && !target.delete()) {
+            writer.println("FAILED cannot replace " + target);
+            return false;
+        }
+        if (!part.renameTo(target)) {
+            writer.println("FAILED cannot rename " + part + " to " + target);
+            return false;
+        }
+        writer.println("OK " + target + " " + size + " bytes sha256=" + actual);
+        return true;
+    }
+
+    private static void sendSignatures(RandomAccessFile old, int blockSize, PrintWriter writer, OutputStream out)
+            throws IOException {
+        long blocks = old == null ? 0 : old.length() / blockSize;
+        writer.println("SIGS " + blocks);
+        if (blocks == 0) {
+            return;
+        }
+        // One flush for all signatures instead of one per line
+        PrintWriter bulk = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out), 64 * 1024));
+        MessageDigest md5 = md5();
+        byte[] block = new byte[blockSize];
+        old.seek(0);
+        for (long i = 0; i < blocks; i++) {
+            old.readFully(block);
+            bulk.println(Integer.toHexString(weakChecksum(block, 0, blockSize)) + " " + FileTransfer.hex(md5.digest(block)));
+        }
+        bulk.flush();
+    }
+
+    // ----- client side -----
+
+    /**
+     * Syncs one local file to one host over an idle connection.
+     */
+    static SyncResult push(ConnectionManager connection, SyncEntry entry) {
+        SyncResult result = new SyncResult(connection.getConfig(), entry);
+        long start = System.currentTimeMillis();
+        try {
+            if (entry.local.length() > Integer.MAX_VALUE) {
+                throw new IOException("File too large for delta sync, use --put");
+            }
+            byte[] data = readFile(entry.local);
+            int blockSize = chooseBlockSize(data.length);
+            String sha = FileTransfer.sha256(entry.local);
+            connection.sendCommand("-sync " + blockSize + " " + data.length + " " + sha + " " + entry.remote);
+
+            String reply = connection.readResponse();
+            if ("UPTODATE".equals(reply)) {
+                drain(connection);
+                result.success = true;
+                result.upToDate = true;
+                return result;
+            }
+            if (!reply.startsWith("SIGS ")) {
+                result.message = reply;
+                drain(connection);
+                return result;
+            }
+            int count = Integer.parseInt(reply.substring(5).trim());
+            Map<Integer, List<Integer>> weakIndex = new HashMap<Integer, List<Integer>>();
+            String[] strong = new String[count];
+            for (int i = 0; i < count; i++) {
+                String[] signature = connection.readResponse().split(" ");
+                int weak = (int) Long.parseLong(signature[0], 16);
+                List<Integer> blocks = weakIndex.get(weak);
+                if (blocks == null) {
+                    blocks = new ArrayList<Integer>(1);
+                    weakIndex.put(weak, blocks);
+                }
+                blocks.add(i);
+                strong[i] = signature[1];
+            }
+
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(connection.getSocket().getOutputStream()), 64 * 1024);
+            sendDelta(data, blockSize, weakIndex, strong, out, result);
+            out.write("END\n");
+            out.flush();
+
+            String status = drain(connection);
+            result.success = status != null && status.startsWith("OK ");
+            result.message = status;
+        } catch (IOException e) {
+            result.message = e.getMessage();
+        } finally {
+            result.durationMs = System.currentTimeMillis() - start;
+        }
+        return result;
+    }
+
+    /**
+     * Scans the new file with the rolling checksum and writes copy
+     * instructions for blocks the server has and literals for the rest.
+     */
+    private static void sendDelta(byte[] data, int blockSize, Map<Integer, List<Integer>> weakIndex, String[] strong,
+            BufferedWriter out, SyncResult result) throws IOException {
+        MessageDigest md5 = md5();
+        int literalStart = 0;
+        int runStart = -1, runLength = 0;
+        int pos = 0;
+        int a = 0, b = 0;
+        boolean haveSum = false;
+
+        while (pos + blockSize <= data.length && !weakIndex.isEmpty()) {
+            if (!haveSum) {
+                int sum = weakChecksum(data, pos, blockSize);
+                a = sum & 0xffff;
+                b = (sum >>> 16) & 0xffff;
+                haveSum = true;
+            }
+            int match = -1;
+            List<Integer> candidates = weakIndex.get((a & 0xffff) | ((b & 0xffff) << 16));
+            if (candidates != null) {
+                md5.update(data, pos, blockSize);
+                String digest = FileTransfer.hex(md5.digest());
+                for (int candidate : candidates) {
+                    if (strong[candidate].equals(digest)) {
+                        match = candidate;
+                        break;
+                    }
+                }
+            }
+
+            if (match >= 0) {
+                if (literalStart < pos) {
+                    flushRun(out, runStart, runLength, blockSize, result);
+                    runLength = 0;
+                    writeLiteral(out, data, literalStart, pos, result);
+                }
+                if (runLength > 0 && match == runStart + runLength) {
+                    runLength++;
+                } else {
+                    flushRun(out, runStart, runLength, blockSize, result);
+                    runStart = match;
+                    runLength = 1;
+                }
+                pos += blockSize;
+                literalStart = pos;
+                haveSum = false;
+                continue;
+            }
+
+            // Roll the window one byte forward
+            if (pos + blockSize < data.length) {
+                int out0 = data[pos] & 0xff;
+                int in = data[pos + blockSize] & 0xff;
+                a = (a - out0 + in) & 0xffff;
+                b = (b - blockSize * out0 + a) & 0xffff;
+            }
+            pos++;
+            if (pos - literalStart >= LITERAL_CHUNK) {
+                flushRun(out, runStart, runLength, blockSize, result);
+                runLength = 0;
+                writeLiteral(out, data, literalStart, pos, result);
+                literalStart = pos;
+            }
+        }
+        flushRun(out, runStart, runLength, blockSize, result);
+        for (int from = literalStart; from < data.length; from += LITERAL_CHUNK) {
+            writeLiteral(out, data, from, Math.min(data.length, from + LITERAL_CHUNK), result);
+        }
+    }
+
+    private static void flushRun(BufferedWriter out, int runStart, int runLength, int blockSize, SyncResult result)
+            throws IOException {
+        if (runLength > 0) {
+            String line = "C " + runStart + " " + runLength + "\n";
+            out.write(line);
+            result.wireBytes += line.length();
+            result.reusedBytes += (long) runLength * blockSize;
+        }
+    }
+
+    private static void writeLiteral(BufferedWriter out, byte[] data, int from, int to, SyncResult result)
+            throws IOException {
+        String line = "L " + Base64.getEncoder().encodeToString(Arrays.copyOfRange(data, from, to)) + "\n";
+        out.write(line);
+        result.wireBytes += line.length();
+        result.literalBytes += to - from;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static String drain(ConnectionManager connection) throws IOException {
+        String last = null;
+        String line;
+        while (!ConnectionManager.isEndOfResponse(line = connection.readResponse())) {
+            if (!line.trim().isEmpty()) {
+                last = line;
+            }
+        }
+        return last;
+    }
+
+    private static MessageDigest md5() throws IOException {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 not available");
+        }
+    }
+}
@@ -0,0 +1,372 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds running TerminalServers on the local network. Each server sends a
+ * small beacon to a UDP multicast group every few seconds and answers probes
+ * from clients that just started; clients collect the beacons into a table
+ * of live hosts with their load.
+ *
+ * Beacon, big-endian, at most 146 bytes:
+ *   "DT" version(1) type(1=beacon, 2=probe)
+ *   port(u16) sessions(u16) runningJobs(u16) loadAverage*100(u16, 0xFFFF unknown)
+ *   cpus(u8) intervalSeconds(u8) sequence(u32)
+ *   nameLength(u8) name, versionLength(u8) version (UTF-8, 64 bytes each at most)
+ * A probe is only the first four bytes.
+ */
+class Discovery {
+    static final String DEFAULT_GROUP = "239.255.42.99";
+    static final int DEFAULT_PORT = 8889;
+    static final int DEFAULT_INTERVAL_MS = 5000;
+    static final int MIN_INTERVAL_MS = 1000;
+    // A server answers probes at most this often; beacons of one source are kept at most this often
+    static final long MIN_REPLY_INTERVAL_MS = 1000;
+    static final long MIN_SOURCE_INTERVAL_MS = 250;
+    private static final byte FORMAT_VERSION = 1;
+    private static final byte TYPE_BEACON = 1;
+    private static final byte TYPE_PROBE = 2;
+    private static final int HEADER_SIZE = 18;
+    private static final int MAX_TEXT = 64;
+    private static final int MAX_PACKET = HEADER_SIZE + 2 + 2 * MAX_TEXT;
+    private static final int UNKNOWN_LOAD = 0xFFFF;
+
+    private Discovery() {
+    }
+
+    /**
+     * What a server reports about itself
+     */
+    static class Beacon {
+        final String address;
+        final int port;
+        final String name;
+        final String version;
+        final int sessions;
+        final int runningJobs;
+        final double loadAverage; // -1 if unknown
+        final int cpus;
+        final int intervalMs;
+        final long sequence;
+        long receivedAt;
+
+        Beacon(String address, int port, String name, String version, int sessions, int runningJobs,
+                double loadAverage, int cpus, int intervalMs, long sequence) {
+            this.address = address;
+            this.port = port;
+            this.name = name;
+            this.version = version;
+            this.sessions = sessions;
+            this.runningJobs = runningJobs;
+            this.loadAverage = loadAverage;
+            this.cpus = cpus;
+            this.intervalMs = intervalMs;
+            this.sequence = sequence;
+        }
+
+        String key() {
+            return address + ":" + port;
+        }
+
+        /**
+         * Load average per CPU, or -1 if the server does not know it.
+         */
+        double cpuLoad() {
+            return loadAverage < 0 ? -1 : loadAverage / Math.max(1, cpus);
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + key() + " version=" + version + " sessions=" + sessions + " jobs=" + runningJobs + " load="
+                    + (loadAverage < 0 ? "?" : String.format("%.2f", loadAverage)) + "/" + cpus + "cpu";
+        }
+    }
+
+    /**
+     * Current load of the announcing server
+     */
+    interface LoadSource {
+        int sessions();
+
+        int runningJobs();
+    }
+
+    static byte[] encode(Beacon beacon) {
+        byte[] name = truncate(beacon.name);
+        byte[] version = truncate(beacon.version);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 2 + name.length + version.length);
+        buffer.put((byte) 'D').put((byte) 'T').put(FORMAT_VERSION).put(TYPE_BEACON);
+        buffer.putShort((short) beacon.port);
+        buffer.putShort((short) Math.min(beacon.sessions, 0xFFFF));
+        buffer.putShort((short) Math.min(beacon.runningJobs, 0xFFFF));
+        buffer.putShort((short) (beacon.loadAverage < 0 ? UNKNOWN_LOAD
+                : Math.min((int) Math.round(beacon.loadAverage * 100), UNKNOWN_LOAD - 1)));
+        buffer.put((byte) Math.min(beacon.cpus, 255));
+        buffer.put((byte) Math.min(Math.max(1, beacon.intervalMs / 1000), 255));
+        buffer.putInt((int) beacon.sequence);
+        buffer.put((byte) name.length).put(name);
+        buffer.put((byte) version.length).put(version);
+        return buffer.array();
+    }
+
+    /**
+     * Decodes a beacon sent from the given address; returns null for probes
+     * and anything that is not a well-formed beacon.
+     */
+    static Beacon decode(byte[] data, int length, String address) {
+        if (length < HEADER_SIZE + 2 || !isOurs(data, length) || data[3] != TYPE_BEACON) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        buffer.position(4);
+        int port = buffer.getShort() & 0xFFFF;
+        int sessions = buffer.getShort() & 0xFFFF;
+        int runningJobs = buffer.getShort() & 0xFFFF;
+        int load = buffer.getShort() & 0xFFFF;
+        int cpus = buffer.get() & 0xFF;
+        int intervalMs = (buffer.get() & 0xFF) * 1000;
+        long sequence = buffer.getInt() & 0xFFFFFFFFL;
+        String name = readText(buffer);
+        String version = name == null ? null : readText(buffer);
+        if (version == null || port == 0) {
+            return null;
+        }
+        return new Beacon(address, port, name, version, sessions, runningJobs, load == UNKNOWN_LOAD ? -1 : load / 100.0,
+                cpus, intervalMs, sequence);
+    }
+
+    private static boolean isOurs(byte[] data, int length) {
+        return length >= 4 && data[0] == 'D' && data[1] == 'T' && data[2] == FORMAT_VERSION;
+    }
+
+    private static boolean isProbe(byte[] data, int length) {
+        return isOurs(data, length) && data[3] == TYPE_PROBE;
+    }
+
+    private static byte[] truncate(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= MAX_TEXT) {
+            return bytes;
+        }
+        // Cut at a character boundary
+        int end = MAX_TEXT;
+        while (end > 0 && (bytes[end] & 0xC0) == 0x80) {
+            end--;
+        }
+        byte[] cut = new byte[end];
+        System.arraycopy(bytes, 0, cut, 0, end);
+        return cut;
+    }
+
+    private static String readText(ByteBuffer buffer) {
+        if (!buffer.hasRemaining()) {
+            return null;
+        }
+        int length = buffer.get() & 0xFF;
+        if (length > buffer.remaining()) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static MulticastSocket join(String group, int port) throws IOException {
+        MulticastSocket socket = new MulticastSocket(port);
+        // A null interface defers to the socket's default, as joinGroup(InetAddress) did
+        socket.joinGroup(new InetSocketAddress(InetAddress.getByName(group), 0), null);
+        return socket;
+    }
+
+    static double systemLoadAverage() {
+        return ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+    }
+
+    // ----- server side -----
+
+    /**
+     * Sends the server's beacon every interval and when a client probes,
+     * but never more than once per MIN_REPLY_INTERVAL_MS for probes.
+     */
+    static class Announcer {
+        private final String group;
+        private final int discoveryPort;
+        private final int intervalMs;
+        private final int ttl;
+        private final String name;
+        private final String version;
+        private final int serverPort;
+        private final LoadSource load;
+        private long sequence;
+        private volatile boolean running = true;
+        private MulticastSocket socket;
+
+        Announcer(String group, int discoveryPort, int intervalMs, int ttl, String name, String version, int serverPort,
+                LoadSource load) {
+            this.group = group;
+            this.discoveryPort = discoveryPort;
+            this.intervalMs = Math.max(MIN_INTERVAL_MS, intervalMs);
+            this.ttl = ttl;
+            this.name = name;
+            this.version = version;
+            this.serverPort = serverPort;
+            this.load = load;
+        }
+
+        /**
+         * Runs until {@link #stop} is called.
+         */
+        void announce() throws IOException {
+            InetSocketAddress target = new InetSocketAddress(group, discoveryPort);
+            byte[] buffer = new byte[MAX_PACKET];
+            try {
+                socket = join(group, discoveryPort);
+                socket.setTimeToLive(ttl);
+                long nextBeacon = 0;
+                long lastReply = 0;
+                while (running) {
+                    long now = System.currentTimeMillis();
+                    if (now >= nextBeacon) {
+                        send(target);
+                        nextBeacon = now + intervalMs;
+                    }
+                    socket.setSoTimeout((int) Math.max(1, nextBeacon - now));
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    try {
+                        socket.receive(packet);
+                    } catch (SocketTimeoutException e) {
+                        continue;
+                    }
+                    now = System.currentTimeMillis();
+                    if (isProbe(packet.getData(), packet.getLength()) && now - lastReply >= MIN_REPLY_INTERVAL_MS) {
+                        // Several clients starting together get one extra beacon between them
+                        send(target);
+                        lastReply = now;
+                    }
+                }
+            } catch (IOException e) {
+                if (running) {
+                    throw e;
+                }
+            } finally {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+
+        private void send(InetSocketAddress target) throws IOException {
+            Beacon beacon = new Beacon("", serverPort, name, version, load.sessions(), load.runningJobs(),
+                    systemLoadAverage(), Runtime.getRuntime().availableProcessors(), intervalMs, ++sequence);
+            byte[] data = encode(beacon);
+            socket.send(new DatagramPacket(data, data.length, target));
+        }
+
+        void stop() {
+            running = false;
+            if (socket != null) {
+                socket.close();
+            }
+        }
+    }
+
+    // ----- client side -----
+
+    /**
+     * Live servers as last reported by their beacons
+     */
+    static class Table {
+        private final Map<String, Beacon> beacons = new ConcurrentHashMap<String, Beacon>();
+        private final Map<String, Long> lastFromSource = new HashMap<String, Long>();
+
+        /**
+         * Records a beacon unless its source already sent one within
+         * MIN_SOURCE_INTERVAL_MS, which keeps a flooding host from costing
+         * more than a few updates per second. Returns true if it was recorded.
+         */
+        synchronized boolean offer(Beacon beacon, long now) {
+            Long last = lastFromSource.get(beacon.key());
+            if (last != null && now - last < MIN_SOURCE_INTERVAL_MS) {
+                return false;
+            }
+            lastFromSource.put(beacon.key(), now);
+            beacon.receivedAt = now;
+            beacons.put(beacon.key(), beacon);
+            return true;
+        }
+
+        /**
+         * The live beacon of the server at address and port, or null.
+         */
+        Beacon get(String address, int port) {
+            Beacon beacon = beacons.get(address + ":" + port);
+            return beacon != null && isLive(beacon, System.currentTimeMillis()) ? beacon : null;
+        }
+
+        /**
+         * Servers heard from within three of their beacon intervals, by name.
+         */
+        List<Beacon> live() {
+            long now = System.currentTimeMillis();
+            List<Beacon> live = new ArrayList<Beacon>();
+            for (Beacon beacon : beacons.values()) {
+                if (isLive(beacon, now)) {
+                    live.add(beacon);
+                }
+            }
+            Collections.sort(live, new Comparator<Beacon>() {
+                public int compare(Beacon a, Beacon b) {
+                    int byName = a.name.compareTo(b.name);
+                    return byName != 0 ? byName : a.key().compareTo(b.key());
+                }
+            });
+            return live;
+        }
+
+        private static boolean isLive(Beacon beacon, long now) {
+            return now - beacon.receivedAt <= 3L * Math.max(MIN_INTERVAL_MS, beacon.intervalMs);
+        }
+
+        /**
+         * Probes the group and collects beacons for waitMs.
+         */
+        void listen(String group, int port, long waitMs) throws IOException {
+            MulticastSocket socket = join(group, port);
+            try {
+                byte[] probe = { 'D', 'T', FORMAT_VERSION, TYPE_PROBE };
+                socket.send(new DatagramPacket(probe, probe.length, new InetSocketAddress(group, port)));
+                byte[] buffer = new byte[MAX_PACKET];
+                long deadline = System.currentTimeMillis() + waitMs;
+                long now;
+                while ((now = System.currentTimeMillis()) < deadline) {
+                    socket.setSoTimeout((int) Math.max(1, deadline - now));
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    try {
+                        socket.receive(packet);
+                    } catch (SocketTimeoutException e) {
+                        break;
+                    }
+                    Beacon beacon = decode(packet.getData(), packet.getLength(), packet.getAddress().getHostAddress());
+                    if (beacon != null) {
+                        offer(beacon, System.currentTimeMillis());
+                    }
+                }
+            } finally {
+                socket.close();
+            }
+        }
+    }
+}
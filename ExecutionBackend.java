@@ -0,0 +1,124 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses how sessions and I/O pumps are run: one virtual thread per task on
+ * Java 21+, or daemon platform threads otherwise. Virtual threads are looked
+ * up reflectively so the build stays Java 8 compatible.
+ *
+ * The mode comes from the execution.backend config key: "auto" (default,
+ * virtual when available), "virtual" or "platform".
+ *
+ * Locks held across a wait, such as the one serialising -restart, are
+ * ReentrantLocks so a waiting virtual thread can unmount. Session output
+ * still goes through PrintWriter, which synchronizes internally: up to Java
+ * 23 a virtual thread blocked writing to a slow client pins its carrier
+ * until the write completes.
+ */
+class ExecutionBackend {
+    static final String AUTO = "auto";
+    static final String VIRTUAL = "virtual";
+    static final String PLATFORM = "platform";
+
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_FACTORY;
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+    static {
+        Method ofVirtual = null, name = null, factory = null, perTask = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+            perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        } catch (Exception e) {
+            // Before Java 21: platform threads only
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = name;
+        BUILDER_FACTORY = factory;
+        NEW_THREAD_PER_TASK_EXECUTOR = perTask;
+    }
+
+    private final String name;
+    private final boolean virtual;
+    private final ThreadFactory threadFactory;
+
+    private ExecutionBackend(String name, boolean virtual, ThreadFactory threadFactory) {
+        this.name = name;
+        this.virtual = virtual;
+        this.threadFactory = threadFactory;
+    }
+
+    static boolean isVirtualThreadSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Creates a backend for the requested mode; "virtual" quietly falls back
+     * to platform threads on JVMs without virtual threads.
+     */
+    static ExecutionBackend create(String mode, String threadPrefix) {
+        boolean wantVirtual = VIRTUAL.equalsIgnoreCase(mode) || !PLATFORM.equalsIgnoreCase(mode);
+        if (wantVirtual && isVirtualThreadSupported()) {
+            try {
+                Object builder = OF_VIRTUAL.invoke(null);
+                builder = BUILDER_NAME.invoke(builder, threadPrefix + "-", 0L);
+                return new ExecutionBackend(threadPrefix, true, (ThreadFactory) BUILDER_FACTORY.invoke(builder));
+            } catch (Exception e) {
+                // Fall through to platform threads
+            }
+        }
+        return new ExecutionBackend(threadPrefix, false, platformFactory(threadPrefix));
+    }
+
+    boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * An executor starting a new thread per task. Virtual threads are cheap
+     * enough not to pool; platform threads are reused from a cached pool.
+     */
+    ExecutorService newExecutor() {
+        if (virtual) {
+            try {
+                return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, threadFactory);
+            } catch (Exception e) {
+                // Fall through to a platform pool
+            }
+        }
+        return Executors.newCachedThreadPool(virtual ? platformFactory(name) : threadFactory);
+    }
+
+    /**
+     * Starts a single task on its own thread.
+     */
+    Thread start(Runnable task) {
+        Thread thread = threadFactory.newThread(task);
+        thread.start();
+        return thread;
+    }
+
+    @Override
+    public String toString() {
+        return virtual ? "virtual threads" : "platform threads";
+    }
+
+    private static ThreadFactory platformFactory(final String prefix) {
+        final AtomicInteger counter = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + "-" + counter.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+}
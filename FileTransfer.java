@@ -0,0 +1,467 @@
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves files over an open session with FileChannel.transferTo/transferFrom,
+ * so file bytes go between disk and socket without passing through the heap.
+ * Sessions without a socket channel (e.g. TLS) fall back to stream copies.
+ *
+ * Protocol (text lines around a raw byte section):
+ *   put: client "-put &lt;size&gt; &lt;sha256&gt; &lt;path&gt;", server "READY &lt;offset&gt;",
+ *        client sends bytes [offset, size), server "OK ..." or "FAILED ..."
+ *   get: client "-get &lt;path&gt;", server "SIZE &lt;size&gt; &lt;sha256&gt;",
+ *        client "GO &lt;offset&gt;", server sends bytes [offset, size)
+ *
+ * Partial data is kept in "&lt;file&gt;.&lt;sha prefix&gt;.part" so an interrupted
+ * transfer of the same content resumes where it stopped.
+ */
+class FileTransfer {
+    static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+    private static final int HASH_BUFFER = 64 * 1024;
+    // How long a transfer may go without moving a byte, unless the socket has its own read timeout
+    static final long DEFAULT_STALL_TIMEOUT_MS = 120000;
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "transfer-watchdog");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private FileTransfer() {
+    }
+
+    /**
+     * Result of a client side push or pull
+     */
+    static class TransferResult {
+        final HostConfig host;
+        boolean success;
+        String message;
+        long bytes;
+        long resumedFrom;
+        long durationMs;
+
+        TransferResult(HostConfig host) {
+            this.host = host;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + host.hostname + "] " + (success ? "OK" : "FAILED") + " " + message
+                    + " (" + bytes + " bytes" + (resumedFrom > 0 ? ", resumed at " + resumedFrom : "")
+                    + ", " + durationMs + " ms)";
+        }
+    }
+
+    // ----- server side -----
+
+    /**
+     * Handles "-put &lt;size&gt; &lt;sha256&gt; &lt;path&gt;". Returns true when the file was
+     * stored and its checksum matched.
+     */
+    static boolean receive(String args, Socket socket, PrintWriter writer, File root, int chunkSize) throws IOException {
+        String[] parts = args.split("\\s+", 3);
+        if (parts.length < 3) {
+            writer.println("ERROR Usage: -put <size> <sha256> <path>");
+            return false;
+        }
+        long size;
+        try {
+            size = Long.parseLong(parts[0]);
+        } catch (NumberFormatException e) {
+            writer.println("ERROR Invalid size: " + parts[0]);
+            return false;
+        }
+        String sha = parts[1].toLowerCase();
+        File target = resolve(root, parts[2]);
+        if (target == null) {
+            writer.println("ERROR Path outside transfer.rootDir: " + parts[2]);
+            return false;
+        }
+        File parent = target.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            writer.println("ERROR Cannot create directory " + parent);
+            return false;
+        }
+
+        File part = partFile(target, sha);
+        RandomAccessFile file = new RandomAccessFile(part, "rw");
+        long offset;
+        try {
+            // Another session uploading the same content would corrupt the part file
+            FileLock lock;
+            try {
+                lock = file.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                writer.println("ERROR Transfer of " + target + " already in progress");
+                return false;
+            }
+            offset = file.length();
+            if (offset > size) {
+                file.setLength(0);
+                offset = 0;
+            }
+            writer.println("READY " + offset);
+            copyFromSocket(socket, file.getChannel(), offset, size - offset, chunkSize);
+            file.getChannel().truncate(size);
+        } finally {
+            file.close();
+        }
+
+        String actual = sha256(part);
+        if (!actual.equals(sha)) {
+            part.delete();
+            writer.println("FAILED checksum mismatch: expected " + sha + " got " + actual);
+            return false;
+        }
+        if (target.exists() && !target.delete()) {
+            writer.println("FAILED cannot replace " + target);
+            return false;
+        }
+        if (!part.renameTo(target)) {
+            writer.println("FAILED cannot rename " + part + " to " + target);
+            return false;
+        }
+        writer.println("OK " + target + " " + size + " bytes sha256=" + actual + (offset > 0 ? " resumed=" + offset : ""));
+        return true;
+    }
+
+    /**
+     * Handles "-get &lt;path&gt;". The client's "GO &lt;offset&gt;" is read from
+     * {@code reader} so nothing is consumed past it before the raw bytes.
+     */
+    static boolean send(String args, Socket socket, BufferedReader reader, PrintWriter writer, File root, int chunkSize)
+            throws IOException {
+        File source = resolve(root, args.trim());
+        if (source == null || !source.isFile()) {
+            writer.println("ERROR No such file: " + args.trim());
+            return false;
+        }
+        long size = source.length();
+        writer.println("SIZE " + size + " " + sha256(source));
+
+        String go = reader.readLine();
+        if (go == null || !go.startsWith("GO ")) {
+            return false; // Client cancelled
+        }
+        long offset = Long.parseLong(go.substring(3).trim());
+        RandomAccessFile file = new RandomAccessFile(source, "r");
+        try {
+            copyToSocket(file.getChannel(), socket, offset, size - offset, chunkSize);
+        } finally {
+            file.close();
+        }
+        return true;
+    }
+
+    // ----- client side -----
+
+    /**
+     * Uploads {@code local} to {@code remote} over an idle connection.
+     */
+    static TransferResult push(ConnectionManager connection, File local, String sha, String remote) {
+        TransferResult result = new TransferResult(connection.getConfig());
+        long start = System.currentTimeMillis();
+        try {
+            long size = local.length();
+            connection.sendCommand("-put " + size + " " + sha + " " + remote);
+            String reply = connection.readResponse();
+            if (!reply.startsWith("READY ")) {
+                result.message = reply;
+                drain(connection);
+                return result;
+            }
+            result.resumedFrom = Long.parseLong(reply.substring(6).trim());
+            RandomAccessFile file = new RandomAccessFile(local, "r");
+            try {
+                copyToSocket(file.getChannel(), connection.getSocket(), result.resumedFrom, size - result.resumedFrom,
+                        DEFAULT_CHUNK_SIZE);
+            } finally {
+                file.close();
+            }
+            result.bytes = size - result.resumedFrom;
+            String status = drain(connection);
+            result.success = status != null && status.startsWith("OK ");
+            if (status == null) {
+                result.message = "no status from server";
+            } else {
+                // Drop the leading OK/FAILED, toString() reports the outcome
+                result.message = status.substring(status.indexOf(' ') + 1);
+            }
+        } catch (IOException e) {
+            result.message = e.getMessage();
+        } finally {
+            result.durationMs = System.currentTimeMillis() - start;
+        }
+        return result;
+    }
+
+    /**
+     * Downloads {@code remote} to {@code local}, resuming a matching partial
+     * download and verifying the checksum.
+     */
+    static TransferResult pull(ConnectionManager connection, String remote, File local) {
+        TransferResult result = new TransferResult(connection.getConfig());
+        long start = System.currentTimeMillis();
+        try {
+            connection.sendCommand("-get " + remote);
+            String header = connection.readResponse();
+            if (!header.startsWith("SIZE ")) {
+                result.message = header;
+                drain(connection);
+                return result;
+            }
+            String[] parts = header.split("\\s+");
+            long size = Long.parseLong(parts[1]);
+            String sha = parts[2];
+
+            File parent = local.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            File part = partFile(local, sha);
+            long offset = part.exists() && part.length() <= size ? part.length() : 0;
+            result.resumedFrom = offset;
+            connection.sendCommand("GO " + offset);
+
+            RandomAccessFile file = new RandomAccessFile(part, "rw");
+            try {
+                copyFromSocket(connection.getSocket(), file.getChannel(), offset, size - offset, DEFAULT_CHUNK_SIZE);
+                file.getChannel().truncate(size);
+            } finally {
+                file.close();
+            }
+            result.bytes = size - offset;
+            drain(connection);
+
+            String actual = sha256(part);
+            if (!actual.equals(sha)) {
+                part.delete();
+                result.message = "checksum mismatch: expected " + sha + " got " + actual;
+                return result;
+            }
+            if (local.exists()) {
+                local.delete();
+            }
+            if (!part.renameTo(local)) {
+                result.message = "cannot rename " + part + " to " + local;
+                return result;
+            }
+            result.success = true;
+            result.message = local.getPath() + " sha256=" + actual;
+        } catch (IOException e) {
+            result.message = e.getMessage();
+        } finally {
+            result.durationMs = System.currentTimeMillis() - start;
+        }
+        return result;
+    }
+
+    /**
+     * SHA-256 of a file. Streamed rather than memory-mapped: on Windows a
+     * mapping keeps the file locked until it is garbage collected, and
+     * callers rename or delete the file right after.
+     */
+    static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not available");
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[HASH_BUFFER];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return hex(digest.digest());
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    // ----- helpers -----
+
+    private static File partFile(File target, String sha) {
+        return new File(target.getPath() + "." + sha.substring(0, Math.min(12, sha.length())) + ".part");
+    }
+
+    /**
+     * Resolves a client supplied path, keeping it inside {@code root}.
+     * Returns null for paths escaping the root, and for every path when no
+     * root is configured.
+     */
+    static File resolve(File root, String path) throws IOException {
+        if (root == null) {
+            return null;
+        }
+        File file = new File(path).isAbsolute() ? new File(path) : new File(root, path);
+        String canonicalRoot = root.getCanonicalPath() + File.separator;
+        return file.getCanonicalPath().startsWith(canonicalRoot) ? file : null;
+    }
+
+    /**
+     * Reads the rest of a response and returns its last non-empty line.
+     */
+    private static String drain(ConnectionManager connection) throws IOException {
+        String last = null;
+        String line;
+        while (!ConnectionManager.isEndOfResponse(line = connection.readResponse())) {
+            if (!line.trim().isEmpty()) {
+                last = line;
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Closes the socket of a transfer that moves no bytes for a while.
+     * Channel transfers ignore SO_TIMEOUT, and the server's sockets have
+     * none, so without this a stalled peer would hold the session forever.
+     */
+    private static class StallWatchdog {
+        private final Socket socket;
+        private final long timeoutMs;
+        private final ScheduledFuture<?> check;
+        private volatile long progressAt = System.currentTimeMillis();
+        private volatile boolean stalled;
+
+        StallWatchdog(Socket socket) throws IOException {
+            this.socket = socket;
+            this.timeoutMs = socket.getSoTimeout() > 0 ? socket.getSoTimeout() : DEFAULT_STALL_TIMEOUT_MS;
+            long interval = Math.max(100, timeoutMs / 4);
+            check = WATCHDOG.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    if (System.currentTimeMillis() - progressAt > StallWatchdog.this.timeoutMs) {
+                        stalled = true;
+                        try {
+                            StallWatchdog.this.socket.close();
+                        } catch (IOException e) {
+                            // Closing is all that is left to do
+                        }
+                    }
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+
+        void progress() {
+            progressAt = System.currentTimeMillis();
+        }
+
+        /**
+         * The error to report for a failed copy.
+         */
+        IOException failure(IOException e, long position) {
+            return stalled ? new IOException("No data for " + timeoutMs + " ms after " + position
+                    + " bytes; connection closed, transfer can be resumed", e) : e;
+        }
+
+        void stop() {
+            check.cancel(false);
+        }
+    }
+
+    private static void copyToSocket(FileChannel file, Socket socket, long position, long count, int chunkSize)
+            throws IOException {
+        StallWatchdog watchdog = new StallWatchdog(socket);
+        try {
+            SocketChannel channel = socket.getChannel();
+            long end = position + count;
+            if (channel != null) {
+                while (position < end) {
+                    position += file.transferTo(position, Math.min(chunkSize, end - position), channel);
+                    watchdog.progress();
+                }
+                return;
+            }
+            OutputStream out = socket.getOutputStream();
+            ByteBuffer buffer = ByteBuffer.allocate(Math.min(chunkSize, 64 * 1024));
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int read = file.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("File shrank during transfer");
+                }
+                out.write(buffer.array(), 0, read);
+                position += read;
+                watchdog.progress();
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw watchdog.failure(e, position);
+        } finally {
+            watchdog.stop();
+        }
+    }
+
+    private static void copyFromSocket(Socket socket, FileChannel file, long position, long count, int chunkSize)
+            throws IOException {
+        StallWatchdog watchdog = new StallWatchdog(socket);
+        try {
+            SocketChannel channel = socket.getChannel();
+            long end = position + count;
+            if (channel != null) {
+                while (position < end) {
+                    long read = file.transferFrom(channel, position, Math.min(chunkSize, end - position));
+                    if (read <= 0) {
+                        throw new EOFException("Connection closed after " + position + " bytes; transfer can be resumed");
+                    }
+                    position += read;
+                    watchdog.progress();
+                }
+                return;
+            }
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[Math.min(chunkSize, 64 * 1024)];
+            while (position < end) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+                if (read < 0) {
+                    throw new EOFException("Connection closed after " + position + " bytes; transfer can be resumed");
+                }
+                file.write(ByteBuffer.wrap(buffer, 0, read), position);
+                position += read;
+                watchdog.progress();
+            }
+        } catch (IOException e) {
+            throw watchdog.failure(e, position);
+        } finally {
+            watchdog.stop();
+        }
+    }
+}
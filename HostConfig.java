@@ -0,0 +1,51 @@
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Configuration for a remote host connection
+ */
+class HostConfig {
+    private static final int RETRY_COOLDOWN_MS = 5000;
+
+    final String hostname;
+    final int port;
+    final String clientName;
+    final String autoCommand;
+    final List<DeltaSync.SyncEntry> syncEntries;
+    // Values for command templates
+    final Map<String, String> variables;
+    ConnectionState state;
+    long lastAttempt;
+    int retryCount;
+
+    public HostConfig(String hostname, int port, String clientName, String autoCommand) {
+        this(hostname, port, clientName, autoCommand, "");
+    }
+
+    public HostConfig(String hostname, int port, String clientName, String autoCommand, String sync) {
+        this(hostname, port, clientName, autoCommand, sync, new HashMap<String, String>());
+    }
+
+    public HostConfig(String hostname, int port, String clientName, String autoCommand, String sync,
+            Map<String, String> variables) {
+        this.hostname = hostname;
+        this.port = port;
+        this.clientName = clientName;
+        this.autoCommand = autoCommand;
+        this.syncEntries = DeltaSync.parseSpec(sync);
+        this.variables = variables;
+        this.state = ConnectionState.DISCONNECTED;
+        this.lastAttempt = 0;
+        this.retryCount = 0;
+    }
+
+    public boolean canRetry() {
+        return System.currentTimeMillis() - lastAttempt >= RETRY_COOLDOWN_MS;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Host[%s:%d, client=%s]", hostname, port, clientName);
+    }
+}
@@ -0,0 +1,103 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Picks N of a set of hosts for work that can run anywhere, using the load
+ * servers report in their discovery beacons. "two-choices" samples two
+ * candidates at random per pick and keeps the less loaded one, which spreads
+ * several clients' work nearly as well as always taking the least loaded host
+ * without all of them piling onto the same one; "least-loaded" simply sorts.
+ * Hosts without a recent beacon count as busier than any that sent one.
+ */
+class HostPicker {
+    static final String TWO_CHOICES = "two-choices";
+    static final String LEAST_LOADED = "least-loaded";
+    private static final double UNKNOWN = Double.MAX_VALUE;
+
+    private final Discovery.Table stats;
+    private final Random random;
+
+    HostPicker(Discovery.Table stats, Random random) {
+        this.stats = stats;
+        this.random = random;
+    }
+
+    /**
+     * Load score of a host; lower is better. Per-CPU load average counts
+     * most, then running jobs, then open sessions.
+     */
+    double score(HostConfig host) {
+        Discovery.Beacon beacon = beacon(host);
+        if (beacon == null) {
+            return UNKNOWN;
+        }
+        double cpuLoad = Math.max(0, beacon.cpuLoad());
+        return cpuLoad + beacon.runningJobs + 0.25 * beacon.sessions;
+    }
+
+    /**
+     * The live beacon of a host, or null. Beacons are keyed by the address
+     * they came from, so a host configured by name is matched on any of its
+     * addresses.
+     */
+    Discovery.Beacon beacon(HostConfig host) {
+        Discovery.Beacon beacon = stats.get(host.hostname, host.port);
+        if (beacon != null) {
+            return beacon;
+        }
+        try {
+            for (InetAddress address : ConnectionManager.resolve(host.hostname)) {
+                beacon = stats.get(address.getHostAddress(), host.port);
+                if (beacon != null) {
+                    return beacon;
+                }
+            }
+        } catch (UnknownHostException e) {
+            // No beacon then
+        }
+        return null;
+    }
+
+    /**
+     * Up to n distinct hosts, in the order they were picked.
+     */
+    List<HostConfig> pick(List<HostConfig> candidates, int n, String strategy) {
+        if (!TWO_CHOICES.equals(strategy) && !LEAST_LOADED.equals(strategy)) {
+            throw new IllegalArgumentException("Unknown strategy " + strategy + " (" + TWO_CHOICES + " or "
+                    + LEAST_LOADED + ")");
+        }
+        List<HostConfig> remaining = new ArrayList<HostConfig>(candidates);
+        // Shuffle first so equal scores do not always favour the first configured hosts
+        Collections.shuffle(remaining, random);
+        List<HostConfig> picked = new ArrayList<HostConfig>();
+        if (LEAST_LOADED.equals(strategy)) {
+            Collections.sort(remaining, new Comparator<HostConfig>() {
+                public int compare(HostConfig a, HostConfig b) {
+                    return Double.compare(score(a), score(b));
+                }
+            });
+            picked.addAll(remaining.subList(0, Math.min(n, remaining.size())));
+            return picked;
+        }
+        while (picked.size() < n && !remaining.isEmpty()) {
+            int first = random.nextInt(remaining.size());
+            int chosen = first;
+            if (remaining.size() > 1) {
+                int second = random.nextInt(remaining.size() - 1);
+                if (second >= first) {
+                    second++;
+                }
+                if (score(remaining.get(second)) < score(remaining.get(first))) {
+                    chosen = second;
+                }
+            }
+            picked.add(remaining.remove(chosen));
+        }
+        return picked;
+    }
+}
@@ -0,0 +1,372 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Hosts of the client with their groups and tags, indexed so a selection
+ * like "group:store5,tag:lane1" is a few map lookups however large the fleet.
+ *
+ * Besides host.N.* entries, hosts can come from inventory.file (a CSV file)
+ * or inventory.dir (every *.csv file in it, each file name also being a
+ * group). CSV files start with a header naming their columns: ip, port,
+ * clientName, groups, tags, autoCommand, sync and var.&lt;name&gt; columns for
+ * template variables. Groups and tags are separated by spaces, "," or "|", and
+ * an ip like 10.1.2.0/28 stands for every host address of that range. Files are
+ * read a line at a time, so only the hosts themselves are kept in memory. All
+ * sources are read eagerly when the config is loaded; a selection only narrows
+ * the hosts already read.
+ */
+class Inventory {
+    static final int MAX_RANGE_PREFIX = 16;
+
+    /**
+     * One host as read from the config or a CSV row
+     */
+    static class Entry {
+        String hostname = "";
+        int port = -1;
+        String clientName = "";
+        String autoCommand = "";
+        String sync = "";
+        List<String> groups = new ArrayList<String>();
+        List<String> tags = new ArrayList<String>();
+        Map<String, String> variables = new HashMap<String, String>();
+    }
+
+    /**
+     * Receives the entries of a file as they are read
+     */
+    interface EntryHandler {
+        void entry(Entry entry);
+    }
+
+    private final List<HostConfig> hosts = new ArrayList<HostConfig>();
+    private final Map<String, List<HostConfig>> byGroup = new HashMap<String, List<HostConfig>>();
+    private final Map<String, List<HostConfig>> byTag = new HashMap<String, List<HostConfig>>();
+    private final Map<String, List<HostConfig>> byName = new HashMap<String, List<HostConfig>>();
+
+    void add(HostConfig host, List<String> groups, List<String> tags) {
+        hosts.add(host);
+        for (String group : groups) {
+            index(byGroup, group, host);
+        }
+        for (String tag : tags) {
+            index(byTag, tag, host);
+        }
+        index(byName, host.hostname, host);
+        if (!host.clientName.isEmpty()) {
+            index(byName, host.clientName, host);
+        }
+    }
+
+    private static void index(Map<String, List<HostConfig>> map, String key, HostConfig host) {
+        List<HostConfig> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<HostConfig>();
+            map.put(key, list);
+        }
+        list.add(host);
+    }
+
+    void clear() {
+        hosts.clear();
+        byGroup.clear();
+        byTag.clear();
+        byName.clear();
+    }
+
+    List<HostConfig> hosts() {
+        return Collections.unmodifiableList(hosts);
+    }
+
+    Set<String> groupNames() {
+        return new TreeSet<String>(byGroup.keySet());
+    }
+
+    Set<String> tagNames() {
+        return new TreeSet<String>(byTag.keySet());
+    }
+
+    /**
+     * Hosts matching a selection, in inventory order. Terms separated by ","
+     * are combined, terms joined by "+" must all match. A term is "all", a
+     * 1-based host number, "group:&lt;name&gt;", "tag:&lt;name&gt;", a CIDR
+     * range, or a host name or client name.
+     */
+    List<HostConfig> select(String expression) {
+        Set<HostConfig> selected = new LinkedHashSet<HostConfig>();
+        for (String alternative : expression.split(",")) {
+            if (alternative.trim().isEmpty()) {
+                continue;
+            }
+            Set<HostConfig> matches = null;
+            for (String term : alternative.split("\\+")) {
+                Set<HostConfig> termMatches = new LinkedHashSet<HostConfig>(match(term.trim()));
+                if (matches == null) {
+                    matches = termMatches;
+                } else {
+                    matches.retainAll(termMatches);
+                }
+            }
+            selected.addAll(matches);
+        }
+        // Keep inventory order whatever the order of the terms
+        List<HostConfig> ordered = new ArrayList<HostConfig>();
+        for (HostConfig host : hosts) {
+            if (selected.contains(host)) {
+                ordered.add(host);
+            }
+        }
+        return ordered;
+    }
+
+    private List<HostConfig> match(String term) {
+        if ("all".equalsIgnoreCase(term)) {
+            return hosts;
+        }
+        if (term.startsWith("group:")) {
+            return lookup(byGroup, term.substring(6), "group");
+        }
+        if (term.startsWith("tag:")) {
+            return lookup(byTag, term.substring(4), "tag");
+        }
+        if (term.matches("\\d+")) {
+            int index = Integer.parseInt(term) - 1;
+            if (index < 0 || index >= hosts.size()) {
+                throw new IllegalArgumentException("Invalid host number " + term);
+            }
+            return Collections.singletonList(hosts.get(index));
+        }
+        if (term.indexOf('/') > 0) {
+            long[] range = parseRange(term);
+            List<HostConfig> inRange = new ArrayList<HostConfig>();
+            for (HostConfig host : hosts) {
+                long address = parseIpv4(host.hostname);
+                if (address >= range[0] && address <= range[1]) {
+                    inRange.add(host);
+                }
+            }
+            return inRange;
+        }
+        return lookup(byName, term, "host");
+    }
+
+    private static List<HostConfig> lookup(Map<String, List<HostConfig>> map, String key, String kind) {
+        List<HostConfig> list = map.get(key);
+        if (list == null) {
+            throw new IllegalArgumentException("No " + kind + " named " + key);
+        }
+        return list;
+    }
+
+    // ----- reading -----
+
+    /**
+     * Reads a CSV file, or every *.csv file of a directory in name order.
+     */
+    static void read(File source, EntryHandler handler) throws IOException {
+        if (source.isDirectory()) {
+            File[] files = source.listFiles();
+            if (files == null) {
+                throw new IOException("Cannot list " + source);
+            }
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.isFile() && file.getName().endsWith(".csv")) {
+                    readCsv(file, file.getName().substring(0, file.getName().length() - 4), handler);
+                }
+            }
+        } else {
+            readCsv(source, null, handler);
+        }
+    }
+
+    private static void readCsv(File file, String fileGroup, EntryHandler handler) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            List<String> header = null;
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+                    continue;
+                }
+                List<String> fields = splitCsv(line);
+                if (header == null) {
+                    header = new ArrayList<String>();
+                    for (String column : fields) {
+                        header.add(column.trim());
+                    }
+                    if (!header.contains("ip")) {
+                        throw new IOException(file + ": header has no ip column");
+                    }
+                    continue;
+                }
+                Entry entry = new Entry();
+                if (fileGroup != null) {
+                    entry.groups.add(fileGroup);
+                }
+                for (int i = 0; i < header.size() && i < fields.size(); i++) {
+                    set(entry, header.get(i), fields.get(i).trim());
+                }
+                if (entry.hostname.isEmpty()) {
+                    throw new IOException(file + ":" + lineNumber + ": no ip");
+                }
+                if (entry.hostname.indexOf('/') > 0) {
+                    expandRange(entry, handler);
+                } else {
+                    handler.entry(entry);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException(file + ": " + e.getMessage());
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void set(Entry entry, String column, String value) {
+        if ("ip".equals(column)) {
+            entry.hostname = value;
+        } else if ("port".equals(column)) {
+            entry.port = value.isEmpty() ? -1 : Integer.parseInt(value);
+        } else if ("clientName".equals(column)) {
+            entry.clientName = value;
+        } else if ("groups".equals(column)) {
+            entry.groups.addAll(splitNames(value));
+        } else if ("tags".equals(column)) {
+            entry.tags.addAll(splitNames(value));
+        } else if ("autoCommand".equals(column)) {
+            entry.autoCommand = value;
+        } else if ("sync".equals(column)) {
+            entry.sync = value;
+        } else if (column.startsWith(CommandTemplate.VAR_PREFIX) && !value.isEmpty()) {
+            entry.variables.put(column.substring(CommandTemplate.VAR_PREFIX.length()), value);
+        }
+    }
+
+    static List<String> splitNames(String value) {
+        List<String> names = new ArrayList<String>();
+        for (String name : value.split("[\\s|,]+")) {
+            if (!name.isEmpty()) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Splits a CSV line; fields may be quoted, with "" for a quote.
+     */
+    static List<String> splitCsv(String line) {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    /**
+     * One entry per host address of the row's range; the network and
+     * broadcast addresses are skipped for ranges larger than /31.
+     */
+    private static void expandRange(Entry row, EntryHandler handler) {
+        long[] range = parseRange(row.hostname);
+        long first = range[0];
+        long last = range[1];
+        if (last - first > 1) {
+            first++;
+            last--;
+        }
+        for (long address = first; address <= last; address++) {
+            Entry entry = new Entry();
+            entry.hostname = formatIpv4(address);
+            entry.port = row.port;
+            entry.clientName = row.clientName.isEmpty() ? "" : row.clientName + " " + entry.hostname;
+            entry.autoCommand = row.autoCommand;
+            entry.sync = row.sync;
+            entry.groups = row.groups;
+            entry.tags = row.tags;
+            entry.variables = row.variables;
+            handler.entry(entry);
+        }
+    }
+
+    /**
+     * First and last address of an IPv4 CIDR range.
+     */
+    static long[] parseRange(String cidr) {
+        int slash = cidr.indexOf('/');
+        long base = parseIpv4(cidr.substring(0, slash));
+        int prefix;
+        try {
+            prefix = Integer.parseInt(cidr.substring(slash + 1));
+        } catch (NumberFormatException e) {
+            prefix = -1;
+        }
+        if (base < 0 || prefix < MAX_RANGE_PREFIX || prefix > 32) {
+            throw new IllegalArgumentException("Invalid range " + cidr + " (IPv4, /" + MAX_RANGE_PREFIX + " to /32)");
+        }
+        long size = 1L << (32 - prefix);
+        long first = base & ~(size - 1) & 0xFFFFFFFFL;
+        return new long[] { first, first + size - 1 };
+    }
+
+    /**
+     * The address as a number, or -1 if it is not a dotted IPv4 address.
+     */
+    static long parseIpv4(String text) {
+        String[] parts = text.split("\\.");
+        if (parts.length != 4) {
+            return -1;
+        }
+        long value = 0;
+        for (String part : parts) {
+            if (!part.matches("\\d{1,3}")) {
+                return -1;
+            }
+            int octet = Integer.parseInt(part);
+            if (octet > 255) {
+                return -1;
+            }
+            value = value << 8 | octet;
+        }
+        return value;
+    }
+
+    static String formatIpv4(long value) {
+        return (value >> 24 & 0xFF) + "." + (value >> 16 & 0xFF) + "." + (value >> 8 & 0xFF) + "." + (value & 0xFF);
+    }
+}
@@ -0,0 +1,240 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background jobs of a TerminalServer. A job runs detached from the session
+ * that started it: its output is pumped into an {@link OutputRing} and the
+ * job stays in the table after its client disconnects, so any later session
+ * can list it, attach to its output or cancel it.
+ */
+class JobManager {
+    static final int DEFAULT_RETAIN = 50;
+
+    enum JobState {
+        RUNNING,
+        EXITED,
+        CANCELLED,
+        FAILED
+    }
+
+    /**
+     * One background job and its output
+     */
+    static class Job {
+        final String id;
+        final String command;
+        final String owner;
+        final long startedAt;
+        final OutputRing output;
+        final Process process;
+        final long pid;
+        final boolean processGroup;
+        volatile JobState state = JobState.RUNNING;
+        volatile int exitCode;
+        volatile long endedAt;
+
+        Job(String id, String command, String owner, OutputRing output, Process process, boolean processGroup) {
+            this.id = id;
+            this.command = command;
+            this.owner = owner;
+            this.startedAt = System.currentTimeMillis();
+            this.output = output;
+            this.process = process;
+            this.pid = ProcessControl.pidOf(process);
+            this.processGroup = processGroup && pid > 0;
+        }
+
+        boolean isRunning() {
+            return state == JobState.RUNNING;
+        }
+
+        @Override
+        public String toString() {
+            long elapsed = (endedAt > 0 ? endedAt : System.currentTimeMillis()) - startedAt;
+            String result = state == JobState.RUNNING ? "RUNNING" : state + " exit=" + exitCode;
+            return id + " " + result + " pid=" + pid + " owner=" + owner + " elapsed=" + elapsed / 1000 + "s output="
+                    + output.total() + "B " + command;
+        }
+    }
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<String, Job>();
+    private final ExecutionBackend backend;
+    private final int retain;
+
+    JobManager(ExecutionBackend backend, int retain) {
+        this.backend = backend;
+        this.retain = Math.max(1, retain);
+    }
+
+    /**
+     * Builds the process for a detached job. On Unix the job gets its own
+     * session (setsid) so cancelling it reaches everything it spawned, and
+     * with pty set it runs on a pseudo terminal for scripts that need one.
+     * resources, if not null, sets its priority and limits.
+     */
+    static ProcessBuilder processFor(String command, boolean pty, ResourceClass resources) {
+        List<String> commandLine = new ArrayList<String>();
+        if (System.getProperty("os.name").toLowerCase().contains("win")) {
+            commandLine.addAll(Arrays.asList("cmd", "/c", command));
+        } else {
+            if (new File("/usr/bin/setsid").exists()) {
+                commandLine.add("/usr/bin/setsid");
+            }
+            if (resources != null) {
+                commandLine.addAll(resources.prefix());
+            }
+            if (pty && PtySession.isAvailable()) {
+                commandLine.addAll(PtySession.wrap(command));
+            } else {
+                commandLine.addAll(Arrays.asList("/bin/sh", "-c", command));
+            }
+        }
+        ProcessBuilder pb = new ProcessBuilder(commandLine);
+        pb.redirectErrorStream(true);
+        pb.redirectInput(ProcessBuilder.Redirect.from(new File(
+                System.getProperty("os.name").toLowerCase().contains("win") ? "NUL" : "/dev/null")));
+        return pb;
+    }
+
+    /**
+     * Starts a command as a background job writing into the given ring.
+     * resources and onExit may be null; onExit runs once the job has ended.
+     */
+    Job start(String id, String command, String owner, OutputRing output, boolean pty, ResourceClass resources,
+            final Runnable onExit) throws IOException {
+        ProcessBuilder pb = processFor(command, pty, resources);
+        Process process = pb.start();
+        final Job job = new Job(id, command, owner, output, process, "/usr/bin/setsid".equals(pb.command().get(0)));
+        jobs.put(id, job);
+        backend.start(new Runnable() {
+            public void run() {
+                try {
+                    pump(job);
+                } finally {
+                    if (onExit != null) {
+                        onExit.run();
+                    }
+                }
+            }
+        });
+        prune();
+        return job;
+    }
+
+    Job get(String id) {
+        return id == null ? null : jobs.get(id);
+    }
+
+    /**
+     * All known jobs, oldest first.
+     */
+    List<Job> list() {
+        List<Job> list = new ArrayList<Job>(jobs.values());
+        Collections.sort(list, new Comparator<Job>() {
+            public int compare(Job a, Job b) {
+                return Long.compare(a.startedAt, b.startedAt);
+            }
+        });
+        return list;
+    }
+
+    int runningCount() {
+        int running = 0;
+        for (Job job : jobs.values()) {
+            if (job.isRunning()) {
+                running++;
+            }
+        }
+        return running;
+    }
+
+    /**
+     * Terminates a running job, its whole process group where possible.
+     */
+    ProcessControl.KillResult cancel(Job job, long gracePeriodMs) {
+        job.state = JobState.CANCELLED;
+        ProcessControl.KillResult result = job.processGroup
+                ? ProcessControl.terminateGroup(job.pid, job.command, gracePeriodMs)
+                : destroy(job, gracePeriodMs);
+        if (result.outcome == ProcessControl.Outcome.FAILED && job.process.isAlive()) {
+            job.state = JobState.RUNNING;
+        }
+        return result;
+    }
+
+    private static ProcessControl.KillResult destroy(Job job, long gracePeriodMs) {
+        ProcessControl.ProcessEntry entry = new ProcessControl.ProcessEntry(job.pid, job.command);
+        job.process.destroy();
+        try {
+            if (waitFor(job.process, gracePeriodMs)) {
+                return new ProcessControl.KillResult(entry, ProcessControl.Outcome.TERMINATED, null);
+            }
+            job.process.destroyForcibly();
+            if (waitFor(job.process, gracePeriodMs)) {
+                return new ProcessControl.KillResult(entry, ProcessControl.Outcome.FORCED, null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return new ProcessControl.KillResult(entry, ProcessControl.Outcome.FAILED, "still running");
+    }
+
+    private static boolean waitFor(Process process, long timeoutMs) throws InterruptedException {
+        return process.waitFor(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void pump(Job job) {
+        byte[] chunk = new byte[8192];
+        InputStream in = job.process.getInputStream();
+        try {
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                job.output.write(chunk, 0, read);
+            }
+        } catch (IOException e) {
+            // The stream closes when the process is killed
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Ignore close errors
+            }
+        }
+        try {
+            job.exitCode = job.process.waitFor();
+            if (job.state == JobState.RUNNING) {
+                job.state = job.exitCode == 0 ? JobState.EXITED : JobState.FAILED;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.state = JobState.FAILED;
+        }
+        job.endedAt = System.currentTimeMillis();
+        job.output.finish(job.exitCode);
+    }
+
+    /**
+     * Forgets the oldest finished jobs beyond the retain limit. Their output
+     * rings stay on disk for -tail and -seek.
+     */
+    private void prune() {
+        List<Job> finished = new ArrayList<Job>();
+        for (Job job : list()) {
+            if (!job.isRunning()) {
+                finished.add(job);
+            }
+        }
+        for (int i = 0; i < finished.size() - retain; i++) {
+            jobs.remove(finished.get(i).id);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Set;
+
+/**
+ * Fixed-size circular file, memory-mapped, that keeps the most recent output
+ * of one job. Readers address output by its absolute offset in the stream, so
+ * tail and seek cost the same no matter how much the job has written, and
+ * nothing but the mapping is held in memory.
+ *
+ * Layout: a 32 byte header (magic, capacity, total bytes written, finished
+ * flag, exit code) followed by the capacity bytes of ring data.
+ */
+class OutputRing {
+    static final int DEFAULT_CAPACITY = 1024 * 1024;
+    static final String SUFFIX = ".ring";
+    private static final int MAGIC = 0x44545242; // "DTRB"
+    private static final int HEADER_SIZE = 32;
+    private static final int TOTAL_OFFSET = 8;
+    private static final int FINISHED_OFFSET = 16;
+    private static final int EXIT_CODE_OFFSET = 20;
+
+    private final String id;
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+
+    /**
+     * A window of output: bytes [start, end) of the stream
+     */
+    static class Slice {
+        final long start;
+        final byte[] data;
+        final long total;
+        final boolean finished;
+        final int exitCode;
+
+        Slice(long start, byte[] data, long total, boolean finished, int exitCode) {
+            this.start = start;
+            this.data = data;
+            this.total = total;
+            this.finished = finished;
+            this.exitCode = exitCode;
+        }
+
+        long end() {
+            return start + data.length;
+        }
+
+        /**
+         * Header line sent before the data, e.g. for clients following a job.
+         */
+        String describe(String id) {
+            return "JOB " + id + " from=" + start + " to=" + end() + " total=" + total + " state="
+                    + (finished ? "exit " + exitCode : "running");
+        }
+    }
+
+    private OutputRing(String id, RandomAccessFile file, MappedByteBuffer buffer, int capacity) {
+        this.id = id;
+        this.file = file;
+        this.buffer = buffer;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Creates (or truncates) the ring file for a job.
+     */
+    static OutputRing create(File dir, String id, int capacity) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        RandomAccessFile raf = new RandomAccessFile(new File(dir, id + SUFFIX), "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(HEADER_SIZE + (long) capacity);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, capacity);
+            buffer.putLong(TOTAL_OFFSET, 0);
+            buffer.putInt(FINISHED_OFFSET, 0);
+            buffer.putInt(EXIT_CODE_OFFSET, 0);
+            return new OutputRing(id, raf, buffer, capacity);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the ring file of an earlier job, e.g. after a server restart.
+     * Returns null if there is none.
+     */
+    static OutputRing open(File dir, String id) throws IOException {
+        File ringFile = new File(dir, id + SUFFIX);
+        if (!ringFile.isFile() || ringFile.length() < HEADER_SIZE) {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(ringFile, "rw");
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            int capacity = buffer.getInt(4);
+            if (buffer.getInt(0) != MAGIC || HEADER_SIZE + (long) capacity != raf.length()) {
+                throw new IOException("Not an output ring: " + ringFile);
+            }
+            return new OutputRing(id, raf, buffer, capacity);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    String getId() {
+        return id;
+    }
+
+    synchronized long total() {
+        return buffer.getLong(TOTAL_OFFSET);
+    }
+
+    synchronized boolean isFinished() {
+        return buffer.getInt(FINISHED_OFFSET) != 0;
+    }
+
+    /**
+     * Appends output, overwriting the oldest bytes once the ring is full.
+     */
+    synchronized void write(byte[] data, int offset, int length) {
+        long total = buffer.getLong(TOTAL_OFFSET);
+        if (length > capacity) {
+            // Only the last capacity bytes can survive anyway
+            total += length - capacity;
+            offset += length - capacity;
+            length = capacity;
+        }
+        ByteBuffer view = buffer.duplicate();
+        int position = (int) (total % capacity);
+        int first = Math.min(length, capacity - position);
+        view.position(HEADER_SIZE + position);
+        view.put(data, offset, first);
+        if (first < length) {
+            view.position(HEADER_SIZE);
+            view.put(data, offset + first, length - first);
+        }
+        buffer.putLong(TOTAL_OFFSET, total + length);
+    }
+
+    synchronized void finish(int exitCode) {
+        buffer.putInt(EXIT_CODE_OFFSET, exitCode);
+        buffer.putInt(FINISHED_OFFSET, 1);
+    }
+
+    /**
+     * Reads up to max bytes starting at an absolute stream offset. Offsets
+     * that were already overwritten start at the oldest byte still kept.
+     */
+    synchronized Slice read(long offset, int max) {
+        long total = buffer.getLong(TOTAL_OFFSET);
+        long oldest = Math.max(0, total - capacity);
+        long start = Math.max(oldest, Math.min(offset, total));
+        int length = (int) Math.min(Math.max(0, max), total - start);
+        byte[] data = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        int position = (int) (start % capacity);
+        int first = Math.min(length, capacity - position);
+        view.position(HEADER_SIZE + position);
+        view.get(data, 0, first);
+        if (first < length) {
+            view.position(HEADER_SIZE);
+            view.get(data, first, length - first);
+        }
+        return new Slice(start, data, total, buffer.getInt(FINISHED_OFFSET) != 0, buffer.getInt(EXIT_CODE_OFFSET));
+    }
+
+    /**
+     * The last max bytes of output.
+     */
+    synchronized Slice tail(int max) {
+        return read(total() - max, max);
+    }
+
+    void close() {
+        try {
+            buffer.force();
+            file.close();
+        } catch (IOException e) {
+            // The mapping stays valid until it is collected
+        }
+    }
+
+    /**
+     * Job ids become file names, so only plain names are accepted.
+     */
+    static boolean isValidId(String id) {
+        return id != null && id.matches("[A-Za-z0-9_-]{1,64}");
+    }
+
+    /**
+     * Deletes the oldest ring files beyond the keep limit. Rings whose id is
+     * in inUse are never deleted, even if that leaves more than keep files.
+     */
+    static void prune(File dir, int keep, Set<String> inUse) {
+        File[] files = dir.listFiles();
+        if (files == null || files.length <= keep) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        int excess = files.length - keep;
+        for (File f : files) {
+            if (excess <= 0) {
+                break;
+            }
+            String name = f.getName();
+            if (name.endsWith(SUFFIX) && !inUse.contains(name.substring(0, name.length() - SUFFIX.length()))
+                    && f.delete()) {
+                excess--;
+            }
+        }
+    }
+}
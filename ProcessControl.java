@@ -0,0 +1,449 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Finds and terminates local processes by command line without shelling out
+ * to ps/grep/awk. On Java 9+ this goes through ProcessHandle (looked up
+ * reflectively so the build stays Java 8 compatible); older JVMs on Linux
+ * fall back to reading /proc and signalling with kill.
+ */
+class ProcessControl {
+    static final String DEFAULT_PATTERN = "java";
+    static final String DEFAULT_EXCLUDE = "TerminalServer.jar";
+    static final long DEFAULT_GRACE_PERIOD_MS = 3000;
+    private static final int MAX_PARALLEL_KILLS = 8;
+    private static final long FORCED_WAIT_MS = 2000;
+
+    private static final Method ALL_PROCESSES;
+    private static final Method PID;
+    private static final Method INFO;
+    private static final Method COMMAND_LINE;
+    private static final Method COMMAND;
+    private static final Method DESTROY;
+    private static final Method DESTROY_FORCIBLY;
+    private static final Method IS_ALIVE;
+    private static final Method ON_EXIT;
+    private static final Method OF;
+
+    static {
+        Method allProcesses = null, pid = null, info = null, commandLine = null, command = null;
+        Method destroy = null, destroyForcibly = null, isAlive = null, onExit = null, of = null;
+        try {
+            Class<?> handle = Class.forName("java.lang.ProcessHandle");
+            Class<?> handleInfo = Class.forName("java.lang.ProcessHandle$Info");
+            allProcesses = handle.getMethod("allProcesses");
+            pid = handle.getMethod("pid");
+            info = handle.getMethod("info");
+            commandLine = handleInfo.getMethod("commandLine");
+            command = handleInfo.getMethod("command");
+            destroy = handle.getMethod("destroy");
+            destroyForcibly = handle.getMethod("destroyForcibly");
+            isAlive = handle.getMethod("isAlive");
+            onExit = handle.getMethod("onExit");
+            of = handle.getMethod("of", long.class);
+        } catch (Exception e) {
+            // Java 8: ProcessHandle is not available, use the /proc fallback
+            allProcesses = null;
+        }
+        ALL_PROCESSES = allProcesses;
+        PID = pid;
+        INFO = info;
+        COMMAND_LINE = commandLine;
+        COMMAND = command;
+        DESTROY = destroy;
+        DESTROY_FORCIBLY = destroyForcibly;
+        IS_ALIVE = isAlive;
+        ON_EXIT = onExit;
+        OF = of;
+    }
+
+    /**
+     * A running process matched by {@link #find}.
+     */
+    static class ProcessEntry {
+        final long pid;
+        final String commandLine;
+
+        ProcessEntry(long pid, String commandLine) {
+            this.pid = pid;
+            this.commandLine = commandLine;
+        }
+
+        @Override
+        public String toString() {
+            return pid + " " + commandLine;
+        }
+    }
+
+    /**
+     * Outcome of terminating a single process.
+     */
+    enum Outcome {
+        TERMINATED,
+        FORCED,
+        FAILED
+    }
+
+    static class KillResult {
+        final ProcessEntry process;
+        final Outcome outcome;
+        final String detail;
+
+        KillResult(ProcessEntry process, Outcome outcome, String detail) {
+            this.process = process;
+            this.outcome = outcome;
+            this.detail = detail;
+        }
+
+        @Override
+        public String toString() {
+            String text = outcome + " PID " + process.pid + ": " + process.commandLine;
+            return detail == null ? text : text + " (" + detail + ")";
+        }
+    }
+
+    static boolean isProcessHandleAvailable() {
+        return ALL_PROCESSES != null;
+    }
+
+    /**
+     * Lists processes whose command line contains {@code pattern} and none of
+     * {@code excludes}. The current JVM is never returned.
+     */
+    static List<ProcessEntry> find(String pattern, List<String> excludes) throws IOException {
+        List<ProcessEntry> all = isProcessHandleAvailable() ? listWithProcessHandle() : listWithProcFs();
+        long self = currentPid();
+        List<ProcessEntry> matches = new ArrayList<ProcessEntry>();
+        for (ProcessEntry entry : all) {
+            if (entry.pid == self || !entry.commandLine.contains(pattern)) {
+                continue;
+            }
+            boolean excluded = false;
+            for (String exclude : excludes) {
+                if (entry.commandLine.contains(exclude)) {
+                    excluded = true;
+                    break;
+                }
+            }
+            if (!excluded) {
+                matches.add(entry);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Terminates all targets in parallel: a graceful signal first, then a
+     * forced kill for anything still alive after {@code gracePeriodMs}.
+     */
+    static List<KillResult> terminate(List<ProcessEntry> targets, final long gracePeriodMs) {
+        List<KillResult> results = new ArrayList<KillResult>();
+        if (targets.isEmpty()) {
+            return results;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(targets.size(), MAX_PARALLEL_KILLS), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "process-control");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            List<Future<KillResult>> futures = new ArrayList<Future<KillResult>>();
+            for (final ProcessEntry target : targets) {
+                futures.add(pool.submit(() -> terminateOne(target, gracePeriodMs)));
+            }
+            Iterator<ProcessEntry> it = targets.iterator();
+            for (Future<KillResult> future : futures) {
+                ProcessEntry target = it.next();
+                try {
+                    results.add(future.get());
+                } catch (Exception e) {
+                    results.add(new KillResult(target, Outcome.FAILED, e.getMessage()));
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return results;
+    }
+
+    static List<KillResult> killMatching(String pattern, List<String> excludes, long gracePeriodMs) throws IOException {
+        return terminate(find(pattern, excludes), gracePeriodMs);
+    }
+
+    /**
+     * Returns true while the given PID is still running.
+     */
+    static boolean isAlive(long pid) {
+        if (isProcessHandleAvailable()) {
+            try {
+                Optional<?> handle = (Optional<?>) OF.invoke(null, pid);
+                return handle.isPresent() && (Boolean) IS_ALIVE.invoke(handle.get());
+            } catch (Exception e) {
+                return false;
+            }
+        }
+        return new File("/proc/" + pid).exists();
+    }
+
+    /**
+     * PID of a child process, or -1 if it cannot be determined. Java 8 only
+     * exposes it through the private pid field of UNIXProcess.
+     */
+    static long pidOf(Process process) {
+        try {
+            Method pid = Process.class.getMethod("pid");
+            return (Long) pid.invoke(process);
+        } catch (Exception e) {
+            // Java 8 has no Process.pid()
+        }
+        try {
+            Field pid = process.getClass().getDeclaredField("pid");
+            pid.setAccessible(true);
+            return pid.getInt(process);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Terminates a whole process group, e.g. a job started with setsid and
+     * everything it spawned: SIGTERM first, SIGKILL after the grace period.
+     */
+    static KillResult terminateGroup(long pgid, String description, long gracePeriodMs) {
+        ProcessEntry target = new ProcessEntry(pgid, description);
+        try {
+            signal(pgid, "-TERM", true);
+            if (awaitGroupExit(pgid, gracePeriodMs)) {
+                return new KillResult(target, Outcome.TERMINATED, null);
+            }
+            signal(pgid, "-KILL", true);
+            if (awaitGroupExit(pgid, FORCED_WAIT_MS)) {
+                return new KillResult(target, Outcome.FORCED, null);
+            }
+            return new KillResult(target, Outcome.FAILED, "still running");
+        } catch (Exception e) {
+            return new KillResult(target, Outcome.FAILED, e.getMessage());
+        }
+    }
+
+    static long currentPid() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        try {
+            return Long.parseLong(name.substring(0, name.indexOf('@')));
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Session ID of a process from /proc/&lt;pid&gt;/stat, or -1 without /proc
+     * or once the process is gone. A process started through setsid leads its
+     * own session, and everything it spawns stays in it.
+     */
+    static long sessionOf(long pid) {
+        String stat = readProcFile(new File("/proc/" + pid + "/stat"));
+        // pid (comm) state ppid pgrp session ...; comm may itself contain spaces and ')'
+        int close = stat == null ? -1 : stat.lastIndexOf(')');
+        if (close < 0) {
+            return -1;
+        }
+        String[] fields = stat.substring(close + 1).trim().split("\\s+");
+        try {
+            return fields.length > 3 ? Long.parseLong(fields[3]) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Formats a result list as the lines sent back to a client.
+     */
+    static List<String> describe(List<KillResult> results) {
+        List<String> lines = new ArrayList<String>();
+        int terminated = 0, forced = 0, failed = 0;
+        for (KillResult result : results) {
+            lines.add(result.toString());
+            switch (result.outcome) {
+                case TERMINATED: terminated++; break;
+                case FORCED: forced++; break;
+                default: failed++; break;
+            }
+        }
+        lines.add("Killed " + (terminated + forced) + " process(es): " + terminated + " graceful, "
+                + forced + " forced, " + failed + " failed");
+        return lines;
+    }
+
+    private static KillResult terminateOne(ProcessEntry target, long gracePeriodMs) {
+        try {
+            if (isProcessHandleAvailable()) {
+                Optional<?> handle = (Optional<?>) OF.invoke(null, target.pid);
+                if (!handle.isPresent()) {
+                    return new KillResult(target, Outcome.TERMINATED, "already exited");
+                }
+                Object process = handle.get();
+                DESTROY.invoke(process);
+                if (awaitExit(process, gracePeriodMs)) {
+                    return new KillResult(target, Outcome.TERMINATED, null);
+                }
+                DESTROY_FORCIBLY.invoke(process);
+                if (awaitExit(process, FORCED_WAIT_MS)) {
+                    return new KillResult(target, Outcome.FORCED, null);
+                }
+                return new KillResult(target, Outcome.FAILED, "still running");
+            }
+
+            signal(target.pid, "-TERM");
+            if (awaitProcFsExit(target.pid, gracePeriodMs)) {
+                return new KillResult(target, Outcome.TERMINATED, null);
+            }
+            signal(target.pid, "-KILL");
+            if (awaitProcFsExit(target.pid, FORCED_WAIT_MS)) {
+                return new KillResult(target, Outcome.FORCED, null);
+            }
+            return new KillResult(target, Outcome.FAILED, "still running");
+        } catch (Exception e) {
+            return new KillResult(target, Outcome.FAILED, e.getMessage());
+        }
+    }
+
+    private static boolean awaitExit(Object process, long timeoutMs) throws Exception {
+        CompletableFuture<?> exit = (CompletableFuture<?>) ON_EXIT.invoke(process);
+        try {
+            exit.get(timeoutMs, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (java.util.concurrent.TimeoutException e) {
+            return !(Boolean) IS_ALIVE.invoke(process);
+        }
+    }
+
+    private static boolean awaitProcFsExit(long pid, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (System.currentTimeMillis() < deadline) {
+            if (!new File("/proc/" + pid).exists()) {
+                return true;
+            }
+            Thread.sleep(50);
+        }
+        return !new File("/proc/" + pid).exists();
+    }
+
+    private static boolean awaitGroupExit(long pgid, long timeoutMs) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        do {
+            if (signal(pgid, "-0", true) != 0) {
+                return true;
+            }
+            Thread.sleep(100);
+        } while (System.currentTimeMillis() < deadline);
+        return signal(pgid, "-0", true) != 0;
+    }
+
+    private static int signal(long pid, String signal) throws IOException, InterruptedException {
+        return signal(pid, signal, false);
+    }
+
+    private static int signal(long pid, String signal, boolean group) throws IOException, InterruptedException {
+        Process kill = (group ? new ProcessBuilder("kill", signal, "--", "-" + pid)
+                : new ProcessBuilder("kill", signal, String.valueOf(pid))).redirectErrorStream(true).start();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(kill.getInputStream()));
+        try {
+            while (reader.readLine() != null) {
+                // Drain so kill never blocks on a full pipe
+            }
+        } finally {
+            reader.close();
+        }
+        return kill.waitFor();
+    }
+
+    private static List<ProcessEntry> listWithProcessHandle() throws IOException {
+        List<ProcessEntry> entries = new ArrayList<ProcessEntry>();
+        try {
+            Stream<?> processes = (Stream<?>) ALL_PROCESSES.invoke(null);
+            Iterator<?> it = processes.iterator();
+            while (it.hasNext()) {
+                Object process = it.next();
+                Object info = INFO.invoke(process);
+                Optional<?> commandLine = (Optional<?>) COMMAND_LINE.invoke(info);
+                if (!commandLine.isPresent()) {
+                    commandLine = (Optional<?>) COMMAND.invoke(info);
+                }
+                if (commandLine.isPresent()) {
+                    entries.add(new ProcessEntry((Long) PID.invoke(process), commandLine.get().toString()));
+                }
+            }
+        } catch (Exception e) {
+            throw new IOException("Unable to enumerate processes: " + e.getMessage());
+        }
+        return entries;
+    }
+
+    private static List<ProcessEntry> listWithProcFs() throws IOException {
+        File proc = new File("/proc");
+        File[] dirs = proc.listFiles();
+        if (dirs == null) {
+            throw new IOException("Process enumeration requires Java 9+ or a /proc filesystem");
+        }
+        List<ProcessEntry> entries = new ArrayList<ProcessEntry>();
+        for (File dir : dirs) {
+            long pid;
+            try {
+                pid = Long.parseLong(dir.getName());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            String commandLine = readProcFile(new File(dir, "cmdline"));
+            if (commandLine != null && !commandLine.isEmpty()) {
+                entries.add(new ProcessEntry(pid, commandLine));
+            }
+        }
+        return entries;
+    }
+
+    private static String readProcFile(File file) {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return new String(bytes.toByteArray(), "UTF-8").replace('\0', ' ').trim();
+        } catch (IOException e) {
+            // Process exited or is not readable by this user
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+}
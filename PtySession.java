@@ -0,0 +1,272 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Interactive sessions on a pseudo terminal. The server runs the command
+ * under util-linux "script", which allocates the pty, and relays output as
+ * it arrives; the client puts its own terminal into raw mode and forwards
+ * every keystroke, so editors, pagers and password prompts work.
+ *
+ * Frames, one per line, with base64 payloads:
+ *   server "PTY &lt;data&gt;" ... "PTY_EXIT &lt;code&gt;"
+ *   client "PTY_IN &lt;data&gt;", "PTY_EOF" (close stdin), "PTY_DONE" (after
+ *   PTY_EXIT, or to abort)
+ */
+class PtySession {
+    static final String OUTPUT = "PTY ";
+    static final String EXIT = "PTY_EXIT";
+    static final String INPUT = "PTY_IN ";
+    static final String EOF = "PTY_EOF";
+    static final String DONE = "PTY_DONE";
+    private static final String SCRIPT = "/usr/bin/script";
+    private static final int FRAME_SIZE = 4096;
+
+    private PtySession() {
+    }
+
+    static boolean isAvailable() {
+        return !System.getProperty("os.name").toLowerCase().contains("win") && new File(SCRIPT).exists();
+    }
+
+    /**
+     * Command line running a shell command on a new pty; script -e passes
+     * the command's exit code through.
+     */
+    static List<String> wrap(String command) {
+        return new ArrayList<String>(Arrays.asList(SCRIPT, "-qfec", command, "/dev/null"));
+    }
+
+    // ----- server side -----
+
+    /**
+     * Answers "-pty" with a message and an immediate exit, following the
+     * session protocol so the client's terminal is restored.
+     */
+    static void refuse(String message, BufferedReader reader, PrintWriter writer) throws IOException {
+        writer.println(message);
+        writer.println(EXIT + " -1");
+        // The client still acknowledges the exit
+        String line;
+        while ((line = reader.readLine()) != null && !DONE.equals(line)) {
+            // Drop input sent before the client saw the exit
+        }
+    }
+
+    /**
+     * Runs "-pty [COLSxROWS] [command]" for one session until the command
+     * exits and the client acknowledges. Returns true on exit code 0.
+     */
+    static boolean serve(String args, String defaultShell, ResourceClass resources, BufferedReader reader,
+            final PrintWriter writer, ExecutionBackend backend) throws IOException {
+        if (!isAvailable()) {
+            refuse("PTY sessions need " + SCRIPT + " (util-linux) on the server", reader, writer);
+            return false;
+        }
+        String command = args;
+        String size = "";
+        int space = args.indexOf(' ');
+        String first = space < 0 ? args : args.substring(0, space);
+        if (first.matches("\\d{1,4}x\\d{1,4}")) {
+            String[] dims = first.split("x");
+            size = "stty cols " + dims[0] + " rows " + dims[1] + " 2>/dev/null; ";
+            command = space < 0 ? "" : args.substring(space + 1).trim();
+        }
+        if (command.isEmpty()) {
+            command = defaultShell;
+        }
+
+        List<String> commandLine = wrap(size + command);
+        ProcessBuilder pb = new ProcessBuilder(resources != null ? resources.wrap(commandLine) : commandLine);
+        pb.redirectErrorStream(true);
+        if (!pb.environment().containsKey("TERM")) {
+            pb.environment().put("TERM", "xterm");
+        }
+        final Process process = pb.start();
+        final int[] exitCode = new int[1];
+        final CountDownLatch finished = new CountDownLatch(1);
+        backend.start(new Runnable() {
+            public void run() {
+                byte[] chunk = new byte[FRAME_SIZE];
+                InputStream in = process.getInputStream();
+                try {
+                    int read;
+                    // read() returns whatever is available, so frames go out as soon as output appears.
+                    // Only this thread writes until finished is counted down
+                    while ((read = in.read(chunk)) != -1) {
+                        writer.println(OUTPUT + Base64.getEncoder().encodeToString(Arrays.copyOf(chunk, read)));
+                    }
+                    exitCode[0] = process.waitFor();
+                } catch (IOException e) {
+                    exitCode[0] = -1;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    exitCode[0] = -1;
+                } finally {
+                    writer.println(EXIT + " " + exitCode[0]);
+                    finished.countDown();
+                }
+            }
+        });
+
+        OutputStream stdin = process.getOutputStream();
+        String line;
+        while ((line = reader.readLine()) != null && !DONE.equals(line)) {
+            try {
+                if (line.startsWith(INPUT)) {
+                    stdin.write(Base64.getDecoder().decode(line.substring(INPUT.length())));
+                    stdin.flush();
+                } else if (EOF.equals(line)) {
+                    stdin.close();
+                }
+            } catch (IOException e) {
+                // The command already exited; keep reading until the client is done
+            }
+        }
+        if (process.isAlive()) {
+            // Client aborted or disconnected
+            process.destroyForcibly();
+        }
+        try {
+            finished.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (line == null) {
+            throw new IOException("Client disconnected during PTY session");
+        }
+        return exitCode[0] == 0;
+    }
+
+    // ----- client side -----
+
+    /**
+     * Where the client writes its lines to the server
+     */
+    interface Sender {
+        void send(String line) throws IOException;
+    }
+
+    /**
+     * Client half of one PTY session. The connection's response reader hands
+     * every line to {@link #offer}; {@link #run} forwards keystrokes from the
+     * calling thread until the remote command exits.
+     */
+    static class Client {
+        private final PrintStream out;
+        private volatile CountDownLatch exited;
+        private volatile int exitCode;
+
+        Client(PrintStream out) {
+            this.out = out;
+        }
+
+        /**
+         * Consumes PTY frames; returns false for any other line.
+         */
+        boolean offer(String line) {
+            if (line.startsWith(OUTPUT)) {
+                byte[] data = Base64.getDecoder().decode(line.substring(OUTPUT.length()));
+                out.write(data, 0, data.length);
+                out.flush();
+                return true;
+            }
+            if (line.startsWith(EXIT)) {
+                try {
+                    exitCode = Integer.parseInt(line.substring(EXIT.length()).trim());
+                } catch (NumberFormatException e) {
+                    exitCode = -1;
+                }
+                CountDownLatch latch = exited;
+                if (latch != null) {
+                    latch.countDown();
+                }
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Sends "-pty" for the command and relays local input until the
+         * remote side exits. Returns the remote exit code.
+         */
+        int run(Sender connection, String command, InputStream in) throws IOException {
+            exited = new CountDownLatch(1);
+            String size = terminalSize();
+            connection.send("-pty " + (size != null ? size + " " : "") + command);
+            String saved = stty("-g");
+            boolean raw = saved != null && stty("raw -echo") != null;
+            try {
+                byte[] buffer = new byte[1024];
+                while (exited.getCount() > 0) {
+                    int available = in.available();
+                    if (available > 0) {
+                        int read = in.read(buffer, 0, Math.min(available, buffer.length));
+                        if (read > 0) {
+                            connection.send(INPUT + Base64.getEncoder().encodeToString(Arrays.copyOf(buffer, read)));
+                        }
+                    } else {
+                        try {
+                            Thread.sleep(10);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                    }
+                }
+                connection.send(DONE);
+            } finally {
+                if (raw) {
+                    stty(saved);
+                }
+            }
+            return exitCode;
+        }
+
+        /**
+         * The local terminal size as COLSxROWS, or null without a terminal.
+         */
+        private static String terminalSize() {
+            String size = stty("size");
+            if (size == null) {
+                return null;
+            }
+            String[] parts = size.trim().split("\\s+");
+            return parts.length == 2 ? parts[1] + "x" + parts[0] : null;
+        }
+
+        /**
+         * Runs stty on the controlling terminal; returns its output, or null
+         * if there is no terminal.
+         */
+        private static String stty(String args) {
+            if (System.getProperty("os.name").toLowerCase().contains("win")) {
+                return null;
+            }
+            try {
+                Process process = new ProcessBuilder("/bin/sh", "-c", "stty " + args + " < /dev/tty")
+                        .redirectErrorStream(true).start();
+                BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+                StringBuilder output = new StringBuilder();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    output.append(line);
+                }
+                reader.close();
+                return process.waitFor() == 0 ? output.toString() : null;
+            } catch (Exception e) {
+                return null;
+            }
+        }
+    }
+}
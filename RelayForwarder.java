@@ -0,0 +1,365 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lets a TerminalServer act as a relay: "-relay &lt;group&gt; &lt;command&gt;" forwards
+ * the command to every downstream server of the group in parallel and
+ * streams each host's output back as soon as that host finishes.
+ *
+ * Groups are defined in server_config.properties as
+ *   relay.group.&lt;name&gt;=host[:port][/subgroup],...
+ * A member with "/subgroup" is itself a relay and receives
+ * "-relay subgroup &lt;command&gt;", so large fleets form a tree and the client
+ * only needs one connection. Each response line is prefixed with
+ * "[host:port] " and every host ends with a "[host:port] RELAY_STATUS ..." line.
+ *
+ * A caller may append "@ms" to the group to say how long it will wait. The
+ * relay then answers within that time and gives each sub-relay
+ * HOP_MARGIN_MS less, so every hop reports before the one above it gives up.
+ */
+class RelayForwarder {
+    static final int DEFAULT_PORT = 8080;
+    static final int DEFAULT_MAX_HOPS = 4;
+    static final String RELAY_SUMMARY = "RELAY_SUMMARY";
+    // First line of a relay's answer, listing the members it forwards to
+    static final String RELAY_PLAN = "RELAY_PLAN";
+    // Time each hop keeps back to report before its caller times out
+    static final long HOP_MARGIN_MS = 1000;
+
+    private final Properties config;
+
+    /**
+     * A downstream server, optionally a relay for its own subgroup
+     */
+    private static class Member {
+        final HostConfig host;
+        final String subgroup;
+
+        Member(HostConfig host, String subgroup) {
+            this.host = host;
+            this.subgroup = subgroup;
+        }
+
+        String label() {
+            String address = host.hostname + ":" + host.port;
+            return subgroup == null ? address : address + "/" + subgroup;
+        }
+    }
+
+    RelayForwarder(Properties config) {
+        this.config = config;
+    }
+
+    /**
+     * The "-relay" command for a caller that waits at most timeoutMs for
+     * the answer. group may carry a "#hops" suffix.
+     */
+    static String relayCommand(String group, long timeoutMs, String command) {
+        return "-relay " + group + "@" + Math.max(1, timeoutMs - HOP_MARGIN_MS) + " " + command;
+    }
+
+    boolean isEnabled() {
+        return Boolean.parseBoolean(config.getProperty("relay.enabled", "false"));
+    }
+
+    /**
+     * Handles the arguments of "-relay &lt;group&gt;[#hops][@ms] &lt;command&gt;".
+     * Returns true when every downstream host succeeded.
+     */
+    boolean handle(String args, String relayName, PrintWriter writer) {
+        if (!isEnabled()) {
+            writer.println("Relay mode is disabled (relay.enabled=false)");
+            return false;
+        }
+        int space = args.indexOf(' ');
+        if (space < 0) {
+            writer.println("Usage: -relay <group> <command>");
+            return false;
+        }
+        String group = args.substring(0, space);
+        String command = args.substring(space + 1).trim();
+        long budgetMs = -1;
+        int at = group.indexOf('@');
+        if (at >= 0) {
+            try {
+                budgetMs = Long.parseLong(group.substring(at + 1));
+            } catch (NumberFormatException e) {
+                writer.println("Invalid relay time budget: " + group);
+                return false;
+            }
+            group = group.substring(0, at);
+        }
+        int hops = getInt("relay.maxHops", DEFAULT_MAX_HOPS);
+        int hash = group.indexOf('#');
+        if (hash >= 0) {
+            try {
+                hops = Integer.parseInt(group.substring(hash + 1));
+            } catch (NumberFormatException e) {
+                hops = 0;
+            }
+            group = group.substring(0, hash);
+        }
+        if (hops <= 0) {
+            writer.println("Relay hop limit reached for group " + group);
+            return false;
+        }
+        return forward(group, hops - 1, budgetMs, command, relayName, writer);
+    }
+
+    private boolean forward(String group, final int hopsLeft, long budgetMs, final String command,
+            final String relayName, final PrintWriter writer) {
+        List<Member> members = parseGroup(group, relayName);
+        if (members.isEmpty()) {
+            writer.println("Unknown or empty relay group: " + group);
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        final long deadline = budgetMs > 0 ? start + budgetMs : Long.MAX_VALUE;
+        final Map<HostConfig, Member> byHost = new HashMap<HostConfig, Member>();
+        StringBuilder plan = new StringBuilder();
+        for (Member member : members) {
+            byHost.put(member.host, member);
+            plan.append(plan.length() == 0 ? "" : ",").append(member.label());
+        }
+        // Results arrive on the runner's threads; each one is written as a block
+        final ReentrantLock writeLock = new ReentrantLock();
+        writeLock.lock();
+        try {
+            writer.println(RELAY_PLAN + " members=" + plan);
+        } finally {
+            writeLock.unlock();
+        }
+
+        // Connect to all members in parallel; unreachable ones are reported before any results
+        final int[] counts = new int[2]; // ok, total
+        List<BroadcastRunner.HostResult> unreachable = new ArrayList<BroadcastRunner.HostResult>();
+        final List<ConnectionManager> connected = connectAll(members, deadline, unreachable);
+        for (BroadcastRunner.HostResult failed : unreachable) {
+            writeResult(byHost.get(failed.host), failed, relayName, writer, writeLock, counts);
+        }
+
+        final int timeoutMs = getInt("relay.timeoutMs", 60000);
+        BroadcastRunner runner = new BroadcastRunner(getInt("relay.parallelism", 32), timeoutMs);
+        runner.setDeadline(deadline);
+        runner.setResultListener(new BroadcastRunner.ResultListener() {
+            public void completed(BroadcastRunner.HostResult result) {
+                writeResult(byHost.get(result.host), result, relayName, writer, writeLock, counts);
+            }
+        });
+        runner.run(new BroadcastRunner.CommandSource() {
+            public String commandFor(HostConfig host) {
+                Member member = byHost.get(host);
+                long waitMs = Math.min(timeoutMs, deadline - System.currentTimeMillis());
+                return member.subgroup == null ? command
+                        : relayCommand(member.subgroup + "#" + hopsLeft, waitMs, command);
+            }
+        }, connected);
+
+        for (ConnectionManager connection : connected) {
+            try {
+                connection.sendCommand("exit");
+            } catch (IOException e) {
+                // Ignore send errors during exit
+            }
+            connection.close();
+        }
+
+        writeLock.lock();
+        try {
+            writer.println(RELAY_SUMMARY + " group=" + group + " ok=" + counts[0] + " total=" + counts[1]
+                    + " durationMs=" + (System.currentTimeMillis() - start));
+            return counts[0] == counts[1];
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Connects to all members in parallel; the ones that cannot be reached
+     * are added to unreachable.
+     */
+    private List<ConnectionManager> connectAll(List<Member> members, long deadline,
+            final List<BroadcastRunner.HostResult> unreachable) {
+        List<ConnectionManager> connected = new ArrayList<ConnectionManager>();
+        final int connectTimeoutMs = (int) Math.max(1, Math.min(getInt("connect.timeoutMs",
+                ConnectionManager.DEFAULT_CONNECT_TIMEOUT_MS), deadline - System.currentTimeMillis()));
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(members.size(), getInt("relay.parallelism", 32)));
+        try {
+            List<Future<ConnectionManager>> futures = new ArrayList<Future<ConnectionManager>>();
+            for (final Member member : members) {
+                futures.add(pool.submit(new Callable<ConnectionManager>() {
+                    public ConnectionManager call() {
+                        long start = System.currentTimeMillis();
+                        ConnectionManager connection = new ConnectionManager(member.host);
+                        try {
+                            connection.connect(connectTimeoutMs);
+                            connection.sendCommand(member.host.clientName);
+                            return connection;
+                        } catch (IOException e) {
+                            connection.close();
+                            BroadcastRunner.HostResult failed = new BroadcastRunner.HostResult(member.host);
+                            failed.status = BroadcastStatus.DISCONNECTED;
+                            failed.error = e.getMessage();
+                            failed.latencyMs = System.currentTimeMillis() - start;
+                            synchronized (unreachable) {
+                                unreachable.add(failed);
+                            }
+                            return null;
+                        }
+                    }
+                }));
+            }
+            for (Future<ConnectionManager> future : futures) {
+                try {
+                    ConnectionManager connection = future.get();
+                    if (connection != null) {
+                        connected.add(connection);
+                    }
+                } catch (Exception e) {
+                    // Connection failures are already recorded by the task
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return connected;
+    }
+
+    private void writeResult(Member member, BroadcastRunner.HostResult result, String relayName, PrintWriter writer,
+            ReentrantLock writeLock, int[] counts) {
+        writeLock.lock();
+        try {
+            if (member.subgroup != null && writeRelayResult(member, result, relayName, writer, counts)) {
+                return;
+            }
+            String prefix = "[" + member.label() + "] ";
+            for (String line : result.output.toString().split("\n")) {
+                if (!line.isEmpty()) {
+                    writer.println(prefix + line);
+                }
+            }
+            for (String line : result.stderr.toString().split("\n")) {
+                if (!line.isEmpty()) {
+                    writer.println(prefix + ConnectionManager.STDERR_PREFIX + line);
+                }
+            }
+            writer.println(prefix + BroadcastRunner.relayStatusLine(result));
+            counts[1]++;
+            if (result.status == BroadcastStatus.OK) {
+                counts[0]++;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Passes on what a downstream relay reported about its own hosts; false
+     * if it reported none, e.g. for a group it does not know. Members of its
+     * group it did not report, because it failed or timed out, count as
+     * failed with its status. The group is taken from its RELAY_PLAN line,
+     * or from this server's own definition of the subgroup if it never got
+     * that far.
+     */
+    private boolean writeRelayResult(Member member, BroadcastRunner.HostResult result, String relayName,
+            PrintWriter writer, int[] counts) {
+        boolean answered = result.status == BroadcastStatus.OK || result.status == BroadcastStatus.ERROR;
+        List<String> planned = null;
+        Set<String> reported = new HashSet<String>();
+        for (String line : result.output.toString().split("\n")) {
+            if (line.startsWith(RELAY_PLAN + " members=")) {
+                planned = new ArrayList<String>();
+                for (String label : line.substring(RELAY_PLAN.length() + 9).split(",")) {
+                    if (!label.isEmpty()) {
+                        planned.add(label);
+                    }
+                }
+            } else if (line.startsWith(RELAY_SUMMARY + " ")) {
+                // Marks the sub-relay as done for the relays above
+                writer.println("[" + member.label() + "] " + line);
+            } else if (line.startsWith("[") && line.indexOf("] ") > 0) {
+                reported.add(line.substring(1, line.indexOf("] ")));
+                writer.println(line);
+            }
+        }
+        List<BroadcastRunner.HostResult> leaves = BroadcastRunner.expandRelayResult(result);
+        for (BroadcastRunner.HostResult leaf : leaves) {
+            counts[1]++;
+            if (leaf.status == BroadcastStatus.OK) {
+                counts[0]++;
+            }
+        }
+        if (!answered) {
+            if (planned == null) {
+                planned = new ArrayList<String>();
+                for (Member planMember : parseGroup(member.subgroup, relayName)) {
+                    planned.add(planMember.label());
+                }
+            }
+            for (String label : planned) {
+                if (!reported.contains(label)) {
+                    BroadcastRunner.HostResult missing = new BroadcastRunner.HostResult(
+                            BroadcastRunner.relayLabelHost(label, member.host.port, ""));
+                    missing.status = result.status;
+                    missing.latencyMs = result.latencyMs;
+                    missing.error = "relay " + member.label() + " failed: " + result.error;
+                    writer.println("[" + label + "] " + BroadcastRunner.relayStatusLine(missing));
+                    counts[1]++;
+                    reported.add(label);
+                }
+            }
+        }
+        return !reported.isEmpty();
+    }
+
+    private List<Member> parseGroup(String group, String relayName) {
+        List<Member> members = new ArrayList<Member>();
+        String spec = config.getProperty("relay.group." + group, "");
+        int defaultPort = getInt("relay.defaultPort", getInt("port", DEFAULT_PORT));
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            String subgroup = null;
+            int slash = entry.indexOf('/');
+            if (slash >= 0) {
+                subgroup = entry.substring(slash + 1);
+                entry = entry.substring(0, slash);
+            }
+            String hostname = entry;
+            int port = defaultPort;
+            int colon = entry.lastIndexOf(':');
+            if (colon > 0) {
+                hostname = entry.substring(0, colon);
+                try {
+                    port = Integer.parseInt(entry.substring(colon + 1));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+            }
+            members.add(new Member(new HostConfig(hostname, port, relayName, ""), subgroup));
+        }
+        return members;
+    }
+
+    private int getInt(String key, int defaultValue) {
+        try {
+            return Integer.parseInt(config.getProperty(key, String.valueOf(defaultValue)).trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * CPU and I/O priority and resource limits for the processes a command
+ * starts, so maintenance work on a terminal does not slow down the POS
+ * application next to it. Classes are defined in server_config.properties
+ * as resource.class.&lt;name&gt;.* keys:
+ *   nice        niceness, 1-19 to yield (below 0 needs root) (nice)
+ *   ionice      idle, best-effort[:0-7] or realtime[:0-7] (ionice)
+ *   cpuTimeSec  CPU seconds before the process is killed (prlimit --cpu)
+ *   memory      e.g. 512M; a cgroup limit under systemd, else the address
+ *               space (prlimit --as)
+ *   cpuQuota    e.g. 50%, under systemd only
+ * With resource.systemd=true ("user" for the user's own manager) every
+ * classed process runs in its own transient scope (systemd-run --scope).
+ *
+ * A client's own class is resource.client.&lt;IP or certificate name&gt;, else
+ * resource.default. With "-class &lt;name&gt; &lt;command&gt;" it may pick another
+ * one only if resource.allow.&lt;IP or certificate name&gt; lists it (or is *),
+ * so a client kept at a low priority cannot lift itself out of it. Client
+ * names are not used, as a client sends whatever name it likes. Settings
+ * whose tool is not installed are skipped, and nothing applies on Windows.
+ */
+class ResourceClass {
+    static final String PREFIX = "resource.class.";
+    private static final String NICE = "/usr/bin/nice";
+    private static final String IONICE = "/usr/bin/ionice";
+    private static final String PRLIMIT = "/usr/bin/prlimit";
+    private static final String SYSTEMD_RUN = "/usr/bin/systemd-run";
+
+    final String name;
+    private final List<String> prefix;
+    private final String description;
+
+    private ResourceClass(String name, List<String> prefix, String description) {
+        this.name = name;
+        this.prefix = prefix;
+        this.description = description;
+    }
+
+    /**
+     * The class a command runs in: the requested one if the client may use
+     * it, else the client's own. Null when none applies. Throws
+     * IllegalArgumentException for an unknown, invalid or disallowed class.
+     * certificateName is the common name of the client's verified TLS
+     * certificate, or null.
+     */
+    static ResourceClass select(Properties config, String requested, String clientIp, String certificateName) {
+        String own = clientSetting(config, "resource.client.", clientIp, certificateName);
+        if (own == null) {
+            own = config.getProperty("resource.default", "");
+        }
+        String name = own.trim();
+        if (requested != null) {
+            if (!requested.equals(name) && !mayUse(config, requested, clientIp, certificateName)) {
+                throw new IllegalArgumentException("Resource class " + requested + " is not allowed for "
+                        + (certificateName != null ? certificateName : clientIp) + " (resource.allow.*)");
+            }
+            name = requested;
+        }
+        if (name.isEmpty()) {
+            return null;
+        }
+        return load(config, name);
+    }
+
+    private static boolean mayUse(Properties config, String className, String clientIp, String certificateName) {
+        for (String key : new String[] {clientIp, certificateName}) {
+            String allowed = key != null ? config.getProperty("resource.allow." + key) : null;
+            if (allowed != null) {
+                for (String entry : allowed.split(",")) {
+                    if ("*".equals(entry.trim()) || className.equals(entry.trim())) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String clientSetting(Properties config, String prefix, String clientIp, String certificateName) {
+        String value = config.getProperty(prefix + clientIp);
+        if (value == null && certificateName != null) {
+            value = config.getProperty(prefix + certificateName);
+        }
+        return value;
+    }
+
+    static ResourceClass load(Properties config, String name) {
+        String keyPrefix = PREFIX + name + ".";
+        boolean defined = false;
+        for (String key : config.stringPropertyNames()) {
+            if (key.startsWith(keyPrefix)) {
+                defined = true;
+                break;
+            }
+        }
+        if (!defined) {
+            throw new IllegalArgumentException("No resource class named " + name);
+        }
+        if (System.getProperty("os.name").toLowerCase().contains("win")) {
+            return new ResourceClass(name, Collections.<String>emptyList(), name + " (not applied on Windows)");
+        }
+
+        List<String> prefix = new ArrayList<String>();
+        List<String> applied = new ArrayList<String>();
+        List<String> skipped = new ArrayList<String>();
+        String memory = config.getProperty(keyPrefix + "memory", "").trim();
+        String cpuQuota = config.getProperty(keyPrefix + "cpuQuota", "").trim();
+        String systemd = config.getProperty("resource.systemd", "false").trim();
+        boolean scoped = ("true".equals(systemd) || "user".equals(systemd)) && new File(SYSTEMD_RUN).exists();
+        if (scoped) {
+            prefix.add(SYSTEMD_RUN);
+            if ("user".equals(systemd)) {
+                prefix.add("--user");
+            }
+            prefix.addAll(Arrays.asList("--scope", "--quiet"));
+            if (!memory.isEmpty()) {
+                parseSize(memory);
+                prefix.addAll(Arrays.asList("-p", "MemoryMax=" + memory));
+                applied.add("memory=" + memory);
+            }
+            if (!cpuQuota.isEmpty()) {
+                if (!cpuQuota.matches("\\d{1,5}%")) {
+                    throw new IllegalArgumentException("Invalid cpuQuota " + cpuQuota + " in class " + name);
+                }
+                prefix.addAll(Arrays.asList("-p", "CPUQuota=" + cpuQuota));
+                applied.add("cpuQuota=" + cpuQuota);
+            }
+            prefix.add("--");
+        } else if (!cpuQuota.isEmpty()) {
+            skipped.add("cpuQuota (needs resource.systemd)");
+        }
+
+        List<String> limits = new ArrayList<String>();
+        String cpuTime = config.getProperty(keyPrefix + "cpuTimeSec", "").trim();
+        if (!cpuTime.isEmpty()) {
+            limits.add("--cpu=" + Long.parseLong(cpuTime));
+            applied.add("cpuTimeSec=" + cpuTime);
+        }
+        if (!memory.isEmpty() && !scoped) {
+            limits.add("--as=" + parseSize(memory));
+            applied.add("memory=" + memory + " (address space)");
+        }
+        if (!limits.isEmpty()) {
+            if (new File(PRLIMIT).exists()) {
+                prefix.add(PRLIMIT);
+                prefix.addAll(limits);
+                prefix.add("--");
+            } else {
+                skipped.add("cpuTimeSec/memory (no " + PRLIMIT + ")");
+            }
+        }
+
+        String ionice = config.getProperty(keyPrefix + "ionice", "").trim();
+        if (!ionice.isEmpty()) {
+            List<String> args = ioniceArgs(ionice, name);
+            if (new File(IONICE).exists()) {
+                // -t: still run the command if the kernel refuses the class, e.g. realtime without root
+                prefix.add(IONICE);
+                prefix.add("-t");
+                prefix.addAll(args);
+                applied.add("ionice=" + ionice);
+            } else {
+                skipped.add("ionice (no " + IONICE + ")");
+            }
+        }
+
+        String nice = config.getProperty(keyPrefix + "nice", "").trim();
+        if (!nice.isEmpty()) {
+            int level = Integer.parseInt(nice);
+            if (level < -20 || level > 19) {
+                throw new IllegalArgumentException("Invalid nice " + nice + " in class " + name + " (-20 to 19)");
+            }
+            if (new File(NICE).exists()) {
+                prefix.addAll(Arrays.asList(NICE, "-n", String.valueOf(level)));
+                applied.add("nice=" + level);
+            } else {
+                skipped.add("nice (no " + NICE + ")");
+            }
+        }
+
+        StringBuilder description = new StringBuilder(name);
+        description.append(applied.isEmpty() ? " (no limits)" : " " + applied);
+        if (!skipped.isEmpty()) {
+            description.append(", skipped ").append(skipped);
+        }
+        return new ResourceClass(name, Collections.unmodifiableList(prefix), description.toString());
+    }
+
+    /**
+     * The programs and options to put in front of a command line.
+     */
+    List<String> prefix() {
+        return prefix;
+    }
+
+    /**
+     * The command line with this class's prefix in front.
+     */
+    List<String> wrap(List<String> commandLine) {
+        List<String> wrapped = new ArrayList<String>(prefix);
+        wrapped.addAll(commandLine);
+        return wrapped;
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+
+    private static List<String> ioniceArgs(String value, String className) {
+        String[] parts = value.split(":");
+        String ioClass = parts[0].trim();
+        String number = "idle".equals(ioClass) ? "3" : "best-effort".equals(ioClass) ? "2"
+                : "realtime".equals(ioClass) ? "1" : null;
+        boolean validLevel = parts.length == 1 || parts.length == 2 && parts[1].trim().matches("[0-7]");
+        if (number == null || !validLevel || "3".equals(number) && parts.length == 2) {
+            throw new IllegalArgumentException("Invalid ionice " + value + " in class " + className
+                    + " (idle, best-effort[:0-7] or realtime[:0-7])");
+        }
+        List<String> args = new ArrayList<String>();
+        args.add("-c");
+        args.add(number);
+        if (parts.length == 2) {
+            args.add("-n");
+            args.add(parts[1].trim());
+        }
+        return args;
+    }
+
+    /**
+     * Bytes of a size like 512M, 2G or 65536.
+     */
+    static long parseSize(String size) {
+        String text = size.trim().toUpperCase();
+        long unit = 1;
+        if (text.endsWith("K") || text.endsWith("M") || text.endsWith("G")) {
+            unit = text.endsWith("K") ? 1024L : text.endsWith("M") ? 1024L * 1024 : 1024L * 1024 * 1024;
+            text = text.substring(0, text.length() - 1);
+        }
+        try {
+            return Long.parseLong(text) * unit;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid size " + size + " (e.g. 512M)");
+        }
+    }
+}
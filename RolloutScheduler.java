@@ -0,0 +1,238 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs each host's auto command in waves: a canary wave first, then waves of
+ * a fixed size or percentage. Every wave must pass (command succeeded and the
+ * optional health check matched) before the next one starts, and the rollout
+ * stops as soon as a wave's failure rate exceeds the configured threshold.
+ * A host that could not be connected counts as failed in its wave.
+ */
+class RolloutScheduler {
+    private final BroadcastRunner runner;
+    private final int canaryCount;
+    private final String waveSize;
+    private final double maxFailureRate;
+    private final String healthCommand;
+    private final String healthExpect;
+    private final long waveDelayMs;
+    private final BroadcastRunner.CommandSource commands;
+    private ProgressListener listener;
+
+    /**
+     * Receives progress messages as waves run
+     */
+    interface ProgressListener {
+        void progress(String message);
+    }
+
+    /**
+     * Outcome of one wave
+     */
+    static class Wave {
+        final int number;
+        final boolean canary;
+        final List<BroadcastRunner.HostResult> results = new ArrayList<BroadcastRunner.HostResult>();
+        final List<String> unhealthy = new ArrayList<String>();
+        long durationMs;
+        int failures;
+
+        Wave(int number, boolean canary) {
+            this.number = number;
+            this.canary = canary;
+        }
+
+        double failureRate() {
+            return results.isEmpty() ? 0 : (double) failures / results.size();
+        }
+    }
+
+    /**
+     * Outcome of the whole rollout
+     */
+    static class RolloutResult {
+        final List<Wave> waves = new ArrayList<Wave>();
+        final List<HostConfig> untouched = new ArrayList<HostConfig>();
+        boolean aborted;
+        String abortReason;
+        long durationMs;
+    }
+
+    RolloutScheduler(BroadcastRunner runner, BroadcastRunner.CommandSource commands, int canaryCount, String waveSize,
+            double maxFailureRate, String healthCommand, String healthExpect, long waveDelayMs) {
+        this.runner = runner;
+        this.commands = commands;
+        this.canaryCount = Math.max(0, canaryCount);
+        this.waveSize = waveSize;
+        this.maxFailureRate = maxFailureRate;
+        this.healthCommand = healthCommand;
+        this.healthExpect = healthExpect;
+        this.waveDelayMs = waveDelayMs;
+    }
+
+    void setProgressListener(ProgressListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Resolves a wave size such as "5" or "25%" against the number of hosts.
+     */
+    static int resolveWaveSize(String spec, int total) {
+        int size;
+        String value = spec == null ? "" : spec.trim();
+        try {
+            if (value.endsWith("%")) {
+                double percent = Double.parseDouble(value.substring(0, value.length() - 1));
+                size = (int) Math.ceil(total * percent / 100.0);
+            } else {
+                size = Integer.parseInt(value);
+            }
+        } catch (NumberFormatException e) {
+            size = total;
+        }
+        return Math.max(1, Math.min(size, Math.max(total, 1)));
+    }
+
+    /**
+     * Rolls out to hosts in order; connections holds the open connection of
+     * each reachable host by hostname.
+     */
+    RolloutResult run(List<HostConfig> targets, Map<String, ConnectionManager> connections) {
+        RolloutResult rollout = new RolloutResult();
+        long start = System.currentTimeMillis();
+        int size = resolveWaveSize(waveSize, targets.size());
+        int index = 0;
+        int number = 1;
+        while (index < targets.size()) {
+            boolean canary = number == 1 && canaryCount > 0;
+            int end = Math.min(targets.size(), index + (canary ? canaryCount : size));
+            List<HostConfig> batch = targets.subList(index, end);
+            progress((canary ? "Canary" : "Wave " + number) + ": " + batch.size() + " host(s)");
+
+            Wave wave = runWave(number, canary, batch, connections);
+            rollout.waves.add(wave);
+            index = end;
+            progress((canary ? "Canary" : "Wave " + number) + " done in " + wave.durationMs + " ms, "
+                    + wave.failures + "/" + wave.results.size() + " failed");
+
+            // The canary must be clean; later waves may fail up to the threshold
+            double allowed = canary ? 0 : maxFailureRate;
+            if (wave.failureRate() > allowed) {
+                rollout.aborted = true;
+                rollout.abortReason = (canary ? "Canary" : "Wave " + number) + " failure rate "
+                        + Math.round(wave.failureRate() * 100) + "% exceeds " + Math.round(allowed * 100) + "%";
+                rollout.untouched.addAll(targets.subList(index, targets.size()));
+                progress("Rollout aborted: " + rollout.abortReason);
+                break;
+            }
+            number++;
+            if (index < targets.size() && waveDelayMs > 0) {
+                try {
+                    Thread.sleep(waveDelayMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        rollout.durationMs = System.currentTimeMillis() - start;
+        return rollout;
+    }
+
+    private Wave runWave(int number, boolean canary, List<HostConfig> batch,
+            Map<String, ConnectionManager> connections) {
+        Wave wave = new Wave(number, canary);
+        long start = System.currentTimeMillis();
+        List<ConnectionManager> reachable = new ArrayList<ConnectionManager>();
+        for (HostConfig host : batch) {
+            if (connections.containsKey(host.hostname)) {
+                reachable.add(connections.get(host.hostname));
+            }
+        }
+        List<BroadcastRunner.HostResult> ran = runner.run(commands, reachable);
+        int next = 0;
+        for (HostConfig host : batch) {
+            if (connections.containsKey(host.hostname)) {
+                wave.results.add(ran.get(next++));
+            } else {
+                BroadcastRunner.HostResult result = new BroadcastRunner.HostResult(host);
+                result.status = BroadcastStatus.DISCONNECTED;
+                result.error = "Could not connect";
+                wave.results.add(result);
+            }
+        }
+
+        // Health check the hosts whose command succeeded, all in parallel
+        List<ConnectionManager> healthy = new ArrayList<ConnectionManager>();
+        for (BroadcastRunner.HostResult result : wave.results) {
+            if (result.status == BroadcastStatus.OK) {
+                healthy.add(connections.get(result.host.hostname));
+            } else {
+                wave.failures++;
+            }
+        }
+        if (healthCommand != null && !healthCommand.isEmpty() && !healthy.isEmpty()) {
+            for (BroadcastRunner.HostResult check : runner.run(healthCommand, healthy)) {
+                boolean passed = check.status == BroadcastStatus.OK
+                        && (healthExpect == null || healthExpect.isEmpty() || check.output.indexOf(healthExpect) >= 0);
+                if (!passed) {
+                    wave.failures++;
+                    wave.unhealthy.add(check.host.hostname);
+                }
+            }
+        }
+        wave.durationMs = System.currentTimeMillis() - start;
+        return wave;
+    }
+
+    private void progress(String message) {
+        if (listener != null) {
+            listener.progress(message);
+        }
+    }
+
+    /**
+     * Writes the rollout as JSON, one entry per host with its wave.
+     */
+    static void writeReport(File file, RolloutResult rollout) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+        try {
+            writer.write("{\"aborted\":" + rollout.aborted + ",\"abortReason\":" + BroadcastRunner.json(rollout.abortReason)
+                    + ",\"durationMs\":" + rollout.durationMs + ",\"hosts\":[");
+            boolean first = true;
+            for (Wave wave : rollout.waves) {
+                for (BroadcastRunner.HostResult r : wave.results) {
+                    writer.write(first ? "" : ",");
+                    writer.newLine();
+                    first = false;
+                    boolean healthy = r.status == BroadcastStatus.OK && !wave.unhealthy.contains(r.host.hostname);
+                    writer.write("{\"host\":" + BroadcastRunner.json(r.host.hostname) + ",\"wave\":" + wave.number
+                            + ",\"canary\":" + wave.canary + ",\"status\":" + BroadcastRunner.json(r.status.name())
+                            + ",\"healthy\":" + healthy + ",\"error\":" + BroadcastRunner.json(r.error)
+                            + ",\"latencyMs\":" + r.latencyMs
+                            + ",\"output\":" + BroadcastRunner.json(r.output.toString()) + "}");
+                }
+            }
+            for (HostConfig host : rollout.untouched) {
+                writer.write(first ? "" : ",");
+                writer.newLine();
+                first = false;
+                writer.write("{\"host\":" + BroadcastRunner.json(host.hostname) + ",\"wave\":null,\"status\":\"SKIPPED\"}");
+            }
+            writer.newLine();
+            writer.write("]}");
+            writer.newLine();
+        } finally {
+            writer.close();
+        }
+    }
+}
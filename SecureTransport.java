@@ -0,0 +1,369 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.Principal;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Encryption and authentication of client-server connections, set up from
+ * the tls.* and auth.* keys of either side's config.
+ *
+ * With tls.enabled every connection is TLS. The server presents the key in
+ * tls.keyStore and, unless tls.clientAuth=false, requires a client
+ * certificate signed by something in its tls.trustStore (mutual TLS). One
+ * SSLContext is kept per process, so reconnecting to a host resumes the TLS
+ * session (a ticket or cached session, depending on the JDK) instead of doing
+ * a full handshake; in a daemon this lasts across --ctl calls. As a client it
+ * only trusts tls.trustStore and, unless tls.verifyHostname=false, checks
+ * that the server certificate names the host it connected to, so another
+ * certificate from the same CA (such as a client's) cannot pose as the
+ * server.
+ *
+ * With auth.pskFile both sides also prove they know the same secret before the
+ * client name line: the server sends "AUTH &lt;nonce&gt;", the client answers
+ * "AUTH &lt;nonce&gt; &lt;mac&gt;" and the server replies "AUTH_OK &lt;mac&gt;",
+ * each mac being an HMAC-SHA256 over both nonces. This can replace client
+ * certificates; without TLS it authenticates but does not encrypt.
+ */
+class SecureTransport {
+    static final String DEFAULT_PROTOCOLS = "TLSv1.3,TLSv1.2";
+    static final int DEFAULT_SESSION_CACHE_SIZE = 1000;
+    static final int DEFAULT_SESSION_TIMEOUT_SEC = 24 * 60 * 60;
+    static final int MIN_PSK_LENGTH = 16;
+    private static final String AUTH = "AUTH ";
+    private static final String AUTH_OK = "AUTH_OK ";
+    private static final String AUTH_FAILED = "AUTH_FAILED";
+    private static final String HMAC = "HmacSHA256";
+
+    private final SSLContext context;
+    private final String[] protocols;
+    private final boolean needClientAuth;
+    private final boolean verifyHostname;
+    private final byte[] psk;
+    private final SecureRandom random = new SecureRandom();
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+
+    private SecureTransport(SSLContext context, String[] protocols, boolean needClientAuth, boolean verifyHostname,
+            byte[] psk) {
+        this.context = context;
+        this.protocols = protocols;
+        this.needClientAuth = needClientAuth;
+        this.verifyHostname = verifyHostname;
+        this.psk = psk;
+    }
+
+    /**
+     * The transport a config asks for, or null when it enables neither TLS
+     * nor a pre-shared key.
+     */
+    static SecureTransport fromConfig(Properties config) throws IOException, GeneralSecurityException {
+        boolean tls = Boolean.parseBoolean(config.getProperty("tls.enabled", "false"));
+        String pskFile = config.getProperty("auth.pskFile", "").trim();
+        if (!tls && pskFile.isEmpty()) {
+            return null;
+        }
+        byte[] psk = null;
+        if (!pskFile.isEmpty()) {
+            String secret = new String(Files.readAllBytes(new File(pskFile).toPath()), "UTF-8").trim();
+            if (secret.length() < MIN_PSK_LENGTH) {
+                throw new GeneralSecurityException(pskFile + " must hold at least " + MIN_PSK_LENGTH + " characters");
+            }
+            psk = secret.getBytes("UTF-8");
+        }
+        if (!tls) {
+            return new SecureTransport(null, null, false, false, psk);
+        }
+
+        KeyManager[] keyManagers = null;
+        String keyStore = config.getProperty("tls.keyStore", "").trim();
+        if (!keyStore.isEmpty()) {
+            char[] password = config.getProperty("tls.keyStorePassword", "").toCharArray();
+            KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            factory.init(loadKeyStore(keyStore, password), password);
+            keyManagers = factory.getKeyManagers();
+        }
+        // Never the JDK's public CAs: any certificate they signed would pass as a server
+        String trustStore = config.getProperty("tls.trustStore", "").trim();
+        if (trustStore.isEmpty()) {
+            throw new GeneralSecurityException("tls.enabled needs tls.trustStore, the CA that signed the certificates");
+        }
+        TrustManagerFactory trustFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustFactory.init(loadKeyStore(trustStore, config.getProperty("tls.trustStorePassword", "").toCharArray()));
+        TrustManager[] trustManagers = trustFactory.getTrustManagers();
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers, trustManagers, null);
+        int cacheSize = Integer.parseInt(config.getProperty("tls.sessionCacheSize",
+                String.valueOf(DEFAULT_SESSION_CACHE_SIZE)));
+        int timeout = Integer.parseInt(config.getProperty("tls.sessionTimeoutSec",
+                String.valueOf(DEFAULT_SESSION_TIMEOUT_SEC)));
+        context.getClientSessionContext().setSessionCacheSize(cacheSize);
+        context.getClientSessionContext().setSessionTimeout(timeout);
+        context.getServerSessionContext().setSessionCacheSize(cacheSize);
+        context.getServerSessionContext().setSessionTimeout(timeout);
+
+        List<String> supported = Arrays.asList(context.getSupportedSSLParameters().getProtocols());
+        List<String> enabled = new ArrayList<String>();
+        for (String protocol : config.getProperty("tls.protocols", DEFAULT_PROTOCOLS).split(",")) {
+            if (supported.contains(protocol.trim())) {
+                enabled.add(protocol.trim());
+            }
+        }
+        if (enabled.isEmpty()) {
+            throw new GeneralSecurityException("None of tls.protocols is supported by this JVM");
+        }
+        return new SecureTransport(context, enabled.toArray(new String[0]),
+                Boolean.parseBoolean(config.getProperty("tls.clientAuth", "true")),
+                Boolean.parseBoolean(config.getProperty("tls.verifyHostname", "true")), psk);
+    }
+
+    private static KeyStore loadKeyStore(String path, char[] password) throws IOException, GeneralSecurityException {
+        String lower = path.toLowerCase();
+        KeyStore store = KeyStore.getInstance(lower.endsWith(".p12") || lower.endsWith(".pfx") ? "PKCS12"
+                : KeyStore.getDefaultType());
+        InputStream in = new FileInputStream(path);
+        try {
+            store.load(in, password);
+        } finally {
+            in.close();
+        }
+        return store;
+    }
+
+    boolean encrypts() {
+        return context != null;
+    }
+
+    boolean usesPsk() {
+        return psk != null;
+    }
+
+    /**
+     * True when the server accepts clients that prove neither a certificate
+     * nor the pre-shared key.
+     */
+    boolean acceptsAnyClient() {
+        return psk == null && (context == null || !needClientAuth);
+    }
+
+    @Override
+    public String toString() {
+        String auth = psk != null ? "pre-shared key" : needClientAuth ? "client certificates" : "no client auth";
+        return (context != null ? "TLS " + Arrays.toString(protocols) + (verifyHostname ? "" : ", no hostname check")
+                : "plaintext") + ", " + auth;
+    }
+
+    /**
+     * Handshake counts since start, e.g. "12 TLS handshakes, 11 resumed".
+     */
+    String stats() {
+        return handshakes.get() + " TLS handshakes, " + resumed.get() + " resumed";
+    }
+
+    // ----- TLS -----
+
+    /**
+     * Runs the client side of the handshake over a connected socket,
+     * waiting at most timeoutMs. The host and port key the session cache.
+     */
+    Socket wrapClient(Socket plain, String host, int port, int timeoutMs) throws IOException {
+        SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(plain, host, port, true);
+        socket.setSSLParameters(clientParameters());
+        handshake(socket, timeoutMs);
+        return socket;
+    }
+
+    /**
+     * Runs the server side of the handshake over an accepted socket.
+     */
+    Socket wrapServer(Socket plain, int timeoutMs) throws IOException {
+        SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(plain, null, true);
+        socket.setUseClientMode(false);
+        socket.setEnabledProtocols(protocols);
+        socket.setNeedClientAuth(needClientAuth);
+        handshake(socket, timeoutMs);
+        return socket;
+    }
+
+    /**
+     * The common name (CN) of the certificate a TLS peer proved it holds,
+     * or null for a plain socket or a peer without a certificate.
+     */
+    static String peerName(Socket socket) {
+        if (!(socket instanceof SSLSocket)) {
+            return null;
+        }
+        try {
+            Principal principal = ((SSLSocket) socket).getSession().getPeerPrincipal();
+            for (Rdn rdn : new LdapName(principal.getName()).getRdns()) {
+                if ("CN".equalsIgnoreCase(rdn.getType())) {
+                    return rdn.getValue().toString();
+                }
+            }
+        } catch (SSLPeerUnverifiedException | InvalidNameException e) {
+            // No certificate, or a subject without a usable name
+        }
+        return null;
+    }
+
+    private void handshake(SSLSocket socket, int timeoutMs) throws IOException {
+        int previousTimeout = socket.getSoTimeout();
+        long startedAt = System.currentTimeMillis();
+        socket.setSoTimeout(timeoutMs);
+        try {
+            socket.startHandshake();
+        } catch (IOException e) {
+            socket.close();
+            throw new IOException("TLS handshake failed: " + e.getMessage(), e);
+        }
+        socket.setSoTimeout(previousTimeout);
+        handshakeDone(socket.getSession(), startedAt);
+    }
+
+    /**
+     * A client engine for non-blocking connections; call
+     * {@link #handshakeDone} once its handshake has finished.
+     */
+    SSLEngine clientEngine(String host, int port) {
+        SSLEngine engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        engine.setSSLParameters(clientParameters());
+        return engine;
+    }
+
+    private SSLParameters clientParameters() {
+        SSLParameters parameters = context.getDefaultSSLParameters();
+        parameters.setProtocols(protocols);
+        if (verifyHostname) {
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        }
+        return parameters;
+    }
+
+    /**
+     * Counts a finished handshake. A resumed session keeps the creation time
+     * of the full handshake that established it.
+     */
+    void handshakeDone(SSLSession session, long startedAt) {
+        handshakes.incrementAndGet();
+        if (session.getCreationTime() < startedAt) {
+            resumed.incrementAndGet();
+        }
+    }
+
+    // ----- pre-shared key -----
+
+    /**
+     * Server side of the key exchange; on failure the client is told so
+     * and false is returned.
+     */
+    boolean verifyClient(BufferedReader reader, PrintWriter writer) throws IOException {
+        String serverNonce = nonce();
+        writer.println(AUTH + serverNonce);
+        String answer = reader.readLine();
+        String[] parts = answer != null && answer.startsWith(AUTH) ? answer.substring(AUTH.length()).split(" ") : null;
+        if (parts == null || parts.length != 2
+                || !MessageDigest.isEqual(mac("client", serverNonce, parts[0]).getBytes("UTF-8"),
+                        parts[1].getBytes("UTF-8"))) {
+            writer.println(AUTH_FAILED);
+            return false;
+        }
+        writer.println(AUTH_OK + mac("server", serverNonce, parts[0]));
+        return true;
+    }
+
+    /**
+     * Client side of the key exchange over a blocking connection.
+     */
+    void proveClient(BufferedReader reader, PrintWriter writer) throws IOException {
+        PskClient exchange = new PskClient();
+        writer.println(exchange.answer(reader.readLine()));
+        exchange.verify(reader.readLine());
+    }
+
+    /**
+     * Client side of the key exchange, fed one line at a time, for
+     * non-blocking connections.
+     */
+    class PskClient {
+        private String expected;
+
+        /**
+         * The reply to the server's challenge line.
+         */
+        String answer(String challenge) throws IOException {
+            if (challenge == null || !challenge.startsWith(AUTH)) {
+                throw new IOException("Server did not ask for the pre-shared key (is auth.pskFile set on both sides?)");
+            }
+            String serverNonce = challenge.substring(AUTH.length()).trim();
+            String clientNonce = nonce();
+            expected = AUTH_OK + mac("server", serverNonce, clientNonce);
+            return AUTH + clientNonce + " " + mac("client", serverNonce, clientNonce);
+        }
+
+        /**
+         * Checks the server's reply; throws if it does not know the key.
+         */
+        void verify(String reply) throws IOException {
+            if (AUTH_FAILED.equals(reply)) {
+                throw new IOException("Server rejected the pre-shared key");
+            }
+            if (reply == null || expected == null
+                    || !MessageDigest.isEqual(expected.getBytes("UTF-8"), reply.getBytes("UTF-8"))) {
+                throw new IOException("Server does not know the pre-shared key");
+            }
+        }
+    }
+
+    private String nonce() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        return hex(bytes);
+    }
+
+    private String mac(String role, String serverNonce, String clientNonce) throws IOException {
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(new SecretKeySpec(psk, HMAC));
+            return hex(mac.doFinal((role + " " + serverNonce + " " + clientNonce).getBytes("UTF-8")));
+        } catch (GeneralSecurityException e) {
+            throw new IOException(HMAC + " unavailable: " + e.getMessage(), e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder text = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            text.append(String.format("%02x", b));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,675 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+
+/**
+ * Talks to any number of hosts from a single thread: connects without
+ * blocking, writes queued commands, splits the incoming bytes into lines and
+ * hands every line and every complete response (up to END_OF_RESPONSE) to a
+ * listener. Used by manual mode so hundreds of hosts need one I/O thread
+ * rather than one reader thread each.
+ *
+ * With TLS configured each connection gets an SSLEngine driven by the same
+ * loop, and a pre-shared key exchange runs before the client name is sent; a
+ * host counts as connected once both are done.
+ */
+class SelectorClient {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final long SELECT_INTERVAL_MS = 100;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     * Receives events on the I/O thread; implementations must not block.
+     */
+    interface Listener {
+        void connected(HostConfig host);
+
+        /**
+         * Called for every line; returning true keeps the line out of the
+         * response, e.g. for PTY frames.
+         */
+        boolean line(HostConfig host, String line);
+
+        void response(HostConfig host, BroadcastRunner.HostResult result);
+
+        void closed(HostConfig host, String reason);
+    }
+
+    /**
+     * Connection state of one host, owned by the I/O thread
+     */
+    private static class Peer {
+        final HostConfig host;
+        final long connectDeadline;
+        // The connection, once one of the attempts has connected
+        SocketChannel channel;
+        // Connection attempts, one per address, raced as in ConnectionManager.open
+        List<InetAddress> addresses;
+        int nextAddress;
+        long nextAttemptAt;
+        final List<SocketChannel> attempts = new ArrayList<SocketChannel>();
+        String attemptError;
+        final ByteArrayOutputStream partial = new ByteArrayOutputStream();
+        final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+        final Queue<Long> sentAt = new ConcurrentLinkedQueue<Long>();
+        volatile boolean open;
+        volatile boolean closed;
+        // TLS state, null/unused for plaintext
+        SSLEngine engine;
+        ByteBuffer netIn;
+        ByteBuffer netOut;
+        long handshakeStartedAt;
+        boolean secured;
+        SecureTransport.PskClient psk;
+        boolean pskAnswered;
+        long sent;       // commands queued, main thread
+        long responses;  // responses completed, I/O thread
+        BroadcastRunner.HostResult current;
+
+        Peer(HostConfig host, long connectDeadline) {
+            this.host = host;
+            this.connectDeadline = connectDeadline;
+        }
+    }
+
+    /**
+     * Collects one response per host for a broadcast
+     */
+    private static class Collector {
+        final Map<Peer, Long> expected;
+        final Map<Peer, BroadcastRunner.HostResult> results = new ConcurrentHashMap<Peer, BroadcastRunner.HostResult>();
+        final CountDownLatch done;
+
+        Collector(Map<Peer, Long> expected) {
+            this.expected = expected;
+            this.done = new CountDownLatch(expected.size());
+        }
+
+        void offer(Peer peer, long sequence, BroadcastRunner.HostResult result) {
+            Long wanted = expected.get(peer);
+            if (wanted != null && wanted == sequence && results.put(peer, result) == null) {
+                done.countDown();
+            }
+        }
+
+        void lost(Peer peer, String reason) {
+            if (expected.containsKey(peer) && !results.containsKey(peer)) {
+                BroadcastRunner.HostResult result = new BroadcastRunner.HostResult(peer.host);
+                result.status = BroadcastStatus.DISCONNECTED;
+                result.error = reason;
+                if (results.putIfAbsent(peer, result) == null) {
+                    done.countDown();
+                }
+            }
+        }
+    }
+
+    private final Selector selector;
+    private final Listener listener;
+    private final int connectTimeoutMs;
+    private final List<Peer> peers = new ArrayList<Peer>();
+    private final Queue<Peer> pendingWrites = new ConcurrentLinkedQueue<Peer>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final SecureTransport security = ConnectionManager.getSecurity();
+    private CountDownLatch settled;
+    private volatile Collector collector;
+    private volatile boolean running;
+    private Thread ioThread;
+
+    SelectorClient(Listener listener, int connectTimeoutMs) throws IOException {
+        this.selector = Selector.open();
+        this.listener = listener;
+        this.connectTimeoutMs = connectTimeoutMs;
+    }
+
+    /**
+     * Starts connecting to all hosts and runs the I/O loop on its own
+     * thread. The client name is queued as each connection's first line,
+     * after the key exchange when a pre-shared key is configured.
+     */
+    void start(List<HostConfig> hosts) throws IOException {
+        settled = new CountDownLatch(hosts.size());
+        List<String> hostnames = new ArrayList<String>();
+        for (HostConfig host : hosts) {
+            hostnames.add(host.hostname);
+        }
+        // Lookups and connects share one deadline
+        long deadline = System.currentTimeMillis() + connectTimeoutMs;
+        ConnectionManager.prefetch(hostnames, connectTimeoutMs);
+        for (HostConfig host : hosts) {
+            Peer peer = new Peer(host, deadline);
+            peers.add(peer);
+            if (security != null && security.usesPsk()) {
+                peer.psk = security.new PskClient();
+            } else {
+                peer.outbound.add(encode(host.clientName));
+            }
+            if (security != null && security.encrypts()) {
+                peer.engine = security.clientEngine(host.hostname, host.port);
+                int packetSize = peer.engine.getSession().getPacketBufferSize();
+                peer.netIn = ByteBuffer.allocate(packetSize * 2);
+                peer.netOut = ByteBuffer.allocate(packetSize * 2);
+            }
+            try {
+                peer.addresses = ConnectionManager.interleaveFamilies(ConnectionManager.resolve(host.hostname));
+                attempt(peer);
+            } catch (IOException e) {
+                close(peer, e.getMessage());
+            } catch (RuntimeException e) {
+                // Invalid address
+                close(peer, e.toString());
+            }
+        }
+        running = true;
+        ioThread = new Thread(new Runnable() {
+            public void run() {
+                loop();
+            }
+        }, "client-io");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    /**
+     * Waits until every host is connected or has failed; returns the
+     * number of open connections.
+     */
+    int awaitConnections() throws InterruptedException {
+        settled.await(connectTimeoutMs + SELECT_INTERVAL_MS * 5, TimeUnit.MILLISECONDS);
+        return openHosts().size();
+    }
+
+    List<HostConfig> openHosts() {
+        List<HostConfig> open = new ArrayList<HostConfig>();
+        for (Peer peer : peers) {
+            if (peer.open && !peer.closed) {
+                open.add(peer.host);
+            }
+        }
+        return open;
+    }
+
+    /**
+     * Queues a command for every open host.
+     */
+    void sendCommand(String command) {
+        for (Peer peer : peers) {
+            if (peer.open && !peer.closed) {
+                queue(peer, command, true);
+            }
+        }
+    }
+
+    /**
+     * Queues a line that is not a command of its own, e.g. a PTY frame.
+     */
+    void sendLine(String line) {
+        for (Peer peer : peers) {
+            if (peer.open && !peer.closed) {
+                queue(peer, line, false);
+            }
+        }
+    }
+
+    /**
+     * Sends a command to the given open hosts and waits up to timeoutMs for
+     * all responses. Results are in host order; hosts that did not answer in
+     * time are reported as TIMEOUT.
+     */
+    List<BroadcastRunner.HostResult> broadcast(final String command, List<HostConfig> targets, long timeoutMs)
+            throws InterruptedException {
+        return broadcast(new BroadcastRunner.CommandSource() {
+            public String commandFor(HostConfig host) {
+                return command;
+            }
+        }, targets, timeoutMs);
+    }
+
+    /**
+     * Like {@link #broadcast(String, List, long)} with a command per host.
+     */
+    List<BroadcastRunner.HostResult> broadcast(BroadcastRunner.CommandSource commands, List<HostConfig> targets,
+            long timeoutMs) throws InterruptedException {
+        Map<Peer, Long> expected = new LinkedHashMap<Peer, Long>();
+        for (Peer peer : peers) {
+            if (peer.open && !peer.closed && targets.contains(peer.host)) {
+                expected.put(peer, peer.sent + 1);
+            }
+        }
+        Collector batch = new Collector(expected);
+        collector = batch;
+        try {
+            for (Peer peer : expected.keySet()) {
+                queue(peer, commands.commandFor(peer.host), true);
+            }
+            batch.done.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } finally {
+            collector = null;
+        }
+        List<BroadcastRunner.HostResult> results = new ArrayList<BroadcastRunner.HostResult>();
+        for (Peer peer : expected.keySet()) {
+            BroadcastRunner.HostResult result = batch.results.get(peer);
+            if (result == null) {
+                result = new BroadcastRunner.HostResult(peer.host);
+                result.status = BroadcastStatus.TIMEOUT;
+                result.error = "No response within " + timeoutMs + " ms";
+                result.latencyMs = timeoutMs;
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * Flushes queued output for up to flushTimeoutMs, then closes every
+     * connection and stops the I/O thread.
+     */
+    void close(long flushTimeoutMs) {
+        long deadline = System.currentTimeMillis() + flushTimeoutMs;
+        while (System.currentTimeMillis() < deadline && hasPendingOutput()) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        running = false;
+        selector.wakeup();
+        if (ioThread != null) {
+            try {
+                ioThread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Peer peer : peers) {
+            closeChannels(peer);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Ignore close errors
+        }
+    }
+
+    private boolean hasPendingOutput() {
+        for (Peer peer : peers) {
+            if (peer.open && !peer.closed && (!peer.outbound.isEmpty()
+                    || peer.engine != null && peer.netOut.position() > 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void queue(Peer peer, String line, boolean command) {
+        if (command) {
+            peer.sent++;
+            peer.sentAt.add(System.currentTimeMillis());
+        }
+        peer.outbound.add(encode(line));
+        // Interest ops are changed on the I/O thread only
+        pendingWrites.add(peer);
+        selector.wakeup();
+    }
+
+    private static ByteBuffer encode(String line) {
+        return ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void loop() {
+        while (running) {
+            try {
+                selector.select(SELECT_INTERVAL_MS);
+            } catch (IOException e) {
+                break;
+            }
+            Peer writer;
+            while ((writer = pendingWrites.poll()) != null) {
+                SelectionKey key = writer.channel != null ? writer.channel.keyFor(selector) : null;
+                // Also before a host is open, for the key exchange
+                if (key != null && key.isValid() && writer.channel.isConnected()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Peer peer = (Peer) key.attachment();
+                try {
+                    if (key.isValid() && key.isConnectable()) {
+                        SocketChannel attempt = (SocketChannel) key.channel();
+                        try {
+                            attempt.finishConnect();
+                        } catch (IOException e) {
+                            peer.attempts.remove(attempt);
+                            attempt.close();
+                            peer.attemptError = e.getMessage() != null ? e.getMessage() : e.toString();
+                            // The next address right away; closes the host once none is left
+                            attempt(peer);
+                            continue;
+                        }
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        won(peer, attempt, key);
+                    }
+                    if (peer.engine != null) {
+                        if (key.isValid() && key.isReadable() && peer.channel.read(peer.netIn) < 0) {
+                            close(peer, peer.secured ? "Connection closed by server"
+                                    : "Connection closed during the TLS handshake");
+                        } else if (key.isValid() && (key.isReadable() || key.isWritable())) {
+                            pump(peer, key);
+                        }
+                        continue;
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read(peer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        write(peer, key);
+                    }
+                } catch (IOException e) {
+                    close(peer, e.getMessage() != null ? e.getMessage() : e.toString());
+                }
+            }
+            long now = System.currentTimeMillis();
+            for (Peer peer : peers) {
+                if (peer.channel == null && !peer.closed && now >= peer.nextAttemptAt
+                        && peer.nextAddress < peer.addresses.size()) {
+                    try {
+                        attempt(peer);
+                    } catch (IOException e) {
+                        close(peer, e.getMessage());
+                    }
+                }
+                if (!peer.open && !peer.closed && now > peer.connectDeadline) {
+                    close(peer, (peer.engine != null || peer.psk != null ? "Connect and handshake timed out after "
+                            : "Connect timed out after ") + connectTimeoutMs + " ms");
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts connecting to the peer's next address. A new attempt starts
+     * every ATTEMPT_DELAY_MS while the earlier ones are still pending, or
+     * right away when one fails; the first to connect wins. Closes the peer
+     * when every address has failed.
+     */
+    private void attempt(Peer peer) throws IOException {
+        while (peer.nextAddress < peer.addresses.size()) {
+            InetAddress address = peer.addresses.get(peer.nextAddress++);
+            peer.nextAttemptAt = System.currentTimeMillis() + ConnectionManager.ATTEMPT_DELAY_MS;
+            SocketChannel channel = SocketChannel.open();
+            try {
+                channel.configureBlocking(false);
+                if (channel.connect(new InetSocketAddress(address, peer.host.port))) {
+                    won(peer, channel, channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, peer));
+                } else {
+                    channel.register(selector, SelectionKey.OP_CONNECT, peer);
+                    peer.attempts.add(channel);
+                }
+                return;
+            } catch (IOException e) {
+                channel.close();
+                peer.attemptError = e.getMessage() != null ? e.getMessage() : e.toString();
+            }
+        }
+        if (peer.attempts.isEmpty()) {
+            close(peer, peer.attemptError != null ? peer.attemptError
+                    : "No address of " + peer.host.hostname + " connected");
+        }
+    }
+
+    /**
+     * One attempt connected: it becomes the peer's channel and the others
+     * are dropped.
+     */
+    private void won(Peer peer, SocketChannel channel, SelectionKey key) throws IOException {
+        peer.channel = channel;
+        for (SocketChannel other : peer.attempts) {
+            if (other != channel) {
+                other.close();
+            }
+        }
+        peer.attempts.clear();
+        connected(peer, key);
+    }
+
+    /**
+     * TCP connection established; starts the TLS handshake or waits for the
+     * key exchange, if any, before the host counts as open.
+     */
+    private void connected(Peer peer, SelectionKey key) throws IOException {
+        peer.channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+        peer.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        if (peer.engine != null) {
+            peer.handshakeStartedAt = System.currentTimeMillis();
+            peer.engine.beginHandshake();
+            pump(peer, key);
+        } else if (peer.psk == null) {
+            opened(peer);
+        }
+    }
+
+    private void opened(Peer peer) {
+        peer.open = true;
+        peer.host.state = ConnectionState.CONNECTED;
+        listener.connected(peer.host);
+        settled.countDown();
+    }
+
+    private void write(Peer peer, SelectionKey key) throws IOException {
+        ByteBuffer buffer;
+        while ((buffer = peer.outbound.peek()) != null) {
+            peer.channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                return; // Socket buffer full; wait for the next OP_WRITE
+            }
+            peer.outbound.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        if (!peer.outbound.isEmpty()) {
+            // Raced with a queue() call
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Moves a TLS connection forward as far as it can without blocking:
+     * runs handshake tasks, encrypts queued lines, sends what is encrypted
+     * and decrypts what has arrived. Waits for OP_WRITE only while
+     * encrypted bytes are left over.
+     */
+    private void pump(Peer peer, SelectionKey key) throws IOException {
+        SSLEngine engine = peer.engine;
+        boolean progress = true;
+        while (progress && !peer.closed) {
+            progress = false;
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                // Certificate checks; quick enough to run on the I/O thread
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                progress = true;
+                continue;
+            }
+            if (peer.netOut.position() > 0) {
+                peer.netOut.flip();
+                peer.channel.write(peer.netOut);
+                peer.netOut.compact();
+                if (peer.netOut.position() > 0) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return; // Socket buffer full
+                }
+            }
+            boolean handshaking = status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                    && status != SSLEngineResult.HandshakeStatus.FINISHED;
+            if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP || !handshaking && !peer.outbound.isEmpty()) {
+                ByteBuffer source = handshaking ? EMPTY : peer.outbound.peek();
+                SSLEngineResult result = engine.wrap(source, peer.netOut);
+                if (source != EMPTY && !source.hasRemaining()) {
+                    peer.outbound.poll();
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    close(peer, "TLS connection closed");
+                    return;
+                }
+                progress |= result.bytesProduced() > 0 || result.bytesConsumed() > 0;
+            }
+            if (peer.netIn.position() > 0 && status != SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                peer.netIn.flip();
+                readBuffer.clear();
+                SSLEngineResult result;
+                try {
+                    result = engine.unwrap(peer.netIn, readBuffer);
+                } finally {
+                    peer.netIn.compact();
+                }
+                if (readBuffer.position() > 0) {
+                    split(peer, readBuffer.array(), readBuffer.position());
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    close(peer, "Connection closed by server");
+                    return;
+                }
+                progress |= result.bytesProduced() > 0 || result.bytesConsumed() > 0;
+            }
+            if (!peer.secured && engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                peer.secured = true;
+                security.handshakeDone(engine.getSession(), peer.handshakeStartedAt);
+                if (peer.psk == null) {
+                    opened(peer);
+                }
+                progress = true;
+            }
+        }
+        if (key.isValid()) {
+            boolean moreToSend = peer.netOut.position() > 0 || peer.secured && !peer.outbound.isEmpty();
+            key.interestOps(moreToSend ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+    }
+
+    private void read(Peer peer) throws IOException {
+        readBuffer.clear();
+        int read = peer.channel.read(readBuffer);
+        if (read < 0) {
+            close(peer, "Connection closed by server");
+            return;
+        }
+        split(peer, readBuffer.array(), read);
+    }
+
+    /**
+     * Splits received bytes into lines, keeping a trailing partial line.
+     */
+    private void split(Peer peer, byte[] data, int read) throws IOException {
+        int start = 0;
+        for (int i = 0; i < read; i++) {
+            if (data[i] == '\n') {
+                peer.partial.write(data, start, i - start);
+                byte[] bytes = peer.partial.toByteArray();
+                peer.partial.reset();
+                int length = bytes.length;
+                if (length > 0 && bytes[length - 1] == '\r') {
+                    length--;
+                }
+                line(peer, new String(bytes, 0, length, StandardCharsets.UTF_8));
+                start = i + 1;
+            }
+        }
+        peer.partial.write(data, start, read - start);
+    }
+
+    private void line(Peer peer, String line) throws IOException {
+        if (peer.psk != null && !peer.open) {
+            // Key exchange: answer the challenge, then check the server's proof
+            if (!peer.pskAnswered) {
+                peer.pskAnswered = true;
+                queue(peer, peer.psk.answer(line), false);
+                queue(peer, peer.host.clientName, false);
+            } else {
+                peer.psk.verify(line);
+                opened(peer);
+            }
+            return;
+        }
+        if (peer.current == null) {
+            peer.current = new BroadcastRunner.HostResult(peer.host);
+        }
+        boolean consumed = listener.line(peer.host, line);
+        if (ConnectionManager.isEndOfResponse(line)) {
+            BroadcastRunner.HostResult result = peer.current;
+            peer.current = null;
+            result.trailer = ConnectionManager.parseTrailer(line);
+            result.readExitCode(result.trailer);
+            if ("error".equals(result.trailer.get("status"))) {
+                result.status = BroadcastStatus.ERROR;
+            }
+            Long sentAt = peer.sentAt.poll();
+            result.latencyMs = sentAt != null ? System.currentTimeMillis() - sentAt : 0;
+            peer.responses++;
+            listener.response(peer.host, result);
+            Collector batch = collector;
+            if (batch != null) {
+                batch.offer(peer, peer.responses, result);
+            }
+        } else if (!consumed) {
+            peer.current.append(line);
+        }
+    }
+
+    private void close(Peer peer, String reason) {
+        if (peer.closed) {
+            return;
+        }
+        boolean wasOpen = peer.open;
+        peer.closed = true;
+        peer.host.state = wasOpen ? ConnectionState.DISCONNECTED : ConnectionState.FAILED;
+        closeChannels(peer);
+        if (!wasOpen) {
+            settled.countDown();
+        }
+        Collector batch = collector;
+        if (batch != null) {
+            batch.lost(peer, reason);
+        }
+        listener.closed(peer.host, reason);
+    }
+
+    private static void closeChannels(Peer peer) {
+        List<SocketChannel> channels = new ArrayList<SocketChannel>(peer.attempts);
+        if (peer.channel != null) {
+            channels.add(peer.channel);
+        }
+        for (SocketChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore close errors
+            }
+        }
+    }
+}
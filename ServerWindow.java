@@ -466,7 +466,7 @@ public class ServerWindow extends JFrame {
         killJavaButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                killJavaProcessesExceptTerminalServer();
+                killJavaProcessesExceptTerminalServer(killJavaButton);
             }
         });
         killJavaButton.addMouseListener(new MouseAdapter() {
@@ -574,50 +574,47 @@ public class ServerWindow extends JFrame {
 
     /**
      * Kills all running Java processes except the TerminalServer itself.
-     * Uses 'ps' and 'grep' on Linux, and logs results in the UI.
+     * Enumeration and termination run on a background thread via
+     * ProcessControl so the UI stays responsive; results are logged in the UI.
      */
-    private void killJavaProcessesExceptTerminalServer() {
+    private void killJavaProcessesExceptTerminalServer(final JButton trigger) {
         log("INFO", "Attempting to kill all Java processes except TerminalServer...");
-        try {
-            // Command to list all Java PIDs except TerminalServer (Linux/Unix only)
-            String[] cmd = { "/bin/sh", "-c", "ps aux | grep '[j]ava' | grep -v 'TerminalServer.jar' | awk '{print $2}'" };
-            ProcessBuilder pb = new ProcessBuilder(cmd);
-            Process process = pb.start();
-            java.io.BufferedReader reader = new java.io.BufferedReader(new java.io.InputStreamReader(process.getInputStream()));
-            String line;
-            java.util.List<String> pids = new java.util.ArrayList<String>();
-            while ((line = reader.readLine()) != null) {
-                line = line.trim();
-                if (!line.isEmpty()) {
-                    pids.add(line);
+        trigger.setEnabled(false);
+        Thread worker = new Thread(() -> {
+            try {
+                java.util.List<ProcessControl.KillResult> results = ProcessControl.killMatching(
+                        ProcessControl.DEFAULT_PATTERN,
+                        java.util.Collections.singletonList(ProcessControl.DEFAULT_EXCLUDE),
+                        ProcessControl.DEFAULT_GRACE_PERIOD_MS);
+                if (results.isEmpty()) {
+                    log("INFO", "No Java processes found to kill (except TerminalServer).");
+                    showMessage("No Java processes found (except TerminalServer).", "Info", JOptionPane.INFORMATION_MESSAGE);
+                    return;
                 }
-            }
-            reader.close();
-            process.waitFor();
-            if (pids.isEmpty()) {
-                log("INFO", "No Java processes found to kill (except TerminalServer).");
-                javax.swing.JOptionPane.showMessageDialog(this, "No Java processes found (except TerminalServer).", "Info", javax.swing.JOptionPane.INFORMATION_MESSAGE);
-                return;
-            }
-            // Kill each PID
-            int killed = 0;
-            for (String pid : pids) {
-                try {
-                    String[] killCmd = { "/bin/sh", "-c", "kill -9 " + pid };
-                    ProcessBuilder killPb = new ProcessBuilder(killCmd);
-                    Process killProcess = killPb.start();
-                    killProcess.waitFor();
-                    killed++;
-                    log("SUCCESS", "Killed Java process PID: " + pid);
-                } catch (Exception ex) {
-                    log("ERROR", "Failed to kill PID: " + pid + " - " + ex.getMessage());
+                int killed = 0;
+                for (ProcessControl.KillResult result : results) {
+                    if (result.outcome == ProcessControl.Outcome.FAILED) {
+                        log("ERROR", "Failed to kill PID: " + result.process.pid + " - " + result.detail);
+                    } else {
+                        killed++;
+                        log("SUCCESS", "Killed Java process PID: " + result.process.pid
+                                + (result.outcome == ProcessControl.Outcome.FORCED ? " (forced)" : ""));
+                    }
                 }
+                showMessage("Killed " + killed + " Java process(es) (except TerminalServer).", "Success", JOptionPane.INFORMATION_MESSAGE);
+            } catch (Exception ex) {
+                log("ERROR", "Failed to enumerate or kill Java processes: " + ex.getMessage());
+                showMessage("Error killing Java processes: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            } finally {
+                SwingUtilities.invokeLater(() -> trigger.setEnabled(true));
             }
-            javax.swing.JOptionPane.showMessageDialog(this, "Killed " + killed + " Java process(es) (except TerminalServer).", "Success", javax.swing.JOptionPane.INFORMATION_MESSAGE);
-        } catch (Exception ex) {
-            log("ERROR", "Failed to enumerate or kill Java processes: " + ex.getMessage());
-            javax.swing.JOptionPane.showMessageDialog(this, "Error killing Java processes: " + ex.getMessage(), "Error", javax.swing.JOptionPane.ERROR_MESSAGE);
-        }
+        }, "kill-java-processes");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private void showMessage(String message, String title, int type) {
+        SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this, message, title, type));
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,123 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Opens many idle sessions against one TerminalServer, so the thread use of
+ * an execution backend can be measured instead of assumed:
+ *
+ *   java -cp TerminalClient.jar SessionLoad &lt;host&gt; &lt;port&gt; &lt;sessions&gt; [holdSeconds] [serverPid]
+ *
+ * Every session sends its name and "-job list", then stays open for
+ * holdSeconds. With a serverPid on the same Linux machine the server's
+ * thread count and resident memory are read from /proc while all sessions
+ * are open. Plaintext only: run it against a test server without tls.* or
+ * auth.* keys, and raise the open file limit (ulimit -n) of both sides
+ * above the session count.
+ */
+class SessionLoad {
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 30000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Usage: SessionLoad <host> <port> <sessions> [holdSeconds] [serverPid]");
+            System.exit(2);
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        int sessions = Integer.parseInt(args[2]);
+        int holdSeconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        String pid = args.length > 4 ? args[4] : null;
+
+        String before = pid != null ? serverStatus(pid) : null;
+        List<Socket> sockets = new ArrayList<Socket>();
+        List<BufferedReader> readers = new ArrayList<BufferedReader>();
+        long start = System.currentTimeMillis();
+        String failure = null;
+        for (int i = 0; i < sessions && failure == null; i++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+                socket.setSoTimeout(READ_TIMEOUT_MS);
+                PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+                writer.println("load-" + i);
+                writer.println("-job list");
+                sockets.add(socket);
+                readers.add(new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8")));
+            } catch (IOException e) {
+                failure = "session " + i + ": " + e.getMessage();
+                socket.close();
+            }
+        }
+        long opened = System.currentTimeMillis();
+
+        // Requests were all sent before the first answer is read, so the server holds every session at once
+        int answered = 0;
+        for (BufferedReader reader : readers) {
+            try {
+                String line;
+                while ((line = reader.readLine()) != null && !line.startsWith("END_OF_RESPONSE")) {
+                    // Job list output is not checked
+                }
+                if (line != null) {
+                    answered++;
+                }
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = "read: " + e.getMessage();
+                }
+            }
+        }
+        long done = System.currentTimeMillis();
+
+        System.out.println("sessions=" + sessions + " opened=" + sockets.size() + " answered=" + answered
+                + " openMs=" + (opened - start) + " answerMs=" + (done - opened));
+        if (failure != null) {
+            System.out.println("first failure: " + failure);
+        }
+        if (pid != null) {
+            System.out.println("server before: " + before);
+            System.out.println("server loaded: " + serverStatus(pid));
+        }
+        Thread.sleep(holdSeconds * 1000L);
+        if (pid != null) {
+            System.out.println("server after " + holdSeconds + "s: " + serverStatus(pid));
+        }
+
+        for (Socket socket : sockets) {
+            try {
+                new PrintWriter(socket.getOutputStream(), true).println("exit");
+                socket.close();
+            } catch (IOException e) {
+                // Ignore close errors
+            }
+        }
+    }
+
+    /**
+     * Threads and VmRSS from /proc/&lt;pid&gt;/status
+     */
+    private static String serverStatus(String pid) {
+        File status = new File("/proc/" + pid + "/status");
+        try {
+            StringBuilder result = new StringBuilder();
+            for (String line : Files.readAllLines(status.toPath())) {
+                if (line.startsWith("Threads:") || line.startsWith("VmRSS:")) {
+                    result.append(result.length() == 0 ? "" : " ")
+                            .append(line.replaceAll(":\\s+", "=").replaceAll("\\s+kB", "kB"));
+                }
+            }
+            return result.toString();
+        } catch (IOException e) {
+            return "unavailable (" + status + ")";
+        }
+    }
+}
@@ -7,13 +7,27 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
 
-import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.GeneralSecurityException;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.List;
+import java.util.Set;
 import java.util.Properties;
+import java.util.Random;
 
 import java.awt.BorderLayout;
 import java.awt.Dimension;
@@ -33,20 +47,11 @@ import javax.swing.SwingUtilities;
 import java.util.Date;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.HashSet;
 
 import java.awt.Color;
 import java.awt.Font;
 
-/**
- * Represents the connection state of a host
- */
-enum ConnectionState {
-    DISCONNECTED,
-    CONNECTING,
-    CONNECTED,
-    FAILED
-}
-
 /**
  * Represents the execution mode of the terminal client
  */
@@ -55,142 +60,13 @@ enum ExecutionMode {
     AUTOMATIC
 }
 
-/**
- * Configuration for a remote host connection
- */
-class HostConfig {
-    private static final int RETRY_COOLDOWN_MS = 5000;
-
-    final String hostname;
-    final int port;
-    final String clientName;
-    final String autoCommand;
-    ConnectionState state;
-    long lastAttempt;
-    int retryCount;
-
-    public HostConfig(String hostname, int port, String clientName, String autoCommand) {
-        this.hostname = hostname;
-        this.port = port;
-        this.clientName = clientName;
-        this.autoCommand = autoCommand;
-        this.state = ConnectionState.DISCONNECTED;
-        this.lastAttempt = 0;
-        this.retryCount = 0;
-    }
-
-    public boolean canRetry() {
-        return System.currentTimeMillis() - lastAttempt >= RETRY_COOLDOWN_MS;
-    }
-
-    @Override
-    public String toString() {
-        return String.format("Host[%s:%d, client=%s]", hostname, port, clientName);
-    }
-}
-
-/**
- * Manages network connections to remote hosts
- */
-class ConnectionManager {
-    private static final int TIMEOUT_MS = 30000;
-    private static LogCallback logCallback;
-    private Socket socket;
-    private PrintWriter writer;
-    private BufferedReader reader;
-    private HostConfig config;
-
-    public static void setLogCallback(LogCallback callback) {
-        logCallback = callback;
-    }
-
-    interface LogCallback {
-        void log(String message);
-    }
-
-    public ConnectionManager(HostConfig config) {
-        this.config = config;
-    }
-
-    public boolean connect() throws IOException {
-        try {
-            socket = new Socket(config.hostname, config.port);
-            socket.setSoTimeout(TIMEOUT_MS);
-            socket.setKeepAlive(true);
-            writer = new PrintWriter(socket.getOutputStream(), true);
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            config.state = ConnectionState.CONNECTED;
-            return true;
-        } catch (IOException e) {
-            config.state = ConnectionState.FAILED;
-            close(); // Ensure cleanup on connection failure
-            throw e;
-        }
-    }
-
-    public void sendCommand(String command) throws IOException {
-        if (!config.state.equals(ConnectionState.CONNECTED) || socket == null || socket.isClosed()) {
-            throw new IOException("Not connected to host: " + config.hostname);
-        }
-        try {
-            writer.println(command);
-            if (writer.checkError()) { // Check for write errors
-                throw new IOException("Write error occurred");
-            }
-        } catch (Exception e) {
-            close(); // Cleanup on error
-            throw new IOException("Failed to send command: " + e.getMessage());
-        }
-    }
-
-    public String readResponse() throws IOException {
-        if (!config.state.equals(ConnectionState.CONNECTED) || reader == null) {
-            throw new IOException("Not connected to host: " + config.hostname);
-        }
-        try {
-            String response = reader.readLine();
-            if (response == null) {
-                throw new IOException("Connection closed by server");
-            }
-            return response;
-        } catch (IOException e) {
-            close(); // Cleanup on error
-            throw e;
-        }
-    }
-
-    public void close() {
-        try {
-            if (writer != null) {
-                writer.close();
-            }
-            if (reader != null) {
-                reader.close();
-            }
-            if (socket != null) {
-                socket.close();
-            }
-        } catch (IOException e) {
-            // Log close errors but don't throw
-            if (logCallback != null) {
-                logCallback.log("Error closing connection: " + e.getMessage());
-            }
-        } finally {
-            config.state = ConnectionState.DISCONNECTED;
-            reader = null;
-            writer = null;
-            socket = null;
-        }
-    }
-}
-
 /**
  * Terminal client application for managing remote host connections
  */
 public class TerminalClient {
     private static final int MAX_RETRIES = 3;
     private static final String CONFIG_FILE = "client_config.properties";
-    private static final String LOCK_FILE = "terminal_client.lock";
+    private static final String INSTANCE_FILE_PREFIX = "terminal_client";
     private static final int LOG_MAX_LINES = 100;
 
     private static BufferedReader consoleReader;
@@ -199,15 +75,56 @@ public class TerminalClient {
     private static ExecutionMode executionMode;
     private static JDialog statusDialog;
     private static JLabel statusLabel;
-    private static File lockFile;
+    // Empty for the default instance; set with --instance <name>
+    private static String instanceName = "";
+    private static FileChannel lockChannel;
+    private static FileLock lock;
     private static List<HostConfig> hostConfigs = new ArrayList<HostConfig>();
+    private static Map<String, CommandTemplate> templates = new HashMap<String, CommandTemplate>();
+    private static Inventory inventory = new Inventory();
+    private static Discovery.Table discovered = new Discovery.Table();
     private static Map<String, ConnectionManager> connections = new HashMap<String, ConnectionManager>();
 
-    private static boolean isAlreadyRunning() {
+    /**
+     * File of this instance, e.g. terminal_client.lock or, for the instance
+     * "store5", terminal_client-store5.lock.
+     */
+    private static String instanceFile(String suffix) {
+        return INSTANCE_FILE_PREFIX + (instanceName.isEmpty() ? "" : "-" + instanceName) + suffix;
+    }
+
+    /**
+     * Takes the OS-level lock of this instance. The lock goes away with the
+     * process, however it ends, so a crash cannot leave a stale lock behind.
+     */
+    private static boolean acquireLock() {
         try {
-            return !lockFile.createNewFile();
-        } catch (IOException e) {
+            lockChannel = new RandomAccessFile(instanceFile(".lock"), "rw").getChannel();
+            lock = lockChannel.tryLock();
+            if (lock == null) {
+                // Held by another process
+                lockChannel.close();
+                return false;
+            }
             return true;
+        } catch (OverlappingFileLockException e) {
+            return false;
+        } catch (IOException e) {
+            System.err.println("Could not acquire lock on " + instanceFile(".lock") + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static void releaseLock() {
+        try {
+            if (lock != null) {
+                lock.release();
+            }
+            if (lockChannel != null) {
+                lockChannel.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to release file lock: " + e.getMessage());
         }
     }
 
@@ -218,28 +135,82 @@ public class TerminalClient {
             }
         });
 
-        lockFile = new File(LOCK_FILE);
-        if (isAlreadyRunning()) {
+        // Named instances run side by side, e.g. against disjoint host groups: --instance <name> ...
+        if (args.length >= 2 && "--instance".equals(args[0])) {
+            if (!args[1].matches("[A-Za-z0-9_-]{1,64}")) {
+                System.err.println("Invalid instance name: " + args[1]);
+                System.exit(1);
+            }
+            instanceName = args[1];
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+
+        // Forward to a running daemon before anything else, so each call stays cheap
+        if (args.length >= 1 && "--ctl".equals(args[0])) {
+            System.exit(callDaemon(Arrays.asList(args).subList(1, args.length)));
+        }
+
+        if (!acquireLock()) {
+            String message = "Another instance" + (instanceName.isEmpty() ? "" : " named " + instanceName)
+                    + " is already running.";
             if (isRunningInCommandPrompt()) {
-                System.err.println("Another instance is already running.");
+                System.err.println(message);
             } else {
-                showError("Another instance is already running.");
+                showError(message);
             }
             System.exit(1);
         }
 
         Runtime.getRuntime().addShutdownHook(new Thread() {
             public void run() {
-                if (lockFile.exists()) {
-                    lockFile.delete();
-                }
+                releaseLock();
             }
         });
 
         loadConfig();
+        // List the servers announcing themselves: TerminalClient --discover [waitMs]
+        if (args.length >= 1 && "--discover".equals(args[0])) {
+            listenForServers(args.length >= 2 ? Integer.parseInt(args[1]) : getConfigInt("discovery.waitMs", 2000));
+            for (Discovery.Beacon beacon : discovered.live()) {
+                System.out.println(beacon);
+            }
+            System.exit(discovered.live().isEmpty() ? 2 : 0);
+        }
+        if (Boolean.parseBoolean(getConfigString("discovery.enabled", "false"))) {
+            addDiscoveredHosts();
+        }
+        try {
+            args = narrowHosts(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        ConnectionManager.setConnectTimeout(getConfigInt("connect.timeoutMs", ConnectionManager.DEFAULT_CONNECT_TIMEOUT_MS));
+        try {
+            ConnectionManager.setSecurity(SecureTransport.fromConfig(config));
+        } catch (IOException | GeneralSecurityException e) {
+            System.err.println("Cannot set up TLS or the pre-shared key: " + e.getMessage());
+            System.exit(1);
+        }
         isSilent = Boolean.parseBoolean(getConfigString("silentMode", ""));
         executionMode = ExecutionMode.valueOf(getConfigString("executionMode", "MANUAL"));
 
+        // Long-lived client: TerminalClient --daemon, then TerminalClient --ctl <arguments>
+        if (args.length >= 1 && "--daemon".equals(args[0])) {
+            isSilent = true;
+            runDaemon();
+            System.exit(0);
+        }
+
+        int exitCode = runOneShot(args, false);
+        if (exitCode >= 0) {
+            for (ConnectionManager connection : connections.values()) {
+                connection.close();
+            }
+            connections.clear();
+            System.exit(exitCode);
+        }
+
         consoleReader = new BufferedReader(new InputStreamReader(System.in));
 
         // For automatic mode
@@ -265,41 +236,11 @@ public class TerminalClient {
             // Single attempt to connect to all hosts
             connectToHosts();
 
-            // Execute commands on any successfully connected hosts
-            for (Map.Entry<String, ConnectionManager> entry : connections.entrySet()) {
-                HostConfig hostConfig = null;
-                for (HostConfig config : hostConfigs) {
-                    if (config.hostname.equals(entry.getKey())) {
-                        hostConfig = config;
-                        break;
-                    }
-                }
-
-                if (hostConfig != null && !hostConfig.autoCommand.isEmpty()) {
-                    try {
-                        // If the command contains multiple parts, add delays
-                        if (hostConfig.autoCommand.contains(";")) {
-                            String[] parts = hostConfig.autoCommand.split(";");
-                            StringBuilder commandWithDelays = new StringBuilder();
-                            for (int i = 0; i < parts.length; i++) {
-                                commandWithDelays.append(parts[i].trim());
-                                if (i < parts.length - 1) {
-                                    commandWithDelays.append("; sleep 2; ");
-                                }
-                            }
-                            entry.getValue().sendCommand(commandWithDelays.toString());
-                        } else {
-                            entry.getValue().sendCommand(hostConfig.autoCommand);
-                        }
-                        
-                        if (!isSilent) {
-                            updateStatusLabel("Sending command to " + hostConfig.hostname);
-                            Thread.sleep(1500);
-                        }
-                    } catch (Exception e) {
-                        logError("Error executing commands on " + hostConfig.hostname + ": " + e.getMessage());
-                    }
-                }
+            boolean autoOk = true;
+            if (Boolean.parseBoolean(getConfigString("rollout.enabled", "false"))) {
+                autoOk = runRollout();
+            } else {
+                autoOk = runAutoCommands();
             }
 
             // Close all connections
@@ -311,116 +252,567 @@ public class TerminalClient {
             if (!isSilent) {
                 disposeStatusMessage();
             }
-            System.exit(0);
+            System.exit(autoOk ? 0 : 2);
         } else {
             // Manual mode
             System.out.println("Available hosts:");
-            for (int i = 0; i < hostConfigs.size(); i++) {
-                System.out.println((i + 1) + ". " + hostConfigs.get(i));
+            for (HostConfig hostConfig : hostConfigs) {
+                System.out.println((inventory.hosts().indexOf(hostConfig) + 1) + ". " + hostConfig);
+            }
+            if (!inventory.groupNames().isEmpty()) {
+                System.out.println("Groups: " + inventory.groupNames());
+            }
+            if (!inventory.tagNames().isEmpty()) {
+                System.out.println("Tags: " + inventory.tagNames());
             }
 
             try {
-                System.out.print("Select host number (or 'all' for all hosts): ");
+                System.out.print("Select hosts (number, 'all', group:<name>, tag:<name>, CIDR or name; ',' for any, '+' for all): ");
                 String selection = consoleReader.readLine();
-                List<HostConfig> selectedHosts = new ArrayList<HostConfig>();
+                List<HostConfig> selectedHosts;
+                try {
+                    selectedHosts = inventory.select(selection == null ? "" : selection);
+                } catch (IllegalArgumentException e) {
+                    selectedHosts = new ArrayList<HostConfig>();
+                    showError(e.getMessage());
+                    System.exit(1);
+                }
+                selectedHosts.retainAll(hostConfigs);
+                if (selectedHosts.isEmpty()) {
+                    showError("No hosts selected");
+                    System.exit(1);
+                }
 
-                if ("all".equalsIgnoreCase(selection)) {
-                    selectedHosts.addAll(hostConfigs);
-                } else {
-                    try {
-                        int index = Integer.parseInt(selection) - 1;
-                        if (index >= 0 && index < hostConfigs.size()) {
-                            selectedHosts.add(hostConfigs.get(index));
-                        } else {
-                            showError("Invalid host number");
-                            System.exit(1);
+                // Connect to all selected hosts at once; one I/O thread serves every connection
+                final boolean interactive = selectedHosts.size() == 1;
+                final PtySession.Client pty = new PtySession.Client(System.out);
+                final AtomicBoolean quitting = new AtomicBoolean();
+                final SelectorClient client = new SelectorClient(new SelectorClient.Listener() {
+                    public void connected(HostConfig host) {
+                        System.out.println("Connected to " + host.hostname);
+                    }
+
+                    public boolean line(HostConfig host, String line) {
+                        return interactive && printResponseLine(host, line, pty);
+                    }
+
+                    public void response(HostConfig host, BroadcastRunner.HostResult result) {
+                        // Single host: already printed line by line; several hosts: summarized by the loop
+                    }
+
+                    public void closed(HostConfig host, String reason) {
+                        if (quitting.get()) {
+                            return;
                         }
-                    } catch (NumberFormatException e) {
-                        showError("Invalid input. Please enter a number or 'all'");
+                        String errorMsg = host.state == ConnectionState.FAILED
+                                ? "Failed to connect to " + host + ": " + reason
+                                : "Connection lost to " + host.hostname + ": " + reason;
+                        logError(errorMsg);
+                        System.err.println(errorMsg);
+                    }
+                }, ConnectionManager.getConnectTimeout());
+                try {
+                    for (HostConfig hostConfig : selectedHosts) {
+                        logInfo("Attempting to connect to " + hostConfig);
+                        hostConfig.state = ConnectionState.CONNECTING;
+                    }
+                    client.start(selectedHosts);
+                    if (client.awaitConnections() == 0) {
+                        showError("No connections established");
                         System.exit(1);
                     }
+
+                    if (interactive) {
+                        runInteractiveLoop(client, pty, quitting);
+                    } else {
+                        // Several hosts: broadcast each command and print a grouped summary
+                        runBroadcastLoop(client, quitting);
+                    }
+                } finally {
+                    client.close(1000);
                 }
+            } catch (Exception e) {
+                showError("Error in manual mode: " + e.getMessage());
+            }
+        }
+    }
 
-                // Connect to selected hosts
-                for (HostConfig hostConfig : selectedHosts) {
-                    try {
-                        logInfo("Attempting to connect to " + hostConfig);
-                        ConnectionManager connection = new ConnectionManager(hostConfig);
-                        connection.connect();
-                        connections.put(hostConfig.hostname, connection);
-                        connection.sendCommand(hostConfig.clientName);
-                        System.out.println("Connected to " + hostConfig.hostname);
-                        Thread.sleep(1000);
-                    } catch (Exception e) {
-                        String errorMsg = "Failed to connect to " + hostConfig + ": " + e.getMessage();
-                        logError(errorMsg);
-                        System.err.println(errorMsg);
+    /**
+     * Prints one response line of the single selected host. Returns true if
+     * the line was fully handled here.
+     */
+    private static boolean printResponseLine(HostConfig host, String line, PtySession.Client pty) {
+        if (pty.offer(line)) {
+            return true;
+        }
+        if (ConnectionManager.isEndOfResponse(line)) {
+            String exit = ConnectionManager.parseTrailer(line).get("exit");
+            if (exit != null && !"0".equals(exit)) {
+                System.err.println("[" + host.hostname + "] exit code " + exit);
+            }
+            return true;
+        }
+        if (line.startsWith(ConnectionManager.STDERR_PREFIX)) {
+            System.err.println("[" + host.hostname + "] " + line.substring(ConnectionManager.STDERR_PREFIX.length()));
+            return true;
+        }
+        System.out.println("[" + host.hostname + "] " + line);
+        return true;
+    }
+
+    /**
+     * Manual mode command loop for one host: output is printed as it
+     * arrives and -pty opens an interactive session.
+     */
+    private static void runInteractiveLoop(final SelectorClient client, PtySession.Client pty, AtomicBoolean quitting)
+            throws IOException {
+        String command;
+        while (true) {
+            System.out.print(">>> ");
+            command = consoleReader.readLine();
+
+            if (command == null || "exit".equalsIgnoreCase(command.trim())) {
+                quitting.set(true);
+                client.sendCommand("exit");
+                break;
+            }
+            if (client.openHosts().isEmpty()) {
+                System.err.println("All connections lost.");
+                break;
+            }
+
+            // Interactive session: keystrokes go straight to the remote pty until it exits
+            if ("-pty".equals(command.trim()) || command.trim().startsWith("-pty ")) {
+                int exitCode = pty.run(new PtySession.Sender() {
+                    public void send(String line) {
+                        client.sendLine(line);
                     }
+                }, command.trim().substring(4).trim(), System.in);
+                System.out.println("PTY session ended with exit code " + exitCode);
+                continue;
+            }
+
+            try {
+                command = expandCommand(command, client.openHosts().get(0));
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                continue;
+            }
+            client.sendCommand(command);
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Manual mode command loop for several hosts: every command is fanned out
+     * in parallel and the responses are summarized once all hosts answered.
+     */
+    private static void runBroadcastLoop(SelectorClient client, AtomicBoolean quitting)
+            throws IOException, InterruptedException {
+        String command;
+        while (true) {
+            System.out.print(">>> ");
+            command = consoleReader.readLine();
+            if (command == null || "exit".equalsIgnoreCase(command.trim())) {
+                quitting.set(true);
+                client.sendCommand("exit");
+                break;
+            }
+            if (command.trim().isEmpty()) {
+                continue;
+            }
+
+            List<HostConfig> live = client.openHosts();
+            if (live.isEmpty()) {
+                System.err.println("All connections lost.");
+                break;
+            }
+            long timeoutMs = getConfigInt("broadcast.timeoutMs", 60000);
+            BroadcastRunner.CommandSource commands;
+            try {
+                commands = commandSource(command, live);
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                continue;
+            }
+            List<BroadcastRunner.HostResult> results;
+            String relayGroup = getConfigString("broadcast.relayGroup", "");
+            if (!relayGroup.isEmpty()) {
+                if (CommandTemplate.lookup(command, templates) != null) {
+                    System.err.println("Templates cannot be expanded per host through a relay");
+                    continue;
+                }
+                // One connection to the relay, which reports every downstream host
+                List<BroadcastRunner.HostResult> relay = client.broadcast(
+                        RelayForwarder.relayCommand(relayGroup, timeoutMs, command), live.subList(0, 1), timeoutMs);
+                results = BroadcastRunner.expandRelayResult(relay.get(0));
+                if (results.isEmpty()) {
+                    results.add(relay.get(0));
                 }
+            } else {
+                results = client.broadcast(commands, live, timeoutMs);
+            }
+            reportBroadcast(command, results);
+        }
+    }
 
-                if (connections.isEmpty()) {
-                    showError("No connections established");
-                    System.exit(1);
+    /**
+     * Runs one broadcast, prints the grouped summary and writes the JSON
+     * report. Returns true if every host succeeded. Pooled connections are
+     * reconnected once if they fail before any response arrives.
+     */
+    private static boolean runBroadcast(String command, List<ConnectionManager> targets, boolean pooled) {
+        BroadcastRunner runner = new BroadcastRunner(getConfigInt("broadcast.parallelism", 32),
+                getConfigInt("broadcast.timeoutMs", 60000));
+        runner.setReconnectOnce(pooled);
+        List<HostConfig> hosts = new ArrayList<HostConfig>();
+        for (ConnectionManager connection : targets) {
+            hosts.add(connection.getConfig());
+        }
+        BroadcastRunner.CommandSource commands;
+        try {
+            commands = commandSource(command, hosts);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return false;
+        }
+        List<BroadcastRunner.HostResult> results;
+        String relayGroup = getConfigString("broadcast.relayGroup", "");
+        if (!relayGroup.isEmpty() && !targets.isEmpty()) {
+            if (CommandTemplate.lookup(command, templates) != null) {
+                System.err.println("Templates cannot be expanded per host through a relay");
+                return false;
+            }
+            // One connection to the relay, which reports every downstream host
+            BroadcastRunner.HostResult relay = runner.runOne(RelayForwarder.relayCommand(relayGroup,
+                    getConfigInt("broadcast.timeoutMs", 60000), command), targets.get(0));
+            results = BroadcastRunner.expandRelayResult(relay);
+            if (results.isEmpty()) {
+                results.add(relay);
+            }
+        } else {
+            results = runner.run(commands, targets);
+        }
+        return reportBroadcast(command, results);
+    }
+
+    /**
+     * Expands "@name" to the template's command for the host; other
+     * commands are returned unchanged.
+     */
+    private static String expandCommand(String command, HostConfig host) {
+        CommandTemplate template = CommandTemplate.lookup(command, templates);
+        return template == null ? command : template.expand(host.variables);
+    }
+
+    /**
+     * Commands for a broadcast, expanded up front so a host missing a
+     * template variable is reported before anything is sent.
+     */
+    private static BroadcastRunner.CommandSource commandSource(String command, List<HostConfig> hosts) {
+        if (CommandTemplate.lookup(command, templates) == null) {
+            final String fixed = command;
+            return new BroadcastRunner.CommandSource() {
+                public String commandFor(HostConfig host) {
+                    return fixed;
                 }
+            };
+        }
+        final Map<HostConfig, String> expanded = new HashMap<HostConfig, String>();
+        for (HostConfig host : hosts) {
+            expanded.put(host, expandCommand(command, host));
+        }
+        return new BroadcastRunner.CommandSource() {
+            public String commandFor(HostConfig host) {
+                return expanded.get(host);
+            }
+        };
+    }
 
-                // Create response handlers for each connection
-                for (final Map.Entry<String, ConnectionManager> entry : connections.entrySet()) {
-                    Thread responseHandler = new Thread(new Runnable() {
-                        public void run() {
-                            try {
-                                String response;
-                                while ((response = entry.getValue().readResponse()) != null) {
-                                    System.out.println("[" + entry.getKey() + "] " + response);
-                                    if ("Goodbye!".equalsIgnoreCase(response.trim())) {
-                                        break;
-                                    }
-                                }
-                            } catch (IOException e) {
-                                logError("Connection lost to " + entry.getKey() + ": " + e.getMessage());
-                            }
+    /**
+     * Prints the grouped summary of a broadcast and writes the JSON report.
+     * Returns true if every host succeeded.
+     */
+    private static boolean reportBroadcast(String command, List<BroadcastRunner.HostResult> results) {
+        BroadcastRunner.printSummary(command, results, System.out);
+
+        File report = new File(getConfigString("broadcast.reportFile", "logs/broadcast_report.json"));
+        try {
+            BroadcastRunner.writeReport(report, command, results);
+            System.out.println("Report written to " + report.getPath());
+        } catch (IOException e) {
+            logError("Failed to write broadcast report: " + e.getMessage());
+        }
+        for (BroadcastRunner.HostResult result : results) {
+            if (result.status != BroadcastStatus.OK) {
+                logError("[broadcast] " + result.host.hostname + " " + result.status + ": " + result.error);
+            }
+        }
+        return BroadcastRunner.allSucceeded(results);
+    }
+
+    /**
+     * Pushes a local file to, or pulls a remote file from, every connected
+     * host in parallel. Pulled files land in localDir/&lt;hostname&gt;/.
+     * A pooled connection that drops is reconnected and the transfer resumed
+     * once.
+     */
+    private static boolean runTransfer(final boolean put, final String source, final String destination,
+            final boolean pooled) {
+        final File local = new File(source);
+        final String sha;
+        try {
+            sha = put ? FileTransfer.sha256(local) : null;
+        } catch (IOException e) {
+            System.err.println("Cannot read " + source + ": " + e.getMessage());
+            return false;
+        }
+
+        List<ConnectionManager> targets = connectionsInConfigOrder();
+        if (targets.isEmpty()) {
+            return false;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(targets.size(), getConfigInt("broadcast.parallelism", 32)));
+        boolean ok = true;
+        try {
+            List<Future<FileTransfer.TransferResult>> futures = new ArrayList<Future<FileTransfer.TransferResult>>();
+            for (final ConnectionManager connection : targets) {
+                futures.add(pool.submit(new Callable<FileTransfer.TransferResult>() {
+                    public FileTransfer.TransferResult call() {
+                        FileTransfer.TransferResult result = transferOnce();
+                        if (!result.success && pooled && reconnectAfterDrop(connection)) {
+                            result = transferOnce();
                         }
-                    });
-                    responseHandler.start();
+                        return result;
+                    }
+
+                    private FileTransfer.TransferResult transferOnce() {
+                        if (put) {
+                            return FileTransfer.push(connection, local, sha, destination);
+                        }
+                        File target = new File(new File(destination, connection.getConfig().hostname), new File(source).getName());
+                        return FileTransfer.pull(connection, source, target);
+                    }
+                }));
+            }
+            for (Future<FileTransfer.TransferResult> future : futures) {
+                try {
+                    FileTransfer.TransferResult result = future.get();
+                    System.out.println(result);
+                    if (!result.success) {
+                        ok = false;
+                        logError("[transfer] " + result);
+                    }
+                } catch (Exception e) {
+                    ok = false;
+                    logError("[transfer] " + e.getMessage());
                 }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return ok;
+    }
 
-                // Main command loop
-                String command;
-                while (true) {
-                    System.out.print(">>> ");
-                    command = consoleReader.readLine();
-
-                    if ("exit".equalsIgnoreCase(command.trim())) {
-                        for (ConnectionManager connection : connections.values()) {
-                            try {
-                                connection.sendCommand("exit");
-                            } catch (IOException e) {
-                                // Ignore send errors during exit
+    /**
+     * Delta-syncs files to every connected host in parallel, one file at a
+     * time per host. Uses the given entry for all hosts, or else each host's
+     * own host.N.sync entries. A pooled connection that drops is reconnected
+     * and the file synced again once.
+     */
+    private static boolean runSync(final DeltaSync.SyncEntry only, final boolean pooled) {
+        List<ConnectionManager> targets = connectionsInConfigOrder();
+        if (targets.isEmpty()) {
+            return false;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(targets.size(), getConfigInt("broadcast.parallelism", 32)));
+        boolean ok = true;
+        try {
+            List<Future<List<DeltaSync.SyncResult>>> futures = new ArrayList<Future<List<DeltaSync.SyncResult>>>();
+            for (final ConnectionManager connection : targets) {
+                futures.add(pool.submit(new Callable<List<DeltaSync.SyncResult>>() {
+                    public List<DeltaSync.SyncResult> call() {
+                        List<DeltaSync.SyncEntry> entries = only != null ? Collections.singletonList(only)
+                                : connection.getConfig().syncEntries;
+                        List<DeltaSync.SyncResult> results = new ArrayList<DeltaSync.SyncResult>();
+                        boolean retried = false;
+                        for (DeltaSync.SyncEntry entry : entries) {
+                            DeltaSync.SyncResult result = DeltaSync.push(connection, entry);
+                            if (!result.success && pooled && !retried && reconnectAfterDrop(connection)) {
+                                retried = true;
+                                result = DeltaSync.push(connection, entry);
                             }
+                            results.add(result);
                         }
-                        break;
+                        return results;
                     }
-
-                    // Send command to all connected hosts
-                    for (Map.Entry<String, ConnectionManager> entry : connections.entrySet()) {
-                        try {
-                            entry.getValue().sendCommand(command);
-                        } catch (IOException e) {
-                            System.err.println("Failed to send command to " + entry.getKey() + ": " + e.getMessage());
+                }));
+            }
+            int synced = 0;
+            for (Future<List<DeltaSync.SyncResult>> future : futures) {
+                try {
+                    for (DeltaSync.SyncResult result : future.get()) {
+                        synced++;
+                        System.out.println(result);
+                        if (!result.success) {
+                            ok = false;
+                            logError("[sync] " + result);
                         }
                     }
-                    Thread.sleep(1000);
+                } catch (Exception e) {
+                    ok = false;
+                    logError("[sync] " + e.getMessage());
                 }
+            }
+            if (synced == 0) {
+                System.out.println("Nothing to sync: no host.N.sync entries configured");
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return ok;
+    }
 
-            } catch (Exception e) {
-                showError("Error in manual mode: " + e.getMessage());
-            } finally {
-                // Close all connections
-                for (ConnectionManager connection : connections.values()) {
-                    connection.close();
+    /**
+     * Reconnects a connection that failed because it was closed, not because
+     * the server reported an error. Returns true if it is open again.
+     */
+    private static boolean reconnectAfterDrop(ConnectionManager connection) {
+        if (connection.getConfig().state == ConnectionState.CONNECTED) {
+            return false;
+        }
+        try {
+            connection.reconnect();
+            logInfo("[reconnect] " + connection.getConfig().hostname + " reconnected after the connection dropped");
+            return true;
+        } catch (IOException e) {
+            logError("[reconnect] " + connection.getConfig().hostname + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static String buildAutoCommand(HostConfig hostConfig) {
+        // If the command contains multiple parts, add delays. The parts keep
+        // their ';' so backgrounding with '&' applies to the same commands as
+        // written; the exit code in the response is that of the last part.
+        if (hostConfig.autoCommand.contains(";")) {
+            String[] parts = hostConfig.autoCommand.split(";");
+            StringBuilder commandWithDelays = new StringBuilder();
+            for (int i = 0; i < parts.length; i++) {
+                commandWithDelays.append(parts[i].trim());
+                if (i < parts.length - 1) {
+                    commandWithDelays.append("; sleep 2; ");
                 }
-                connections.clear();
+            }
+            return commandWithDelays.toString();
+        }
+        return hostConfig.autoCommand;
+    }
+
+    /**
+     * Runs every connected host's auto command in parallel and waits for the
+     * exit codes. Returns false if any host failed.
+     */
+    private static boolean runAutoCommands() {
+        List<ConnectionManager> targets = new ArrayList<ConnectionManager>();
+        for (ConnectionManager connection : connectionsInConfigOrder()) {
+            if (!connection.getConfig().autoCommand.isEmpty()) {
+                targets.add(connection);
+            }
+        }
+        updateStatusLabel("Sending command to " + targets.size() + " host(s)");
+        BroadcastRunner runner = new BroadcastRunner(getConfigInt("broadcast.parallelism", 32),
+                getConfigInt("autoCommand.timeoutMs", 120000));
+        boolean ok = true;
+        for (BroadcastRunner.HostResult result : runner.run(new BroadcastRunner.CommandSource() {
+            public String commandFor(HostConfig host) {
+                return buildAutoCommand(host);
+            }
+        }, targets)) {
+            if (result.status == BroadcastStatus.OK) {
+                logInfo("Auto command succeeded on " + result.host.hostname + " in " + result.latencyMs + " ms");
+            } else {
+                ok = false;
+                String stderr = result.stderr.toString().trim();
+                logError("Auto command failed on " + result.host.hostname + ": " + result.status
+                        + (result.exitCode >= 0 ? " exit " + result.exitCode : "")
+                        + (result.error != null ? " " + result.error : "") + (stderr.isEmpty() ? "" : " " + stderr));
+            }
+        }
+        return ok;
+    }
+
+    /**
+     * Automatic mode with rollout.enabled: runs the auto commands in canary
+     * and follow-up waves, stopping when a wave fails too often. Returns false
+     * if the rollout was aborted.
+     */
+    private static boolean runRollout() {
+        // Hosts that could not be connected stay in the plan and fail their wave
+        List<HostConfig> targets = new ArrayList<HostConfig>();
+        for (HostConfig hostConfig : hostConfigs) {
+            if (!hostConfig.autoCommand.isEmpty()) {
+                targets.add(hostConfig);
+            }
+        }
+
+        BroadcastRunner runner = new BroadcastRunner(getConfigInt("broadcast.parallelism", 32),
+                getConfigInt("rollout.timeoutMs", 120000));
+        RolloutScheduler scheduler = new RolloutScheduler(runner, new BroadcastRunner.CommandSource() {
+            public String commandFor(HostConfig host) {
+                return buildAutoCommand(host);
+            }
+        }, getConfigInt("rollout.canaryCount", 1), getConfigString("rollout.waveSize", "25%"),
+                getConfigDouble("rollout.maxFailureRate", 0.0), getConfigString("rollout.healthCommand", ""),
+                getConfigString("rollout.healthExpect", ""), getConfigInt("rollout.waveDelayMs", 0));
+        scheduler.setProgressListener(new RolloutScheduler.ProgressListener() {
+            public void progress(String message) {
+                logInfo("[rollout] " + message);
+                updateStatusLabel(message);
+                if (isSilent) {
+                    System.out.println(message);
+                }
+            }
+        });
+
+        RolloutScheduler.RolloutResult result = scheduler.run(targets, connections);
+        File report = new File(getConfigString("rollout.reportFile", "logs/rollout_report.json"));
+        try {
+            RolloutScheduler.writeReport(report, result);
+        } catch (IOException e) {
+            logError("Failed to write rollout report: " + e.getMessage());
+        }
+        if (result.aborted) {
+            logError("[rollout] Aborted: " + result.abortReason + "; " + result.untouched.size() + " host(s) left untouched");
+        } else {
+            logInfo("[rollout] Completed " + targets.size() + " host(s) in " + result.durationMs + " ms");
+        }
+        return !result.aborted;
+    }
+
+    private static HostConfig findHost(String hostname) {
+        for (HostConfig hostConfig : hostConfigs) {
+            if (hostConfig.hostname.equals(hostname)) {
+                return hostConfig;
             }
         }
+        return null;
+    }
+
+    private static List<ConnectionManager> connectionsInConfigOrder() {
+        List<ConnectionManager> ordered = new ArrayList<ConnectionManager>();
+        for (HostConfig hostConfig : hostConfigs) {
+            ConnectionManager connection = connections.get(hostConfig.hostname);
+            if (connection != null) {
+                ordered.add(connection);
+            }
+        }
+        return ordered;
     }
 
     private static boolean isRunningInCommandPrompt() {
@@ -514,22 +906,41 @@ public class TerminalClient {
                 }
             }
 
-            // Load host configurations
+            // Command templates are compiled once here and expanded per host
+            try {
+                templates = CommandTemplate.loadAll(config);
+            } catch (IllegalArgumentException e) {
+                logError("Invalid command template: " + e.getMessage());
+                templates = new HashMap<String, CommandTemplate>();
+            }
+            Map<String, String> globalVariables = CommandTemplate.loadVariables(config, "");
+
+            // Load host configurations: host.N.* entries first, then the inventory files
             hostConfigs.clear();
+            inventory.clear();
             int hostCount = getConfigInt("hostCount", 1);
             for (int i = 1; i <= hostCount; i++) {
-                String hostname = getConfigString("host." + i + ".ip", "");
-                int port = getConfigInt("host." + i + ".port", -1);
-                String clientName = getConfigString("host." + i + ".clientName", "");
-                String autoCommand = getConfigString("host." + i + ".autoCommand", "");
-
-                if (!hostname.isEmpty() && port > 0) {
-                    hostConfigs.add(new HostConfig(hostname, port, clientName, autoCommand));
+                Inventory.Entry entry = new Inventory.Entry();
+                entry.hostname = getConfigString("host." + i + ".ip", "");
+                entry.port = getConfigInt("host." + i + ".port", -1);
+                entry.clientName = getConfigString("host." + i + ".clientName", "");
+                entry.autoCommand = getConfigString("host." + i + ".autoCommand", "");
+                entry.sync = getConfigString("host." + i + ".sync", "");
+                entry.groups = Inventory.splitNames(getConfigString("host." + i + ".groups", ""));
+                entry.tags = Inventory.splitNames(getConfigString("host." + i + ".tags", ""));
+                entry.variables = CommandTemplate.loadVariables(config, "host." + i + ".");
+                addHost(entry, globalVariables, "host." + i, i);
+            }
+            for (String key : new String[] { "inventory.file", "inventory.dir" }) {
+                String source = getConfigString(key, "");
+                if (!source.isEmpty()) {
+                    readInventory(new File(source), globalVariables);
                 }
             }
 
             if (hostConfigs.isEmpty()) {
-                loadConfig(); // Reload with default config
+                // Reloading would read the same file again and never finish
+                logError("No hosts configured in " + CONFIG_FILE);
             }
 
         } catch (IOException e) {
@@ -545,6 +956,396 @@ public class TerminalClient {
         }
     }
 
+    /**
+     * A configured daemon file name, or the instance's own by default. With
+     * --instance, a configured name gets the instance name appended.
+     */
+    private static String daemonSetting(String configured, String suffix) {
+        if (configured.isEmpty()) {
+            return instanceFile(suffix);
+        }
+        return instanceName.isEmpty() ? configured : configured + "-" + instanceName;
+    }
+
+    /**
+     * Sends the arguments to the client daemon; reads only the daemon keys
+     * of the config instead of loading all hosts.
+     */
+    private static int callDaemon(List<String> args) {
+        Properties settings = new Properties();
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(CONFIG_FILE);
+            settings.load(in);
+        } catch (IOException e) {
+            // Defaults apply
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore close errors
+                }
+            }
+        }
+        try {
+            return ControlSocket.call(daemonSetting(settings.getProperty("daemon.socket", ""), ".sock"),
+                    new File(daemonSetting(settings.getProperty("daemon.tokenFile", ""), ".token")), args, System.out);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * Applies the "--select &lt;selection&gt;" and "--any &lt;N&gt;" options to
+     * hostConfigs and returns the remaining arguments. The options may appear
+     * anywhere; the selection is always applied before --any.
+     */
+    private static String[] narrowHosts(String[] args) {
+        String selection = null;
+        String any = null;
+        List<String> rest = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 < args.length && "--select".equals(args[i])) {
+                selection = args[++i];
+            } else if (i + 1 < args.length && "--any".equals(args[i])) {
+                any = args[++i];
+            } else {
+                rest.add(args[i]);
+            }
+        }
+        // Narrow every mode to part of the inventory: TerminalClient --select <selection> ...
+        if (selection != null) {
+            List<HostConfig> selected = inventory.select(selection);
+            hostConfigs.clear();
+            hostConfigs.addAll(selected);
+        }
+        // Run on the N least busy of those hosts: TerminalClient [--select <selection>] --any <N> ...
+        if (any != null) {
+            try {
+                pickLeastBusy(Integer.parseInt(any));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("--any: " + e.getMessage());
+            }
+        }
+        return rest.toArray(new String[0]);
+    }
+
+    /**
+     * Runs --put, --get, --sync or --broadcast against hostConfigs. Returns
+     * the exit code, or -1 if the arguments are none of these. Pooled
+     * connections (daemon mode) are reused and only missing ones are opened.
+     */
+    private static int runOneShot(String[] args, boolean pooled) {
+        // File transfer: TerminalClient --put <local> <remote> | --get <remote> <localDir>
+        if (args.length >= 3 && ("--put".equals(args[0]) || "--get".equals(args[0]))) {
+            isSilent = true;
+            openConnections(pooled);
+            return runTransfer("--put".equals(args[0]), args[1], args[2], pooled) ? 0 : 2;
+        }
+
+        // Delta sync: TerminalClient --sync [<local> <remote>], default is each host's host.N.sync entries
+        if (args.length >= 1 && "--sync".equals(args[0])) {
+            isSilent = true;
+            openConnections(pooled);
+            return runSync(args.length >= 3 ? new DeltaSync.SyncEntry(new File(args[1]), args[2]) : null, pooled) ? 0 : 2;
+        }
+
+        // One-shot broadcast: TerminalClient --broadcast "<command>"
+        if (args.length >= 2 && "--broadcast".equals(args[0])) {
+            isSilent = true;
+            if (!getConfigString("broadcast.relayGroup", "").isEmpty() && !hostConfigs.isEmpty()) {
+                // Only the relay is contacted; it fans out to the group itself
+                HostConfig relay = findHost(getConfigString("broadcast.relayHost", hostConfigs.get(0).hostname));
+                hostConfigs.clear();
+                if (relay != null) {
+                    hostConfigs.add(relay);
+                }
+            }
+            openConnections(pooled);
+            return runBroadcast(args[1], connectionsInConfigOrder(), pooled) ? 0 : 2;
+        }
+        return -1;
+    }
+
+    private static void openConnections(boolean pooled) {
+        if (pooled) {
+            reuseConnections();
+        } else {
+            connectToHosts();
+        }
+    }
+
+    /**
+     * Daemon mode: keeps the connections to the hosts open and runs the
+     * one-shot commands that TerminalClient --ctl forwards over the local
+     * control socket, one request at a time.
+     */
+    private static void runDaemon() {
+        final ControlSocket control;
+        try {
+            control = ControlSocket.listen(daemonSetting(getConfigString("daemon.socket", ""), ".sock"),
+                    getConfigInt("daemon.port", ControlSocket.DEFAULT_PORT),
+                    new File(daemonSetting(getConfigString("daemon.tokenFile", ""), ".token")));
+        } catch (IOException e) {
+            System.err.println("Cannot open the control socket: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                try {
+                    control.close();
+                } catch (IOException e) {
+                    // Exiting anyway
+                }
+            }
+        });
+        logInfo("Client daemon listening on " + control);
+        System.out.println("Client daemon listening on " + control);
+
+        List<HostConfig> allHosts = new ArrayList<HostConfig>(hostConfigs);
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        boolean running = true;
+        while (running) {
+            ControlSocket.Request request;
+            try {
+                request = control.accept();
+            } catch (IOException e) {
+                logError("Control socket failed: " + e.getMessage());
+                break;
+            }
+            long start = System.currentTimeMillis();
+            int exitCode;
+            PrintStream out = null;
+            try {
+                out = new PrintStream(request.output, true, "UTF-8");
+                // Requests run one at a time, so their output can simply replace the daemon's
+                System.setOut(out);
+                System.setErr(out);
+                hostConfigs.clear();
+                hostConfigs.addAll(allHosts);
+                String[] args = request.args.toArray(new String[0]);
+                if (args.length == 1 && "--stop".equals(args[0])) {
+                    out.println("Client daemon stopping");
+                    running = false;
+                    exitCode = 0;
+                } else if (args.length == 1 && "--status".equals(args[0])) {
+                    for (HostConfig hostConfig : allHosts) {
+                        out.println(hostConfig + " " + hostConfig.state);
+                    }
+                    if (ConnectionManager.getSecurity() != null && ConnectionManager.getSecurity().encrypts()) {
+                        out.println(ConnectionManager.getSecurity().stats());
+                    }
+                    exitCode = 0;
+                } else {
+                    exitCode = runOneShot(narrowHosts(args), true);
+                    if (exitCode < 0) {
+                        out.println("Usage: --ctl [--select <selection>] [--any <N>] --broadcast <command> | --put"
+                                + " <local> <remote> | --get <remote> <localDir> | --sync [<local> <remote>] | --status | --stop");
+                        exitCode = 1;
+                    }
+                }
+            } catch (Exception e) {
+                if (out != null) {
+                    out.println("Error: " + e.getMessage());
+                }
+                exitCode = 1;
+            } finally {
+                System.setOut(stdout);
+                System.setErr(stderr);
+                hostConfigs.clear();
+                hostConfigs.addAll(allHosts);
+            }
+            try {
+                request.finish(exitCode);
+            } catch (IOException e) {
+                logError("Control client went away: " + e.getMessage());
+            }
+            logInfo("Daemon request " + request.args + " finished with " + exitCode + " in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
+
+        for (ConnectionManager connection : connections.values()) {
+            try {
+                connection.sendCommand("exit");
+            } catch (IOException e) {
+                // Closing anyway
+            }
+            connection.close();
+        }
+        connections.clear();
+        try {
+            control.close();
+        } catch (IOException e) {
+            // Exiting anyway
+        }
+    }
+
+    /**
+     * Opens, in parallel, the connections of hostConfigs that are not open
+     * yet; connections that failed or timed out earlier are replaced.
+     */
+    private static void reuseConnections() {
+        List<HostConfig> missing = new ArrayList<HostConfig>();
+        for (HostConfig hostConfig : hostConfigs) {
+            ConnectionManager connection = connections.get(hostConfig.hostname);
+            // isUsable() also catches a connection the server closed while it sat in the pool
+            if (connection == null || connection.getConfig() != hostConfig || !connection.isUsable()) {
+                if (connection != null) {
+                    connection.close();
+                    connections.remove(hostConfig.hostname);
+                }
+                missing.add(hostConfig);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(missing.size(), getConfigInt("broadcast.parallelism", 32)));
+        try {
+            List<Future<ConnectionManager>> futures = new ArrayList<Future<ConnectionManager>>();
+            for (final HostConfig hostConfig : missing) {
+                futures.add(pool.submit(new Callable<ConnectionManager>() {
+                    public ConnectionManager call() throws IOException {
+                        ConnectionManager connection = new ConnectionManager(hostConfig);
+                        connection.connect();
+                        connection.sendCommand(hostConfig.clientName);
+                        return connection;
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    ConnectionManager connection = futures.get(i).get();
+                    connections.put(connection.getConfig().hostname, connection);
+                } catch (ExecutionException e) {
+                    String message = "Failed to connect to " + missing.get(i) + ": " + e.getCause().getMessage();
+                    logError(message);
+                    System.err.println(message);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void listenForServers(long waitMs) {
+        try {
+            discovered.listen(getConfigString("discovery.group", Discovery.DEFAULT_GROUP),
+                    getConfigInt("discovery.port", Discovery.DEFAULT_PORT), waitMs);
+        } catch (IOException e) {
+            logError("Discovery failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Adds every announcing server that is not configured yet, in the group
+     * "discovered".
+     */
+    private static void addDiscoveredHosts() {
+        listenForServers(getConfigInt("discovery.waitMs", 2000));
+        Map<String, String> globalVariables = CommandTemplate.loadVariables(config, "");
+        HostPicker picker = new HostPicker(discovered, new Random());
+        Set<String> configured = new HashSet<String>();
+        for (HostConfig hostConfig : hostConfigs) {
+            Discovery.Beacon beacon = picker.beacon(hostConfig);
+            if (beacon != null) {
+                configured.add(beacon.key());
+            }
+        }
+        for (Discovery.Beacon beacon : discovered.live()) {
+            // A configured host may be listed by name while its beacon carries its address
+            if (configured.contains(beacon.key())) {
+                continue;
+            }
+            Inventory.Entry entry = new Inventory.Entry();
+            entry.hostname = beacon.address;
+            entry.port = beacon.port;
+            entry.clientName = getConfigString("discovery.clientName", "TerminalClient");
+            entry.groups.add("discovered");
+            entry.variables.put("serverName", beacon.name);
+            addHost(entry, globalVariables, "discovery", hostConfigs.size() + 1);
+        }
+    }
+
+    /**
+     * Narrows hostConfigs to n hosts picked by the load their discovery
+     * beacons report.
+     */
+    private static void pickLeastBusy(int n) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("need a positive number of hosts");
+        }
+        if (discovered.live().isEmpty()) {
+            listenForServers(getConfigInt("discovery.waitMs", 2000));
+        }
+        HostPicker picker = new HostPicker(discovered, new Random());
+        List<HostConfig> picked = picker.pick(hostConfigs,
+                n, getConfigString("schedule.strategy", HostPicker.TWO_CHOICES));
+        StringBuilder message = new StringBuilder("Picked " + picked.size() + " of " + hostConfigs.size() + " host(s):");
+        for (HostConfig hostConfig : picked) {
+            Discovery.Beacon beacon = picker.beacon(hostConfig);
+            message.append(' ').append(hostConfig.hostname).append(beacon == null ? " (no load report)"
+                    : String.format(" (load %.2f)", picker.score(hostConfig)));
+        }
+        logInfo(message.toString());
+        System.out.println(message);
+        hostConfigs.clear();
+        hostConfigs.addAll(picked);
+    }
+
+    private static void readInventory(File source, final Map<String, String> globalVariables) {
+        final int defaultPort = getConfigInt("inventory.defaultPort", 8887);
+        try {
+            Inventory.read(source, new Inventory.EntryHandler() {
+                public void entry(Inventory.Entry entry) {
+                    if (entry.port <= 0) {
+                        entry.port = defaultPort;
+                    }
+                    addHost(entry, globalVariables, entry.hostname, hostConfigs.size() + 1);
+                }
+            });
+        } catch (IOException e) {
+            logError("Error reading inventory " + source + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Adds a configured host, filling in its template variables and expanding
+     * a templated auto command. The index variable is N for host.N entries and
+     * the host's number in the list for the others.
+     */
+    private static void addHost(Inventory.Entry entry, Map<String, String> globalVariables, String source,
+            int index) {
+        if (entry.hostname.isEmpty() || entry.port <= 0) {
+            return;
+        }
+        Map<String, String> variables = new HashMap<String, String>(globalVariables);
+        variables.put("host", entry.hostname);
+        variables.put("port", String.valueOf(entry.port));
+        variables.put("clientName", entry.clientName);
+        variables.put("index", String.valueOf(index));
+        variables.putAll(entry.variables);
+        HostConfig hostConfig = new HostConfig(entry.hostname, entry.port, entry.clientName, entry.autoCommand,
+                entry.sync, variables);
+        try {
+            String expanded = expandCommand(entry.autoCommand, hostConfig);
+            if (!expanded.equals(entry.autoCommand)) {
+                hostConfig = new HostConfig(entry.hostname, entry.port, entry.clientName, expanded, entry.sync, variables);
+            }
+        } catch (IllegalArgumentException e) {
+            logError(source + " autoCommand: " + e.getMessage());
+            hostConfig = new HostConfig(entry.hostname, entry.port, entry.clientName, "", entry.sync, variables);
+        }
+        hostConfigs.add(hostConfig);
+        inventory.add(hostConfig, entry.groups, entry.tags);
+    }
+
     private static void createDefaultConfig() {
         // Clear existing properties
         config.clear();
@@ -555,18 +1356,25 @@ public class TerminalClient {
         config.setProperty("host.1.ip", "192.168.0.103");
         config.setProperty("host.1.port", "8887");
         config.setProperty("host.1.clientName", "Ryu 103");
-        config.setProperty("host.1.autoCommand", "ps aux | grep '[j]ava' | grep -v 'TerminalServer.jar' | awk '{print $2}' | xargs -r kill; sleep 2; nohup /home/user1/AiJPOS_TouchScreen/bin/linux/AiJPOS.sh > /dev/null 2>&1 & sleep 2; exit");
+        config.setProperty("host.1.autoCommand", "-restart");
 
         // Second host
         config.setProperty("host.2.ip", "192.168.0.105");
         config.setProperty("host.2.port", "8887");
         config.setProperty("host.2.clientName", "Ryu 105");
-        config.setProperty("host.2.autoCommand", "ps aux | grep '[j]ava' | grep -v 'TerminalServer.jar' | awk '{print $2}' | xargs -r kill; /home/user1/AiJPOS_TouchScreen_Other/bin/linux/PsJPOS.sh; exit");
+        // Runs PsJPOS.sh from AiJPOS_TouchScreen_Other, the restart.psjpos.* target of that server
+        config.setProperty("host.2.autoCommand", "-restart psjpos");
 
         // Global settings
         config.setProperty("silentMode", "false");
         config.setProperty("executionMode", "AUTOMATIC");
 
+        // Rolling rollout for automatic mode
+        config.setProperty("rollout.enabled", "true");
+        config.setProperty("rollout.canaryCount", "1");
+        config.setProperty("rollout.waveSize", "25%");
+        config.setProperty("rollout.maxFailureRate", "0.0");
+
         saveConfig();
 
         // Log the creation of default config
@@ -603,6 +1411,14 @@ public class TerminalClient {
         }
     }
 
+    private static double getConfigDouble(String key, double defaultValue) {
+        try {
+            return Double.parseDouble(config.getProperty(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
     private static void showError(String message) {
         if (!isSilent) {
             JOptionPane.showMessageDialog(null, message, "Error", JOptionPane.ERROR_MESSAGE);
@@ -655,30 +1471,51 @@ public class TerminalClient {
     }
 
     private static void connectToHosts() {
+        final List<HostConfig> pending = new ArrayList<HostConfig>();
+        List<String> hostnames = new ArrayList<String>();
         for (HostConfig hostConfig : hostConfigs) {
             if (hostConfig.retryCount >= MAX_RETRIES) continue;
             if (!hostConfig.canRetry()) continue;
+            pending.add(hostConfig);
+            hostnames.add(hostConfig.hostname);
+        }
 
+        if (!pending.isEmpty()) {
+            // In parallel, so dead hosts cost one connect timeout instead of one each. The lookups
+            // are only started here; each connect waits for its own within its timeout
+            ConnectionManager.prefetch(hostnames, 0);
+            updateStatusLabel("[*] Connecting to " + pending.size() + " host(s)");
+            ExecutorService pool = Executors.newFixedThreadPool(
+                    Math.min(pending.size(), getConfigInt("broadcast.parallelism", 32)));
             try {
-                updateStatusLabel("[*] Connecting to " + hostConfig.hostname);
-                ConnectionManager connection = new ConnectionManager(hostConfig);
-                connection.connect();
-                connections.put(hostConfig.hostname, connection);
-
-                updateStatusLabel("[>] Sending client name: " + hostConfig.clientName);
-                connection.sendCommand(hostConfig.clientName);
-
-                hostConfig.state = ConnectionState.CONNECTED;
-                hostConfig.retryCount = 0;
-
-            } catch (Exception e) {
-                logError("[!] " + hostConfig.hostname + ": " + e.getMessage());
-                ConnectionManager connection = connections.remove(hostConfig.hostname);
-                if (connection != null) {
-                    connection.close();
+                List<Future<ConnectionManager>> futures = new ArrayList<Future<ConnectionManager>>();
+                for (final HostConfig hostConfig : pending) {
+                    futures.add(pool.submit(new Callable<ConnectionManager>() {
+                        public ConnectionManager call() throws IOException {
+                            // Both close the connection when they fail
+                            ConnectionManager connection = new ConnectionManager(hostConfig);
+                            connection.connect();
+                            connection.sendCommand(hostConfig.clientName);
+                            return connection;
+                        }
+                    }));
+                }
+                for (int i = 0; i < futures.size(); i++) {
+                    HostConfig hostConfig = pending.get(i);
+                    try {
+                        connections.put(hostConfig.hostname, futures.get(i).get());
+                        hostConfig.state = ConnectionState.CONNECTED;
+                        hostConfig.retryCount = 0;
+                    } catch (ExecutionException e) {
+                        logError("[!] " + hostConfig.hostname + ": " + e.getCause().getMessage());
+                        hostConfig.state = ConnectionState.FAILED;
+                        hostConfig.retryCount++;
+                    }
                 }
-                hostConfig.state = ConnectionState.FAILED;
-                hostConfig.retryCount++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                pool.shutdownNow();
             }
         }
 
@@ -5,17 +5,36 @@ import javax.swing.*;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.ServerSocketChannel;
+import java.security.GeneralSecurityException;
 import java.io.RandomAccessFile;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class TerminalServer {
     private static final List<ClientInfo> clients = Collections.synchronizedList(new ArrayList<ClientInfo>());
     private static final String CONFIG_FILE = "server_config.properties";
-    private static Properties config = new Properties();
+    // Replaced, never modified, on reload; a command reads one snapshot of it
+    private static volatile Properties config = new Properties();
     private static ServerWindow serverWindow;
     private static final String LOCK_FILE = "server.lock";
     private static FileLock lock;
     private static FileChannel lockChannel;
     private static RandomAccessFile lockFileStream;
+    private static final ReentrantLock restartLock = new ReentrantLock();
+    private static ExecutionBackend executionBackend;
+    private static final Map<String, OutputRing> captures = new ConcurrentHashMap<String, OutputRing>();
+    private static final AtomicLong nextJobId = new AtomicLong(System.currentTimeMillis());
+    private static JobManager jobManager;
+    // TLS and/or pre-shared key from the tls.* and auth.* keys; null for plaintext
+    private static SecureTransport security;
+    private static final int HANDSHAKE_TIMEOUT_MS = 10000;
+    private static ClientLimits limits;
+    private static final CommandPolicy policy = new CommandPolicy();
+    private static CommandScheduler scheduler;
 
     public static void main(String[] args) {
         if (!acquireLock()) {
@@ -37,23 +56,68 @@ public class TerminalServer {
             log("INFO", "Server starting...");
         });
         
+        loadConfig();
+        executionBackend = ExecutionBackend.create(getConfigString("execution.backend", ExecutionBackend.AUTO), "session");
+        ExecutorService sessions = executionBackend.newExecutor();
+        log("INFO", "Running sessions on " + executionBackend);
+        jobManager = new JobManager(executionBackend, getConfigInt("jobs.retain", JobManager.DEFAULT_RETAIN));
+        limits = new ClientLimits(config);
+        log("INFO", "Limits: " + limits);
+        configurePolicy();
+        scheduler = new CommandScheduler(new CommandScheduler.Launcher() {
+            public JobManager.Job launch(String name, String command, String resourceClass) throws IOException {
+                return startScheduledJob(name, command, resourceClass);
+            }
+
+            public void log(String level, String message) {
+                TerminalServer.log(level, message);
+            }
+        });
+        configureScheduler();
+        try {
+            security = SecureTransport.fromConfig(config);
+        } catch (IOException | GeneralSecurityException e) {
+            log("ERROR", "Cannot set up TLS or the pre-shared key: " + e.getMessage());
+            System.exit(1);
+        }
+        // Relayed connections use the same settings
+        ConnectionManager.setSecurity(security);
+        log("INFO", "Connections: " + (security != null ? security.toString() : "plaintext, no client auth"));
+        if (security == null || security.acceptsAnyClient()) {
+            log("INFO", "Any client that can reach port " + getConfigInt("port", 8080) + " can run commands");
+        }
+        if (Boolean.parseBoolean(getConfigString("discovery.enabled", "false"))) {
+            startDiscovery();
+        }
+
         ServerSocket serverSocket = null;
         try {
             while (true) {
                 loadConfig(); // Reload config before each connection
+                try {
+                    if (limits.configure(config)) {
+                        log("INFO", "Limits changed: " + limits);
+                    }
+                } catch (NumberFormatException e) {
+                    log("ERROR", "Invalid limits.* setting, keeping the previous limits: " + e.getMessage());
+                }
+                configurePolicy();
+                configureScheduler();
                 int port = getConfigInt("port", 8080);
 
                 if (serverSocket == null || serverSocket.isClosed() || serverSocket.getLocalPort() != port) {
                     if (serverSocket != null && !serverSocket.isClosed()) {
                         serverSocket.close();
                     }
-                    serverSocket = new ServerSocket(port);
+                    // Channel-backed so file transfers can use zero-copy transferTo/transferFrom
+                    serverSocket = ServerSocketChannel.open().socket();
+                    serverSocket.bind(new InetSocketAddress(port));
                     log("INFO", "Server is listening on port " + port);
                 }
 
                 Socket socket = serverSocket.accept();
                 log("INFO", "New connection from: " + socket.getInetAddress().getHostAddress());
-                new ServerThread(socket).start();
+                sessions.execute(new ServerThread(socket));
             }
         } catch (IOException e) {
             log("ERROR", "Server error: " + e.getMessage());
@@ -69,6 +133,96 @@ public class TerminalServer {
         }
     }
 
+    /**
+     * Applies the policy.* keys of the config just loaded.
+     */
+    private static void configurePolicy() {
+        try {
+            if (policy.configure(config)) {
+                log("INFO", "Command policy: " + policy);
+            }
+        } catch (IllegalArgumentException e) {
+            log("ERROR", "Invalid policy.* setting: " + e.getMessage());
+        } catch (IOException e) {
+            log("ERROR", e.getMessage() + "; denying every command");
+        }
+    }
+
+    /**
+     * Applies the schedule.* keys of the config just loaded.
+     */
+    private static void configureScheduler() {
+        try {
+            if (scheduler.configure(config)) {
+                log("INFO", "Schedules: " + scheduler.size() + " (see -schedule)");
+            }
+        } catch (NumberFormatException e) {
+            log("ERROR", "Invalid schedule.history: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Starts one run of a schedule as a background job, in the schedule's
+     * resource class, else resource.default. Scheduled runs are the
+     * server's own, so client limits do not apply.
+     */
+    private static JobManager.Job startScheduledJob(String name, String command, String resourceClass)
+            throws IOException {
+        OutputRing ring = createCapture(newJobId());
+        if (ring == null) {
+            throw new IOException("Cannot create output file in " + captureDir());
+        }
+        Properties settings = config; // One snapshot, so the default and the class come from the same load
+        String className = resourceClass != null ? resourceClass : settings.getProperty("resource.default", "").trim();
+        ResourceClass resources = className.isEmpty() ? null : ResourceClass.load(settings, className);
+        JobManager.Job job = jobManager.start(ring.getId(), command, "schedule:" + name, ring, false, resources, null);
+        log("INFO", "Schedule " + name + " started job " + job.id + (resources != null ? " as " + resources : "")
+                + ": " + command);
+        return job;
+    }
+
+    /**
+     * Announces this server on the discovery multicast group so clients can
+     * find it without a host entry.
+     */
+    private static void startDiscovery() {
+        String name = getConfigString("discovery.name", "");
+        if (name.isEmpty()) {
+            try {
+                name = InetAddress.getLocalHost().getHostName();
+            } catch (UnknownHostException e) {
+                name = "TerminalServer";
+            }
+        }
+        String version = TerminalServer.class.getPackage() != null
+                && TerminalServer.class.getPackage().getImplementationVersion() != null
+                ? TerminalServer.class.getPackage().getImplementationVersion() : "dev";
+        final Discovery.Announcer announcer = new Discovery.Announcer(
+                getConfigString("discovery.group", Discovery.DEFAULT_GROUP),
+                getConfigInt("discovery.port", Discovery.DEFAULT_PORT),
+                getConfigInt("discovery.intervalMs", Discovery.DEFAULT_INTERVAL_MS),
+                getConfigInt("discovery.ttl", 1), name, version, getConfigInt("port", 8080),
+                new Discovery.LoadSource() {
+                    public int sessions() {
+                        return clients.size();
+                    }
+
+                    public int runningJobs() {
+                        return jobManager.runningCount();
+                    }
+                });
+        Thread thread = new Thread(() -> {
+            try {
+                announcer.announce();
+            } catch (IOException e) {
+                log("ERROR", "Discovery stopped: " + e.getMessage());
+            }
+        }, "discovery");
+        thread.setDaemon(true);
+        thread.start();
+        log("INFO", "Announcing as " + name + " on " + getConfigString("discovery.group", Discovery.DEFAULT_GROUP));
+    }
+
     private static boolean acquireLock() {
         try {
             File file = new File(LOCK_FILE);
@@ -110,8 +264,17 @@ public class TerminalServer {
         }
     }
 
-    private static class ServerThread extends Thread {
+    private static class ServerThread implements Runnable {
         private Socket socket;
+        // Limits are kept per address; the client name is whatever the client sends
+        private String clientIp;
+        private String clientName;
+        // Common name of the client's verified TLS certificate, if it sent one
+        private String certificateName;
+        // Resource class named by "-class <name> <command>", for the current command only
+        private String requestedClass;
+        // The config as it was when the current command arrived
+        private Properties settings;
 
         public ServerThread(Socket socket) {
             this.socket = socket;
@@ -121,11 +284,24 @@ public class TerminalServer {
             BufferedReader reader = null;
             PrintWriter writer = null;
             try {
+                if (security != null && security.encrypts()) {
+                    // On the session thread so a slow handshake does not hold up accept()
+                    socket = security.wrapServer(socket, HANDSHAKE_TIMEOUT_MS);
+                    certificateName = SecureTransport.peerName(socket);
+                }
                 reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
                 writer = new PrintWriter(socket.getOutputStream(), true);
+                if (security != null && security.usesPsk()) {
+                    socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+                    if (!security.verifyClient(reader, writer)) {
+                        log("ERROR", "Rejected " + socket.getInetAddress().getHostAddress() + ": wrong pre-shared key");
+                        return;
+                    }
+                    socket.setSoTimeout(0);
+                }
 
-                String clientName = reader.readLine();
-                String clientIp = socket.getInetAddress().getHostAddress();
+                clientName = reader.readLine();
+                clientIp = socket.getInetAddress().getHostAddress();
                 ClientInfo clientInfo = new ClientInfo(clientName, clientIp);
                 synchronized (clients) { 
                     clients.add(clientInfo);
@@ -136,9 +312,11 @@ public class TerminalServer {
                     }
                 }
 
-                log("INFO", "Client connected: " + clientName);
+                log("INFO", "Client connected: " + clientName
+                        + (certificateName != null ? " (certificate " + certificateName + ")" : ""));
 
                 String command;
+                boolean refusing = false;
                 while ((command = reader.readLine()) != null) {
                     log("INFO", "Received from " + clientName + ": " + command);
                     clientInfo.addCommand(command);
@@ -149,17 +327,128 @@ public class TerminalServer {
                         break; // Exit loop to stop reading further commands
                     }
 
+                    String status = "ok";
+                    String exit = "";
                     try {
-                        if (command.startsWith("-i ")) {
+                        limits.admitCommand(clientIp);
+                        // The policy sees the line as sent, so it can restrict -class too
+                        String sent = command;
+                        requestedClass = null;
+                        settings = config;
+                        if (command.startsWith("-class ")) {
+                            String[] parts = command.substring(7).trim().split("\\s+", 2);
+                            if (parts.length < 2) {
+                                throw new IllegalArgumentException("Usage: -class <name> <command>");
+                            }
+                            requestedClass = parts[0];
+                            command = parts[1].trim();
+                        }
+                        try {
+                            if (policy.refresh()) {
+                                log("INFO", "Command policy reloaded: " + policy);
+                            }
+                        } catch (IOException e) {
+                            log("ERROR", e.getMessage());
+                        }
+                        CommandPolicy.Decision decision = policy.check(sent, clientIp, certificateName);
+                        if (!decision.allowed) {
+                            log("INFO", "Denied " + clientName + " (" + clientIp + "): " + decision.reason);
+                            if ("-pty".equals(command) || command.startsWith("-pty ")) {
+                                PtySession.refuse(decision.reason, reader, writer);
+                            } else {
+                                writer.println(decision.reason);
+                            }
+                            status = "error";
+                        } else if (command.startsWith("-i ")) {
                             handleInfoCommand(command.substring(3).trim(), writer);
                         } else if ("-h".equals(command)) {
                             handleHelpCommand(writer);
+                        } else if ("-policy".equals(command)) {
+                            for (String line : policy.report()) {
+                                writer.println(line);
+                            }
+                        } else if ("-schedule".equals(command) || command.startsWith("-schedule ")) {
+                            if (!handleScheduleCommand(command.substring(9).trim(), writer)) {
+                                status = "error";
+                            }
+                        } else if ("-kill".equals(command) || command.startsWith("-kill ")) {
+                            handleKillCommand(command.substring(5).trim(), writer);
+                        } else if (command.startsWith("-relay ")) {
+                            if (!new RelayForwarder(settings).handle(command.substring(7).trim(), relayName(), writer)) {
+                                status = "error";
+                            }
+                        } else if ((command.startsWith("-put ") || command.startsWith("-get ")
+                                || command.startsWith("-sync ")) && transferRoot(settings) == null) {
+                            // Without a root any client could overwrite any file the server can write
+                            writer.println("ERROR File transfers are disabled until transfer.rootDir is set");
+                            status = "error";
+                        } else if (command.startsWith("-put ")) {
+                            if (!FileTransfer.receive(command.substring(5), socket, writer, transferRoot(settings),
+                                    transferChunkSize(settings))) {
+                                status = "error";
+                            }
+                        } else if (command.startsWith("-get ")) {
+                            if (!FileTransfer.send(command.substring(5), socket, reader, writer, transferRoot(settings),
+                                    transferChunkSize(settings))) {
+                                status = "error";
+                            }
+                        } else if (command.startsWith("-sync ")) {
+                            if (!DeltaSync.serve(command.substring(6), reader, writer, socket.getOutputStream(),
+                                    transferRoot(settings))) {
+                                status = "error";
+                            }
+                        } else if (command.startsWith("-job ")) {
+                            if (!handleJobCommand(command.substring(5).trim(), clientName, reader, writer)) {
+                                status = "error";
+                            }
+                        } else if (command.startsWith("-tail ")) {
+                            if (!handleTailCommand(command.substring(6).trim(), writer)) {
+                                status = "error";
+                            }
+                        } else if (command.startsWith("-seek ")) {
+                            if (!handleSeekCommand(command.substring(6).trim(), writer)) {
+                                status = "error";
+                            }
+                        } else if ("-restart".equals(command) || command.startsWith("-restart ")) {
+                            if (!handleRestartCommand(command.substring(8).trim(), writer)) {
+                                status = "error";
+                            }
+                        } else if ("-pty".equals(command) || command.startsWith("-pty ")) {
+                            if (!servePty(command.substring(4).trim(), reader, writer)) {
+                                status = "error";
+                            }
+                        } else if (isLocalScript(command)) {
+                            // Scripts run as background jobs on a pty instead of in a desktop terminal
+                            if (startJob(scriptCommand(command), clientName, true, writer)) {
+                                writer.println("Follow the output with -job attach or -tail");
+                            } else {
+                                status = "error";
+                            }
                         } else {
-                            writer.println(executeCommand(command));
+                            int exitCode = executeCommand(command, writer);
+                            exit = " exit=" + exitCode;
+                            if (exitCode != 0) {
+                                status = "error";
+                            }
                         }
+                        refusing = false;
+                    } catch (ClientLimits.LimitExceededException e) {
+                        if (!refusing) {
+                            log("INFO", "Limiting " + clientName + " (" + clientIp + "): " + e.getMessage());
+                            refusing = true;
+                        }
+                        if ("-pty".equals(command) || command.startsWith("-pty ")) {
+                            PtySession.refuse(e.getMessage(), reader, writer);
+                        } else {
+                            writer.println(e.getMessage());
+                        }
+                        status = "error";
                     } catch (Exception e) {
                         writer.println("Error processing command: " + e.getMessage()); 
+                        status = "error";
                     }
+                    // Lets clients tell where one response ends, e.g. for broadcasts
+                    writer.println("END_OF_RESPONSE status=" + status + exit);
                 }
             } catch (IOException e) {
                 log("ERROR", "Error: " + e.getMessage());
@@ -205,38 +494,434 @@ public class TerminalServer {
             writer.println(clientNames.substring(0, clientNames.length() - 2));
         }
 
-        private String executeCommand(String command) throws IOException {
+        /**
+         * "-schedule" lists the schedules, "-schedule &lt;name&gt;" shows the
+         * recent runs of one and "-schedule run &lt;name&gt;" starts it now.
+         */
+        private boolean handleScheduleCommand(String args, PrintWriter writer) {
+            if (args.isEmpty()) {
+                for (String line : scheduler.list()) {
+                    writer.println(line);
+                }
+                return true;
+            }
+            String[] parts = args.split("\\s+");
+            if ("run".equals(parts[0]) && parts.length == 2) {
+                if (!scheduler.runNow(parts[1])) {
+                    writer.println("No schedule named: " + parts[1]);
+                    return false;
+                }
+                log("INFO", "Schedule " + parts[1] + " run now by " + clientName);
+                for (String line : scheduler.history(parts[1])) {
+                    writer.println(line);
+                }
+                return true;
+            }
+            if (parts.length != 1) {
+                writer.println("Usage: -schedule [<name> | run <name>]");
+                return false;
+            }
+            List<String> lines = scheduler.history(parts[0]);
+            if (lines == null) {
+                writer.println("No schedule named: " + parts[0]);
+                return false;
+            }
+            for (String line : lines) {
+                writer.println(line);
+            }
+            return true;
+        }
+
+        /**
+         * Kills processes by command line: "-kill [pattern] [!exclude ...]".
+         * With no arguments every Java process except TerminalServer is killed.
+         */
+        private void handleKillCommand(String args, PrintWriter writer) throws IOException {
+            String pattern = ProcessControl.DEFAULT_PATTERN;
+            List<String> excludes = new ArrayList<String>();
+            if (args.isEmpty()) {
+                excludes.add(ProcessControl.DEFAULT_EXCLUDE);
+            } else {
+                for (String token : args.split("\\s+")) {
+                    if (token.startsWith("!")) {
+                        excludes.add(token.substring(1));
+                    } else {
+                        pattern = token;
+                    }
+                }
+            }
+            long gracePeriod = getConfigInt("kill.gracePeriodMs", (int) ProcessControl.DEFAULT_GRACE_PERIOD_MS);
+            List<ProcessControl.KillResult> results = ProcessControl.killMatching(pattern, excludes, gracePeriod);
+            for (String line : ProcessControl.describe(results)) {
+                writer.println(line);
+            }
+            log("INFO", "Kill '" + pattern + "' requested: " + results.size() + " process(es) matched");
+        }
+
+        /**
+         * Restarts the application configured under restart.* (or
+         * restart.&lt;app&gt;.* for "-restart &lt;app&gt;") and reports phase timings.
+         */
+        private boolean handleRestartCommand(String app, PrintWriter writer) {
+            AppRestarter restarter = new AppRestarter(settings, app);
+            if (!restarter.isConfigured()) {
+                writer.println("No restart target configured (" + restarter.keyPrefix() + "launch)");
+                return false;
+            }
+            AppRestarter.RestartReport report;
+            // One restart at a time, even across sessions
+            restartLock.lock();
+            try {
+                report = restarter.restart();
+            } finally {
+                restartLock.unlock();
+            }
+            for (String line : report.lines) {
+                writer.println(line);
+            }
+            log(report.success ? "SUCCESS" : "ERROR", report.summary());
+            return report.success;
+        }
+
+        /**
+         * Background jobs: "-job start &lt;command&gt;", "-job list",
+         * "-job attach &lt;id&gt; [offset]" and "-job cancel &lt;id&gt;".
+         */
+        private boolean handleJobCommand(String args, String clientName, BufferedReader reader, PrintWriter writer)
+                throws IOException {
+            String[] parts = args.split("\\s+", 2);
+            String action = parts[0];
+            String rest = parts.length > 1 ? parts[1].trim() : "";
+            if ("start".equals(action) && !rest.isEmpty()) {
+                return startJob(rest, clientName, false, writer);
+            }
+            if ("list".equals(action)) {
+                List<JobManager.Job> jobs = jobManager.list();
+                for (JobManager.Job job : jobs) {
+                    writer.println(job);
+                }
+                writer.println(jobs.size() + " job(s)");
+                return true;
+            }
+            if (!"attach".equals(action) && !"cancel".equals(action)) {
+                writer.println("Usage: -job start <command> | list | attach <id> [offset] | cancel <id>");
+                return false;
+            }
+            JobManager.Job job = jobManager.get(rest.split("\\s+")[0]);
+            if (job == null) {
+                writer.println("No such job: " + rest);
+                return false;
+            }
+            if ("cancel".equals(action)) {
+                if (!job.isRunning()) {
+                    writer.println("Job " + job.id + " is not running (" + job.state + ")");
+                    return false;
+                }
+                ProcessControl.KillResult result = jobManager.cancel(job,
+                        getConfigInt("kill.gracePeriodMs", (int) ProcessControl.DEFAULT_GRACE_PERIOD_MS));
+                log("INFO", "Job " + job.id + " cancelled by " + clientName + ": " + result.outcome);
+                writer.println("Job " + job.id + " " + result);
+                return result.outcome != ProcessControl.Outcome.FAILED;
+            }
+            String[] attach = rest.split("\\s+");
+            return attachJob(job, attach.length > 1 ? Long.parseLong(attach[1]) : 0, reader, writer);
+        }
+
+        private boolean startJob(String command, String owner, boolean pty, PrintWriter writer) throws IOException {
+            OutputRing ring = createCapture(newJobId());
+            if (ring == null) {
+                writer.println("Cannot create output file in " + captureDir());
+                return false;
+            }
+            final String client = clientIp;
+            limits.acquireProcess(client);
+            JobManager.Job job;
+            try {
+                // The job counts against its client until it ends, even after the client disconnects
+                job = jobManager.start(ring.getId(), command, owner, ring, pty, resources(), new Runnable() {
+                    public void run() {
+                        limits.releaseProcess(client);
+                    }
+                });
+            } catch (IOException e) {
+                limits.releaseProcess(client);
+                throw e;
+            }
+            log("INFO", "Job " + job.id + " started by " + owner + ": " + command);
+            writer.println("JOB " + job.id + " started pid=" + job.pid);
+            return true;
+        }
+
+        /**
+         * Streams a job's output from the given offset until the job ends.
+         * Closing the connection detaches; the job keeps running.
+         */
+        private boolean attachJob(JobManager.Job job, long offset, BufferedReader reader, PrintWriter writer)
+                throws IOException {
+            writer.println("Attached to job " + job.id + ": " + job.command);
+            writer.flush();
+            OutputStream out = socket.getOutputStream();
+            long timeoutMs = getConfigInt("jobs.attachTimeoutMs", 0);
+            long deadline = timeoutMs > 0 ? System.currentTimeMillis() + timeoutMs : Long.MAX_VALUE;
+            boolean newline = true;
+            OutputRing.Slice slice;
+            while (true) {
+                slice = job.output.read(offset, 64 * 1024);
+                if (slice.data.length > 0) {
+                    // Raw bytes, so multi-byte characters split across reads stay intact
+                    out.write(slice.data);
+                    out.flush();
+                    offset = slice.end();
+                    newline = slice.data[slice.data.length - 1] == '\n';
+                } else if (slice.finished || System.currentTimeMillis() > deadline) {
+                    break;
+                } else if (!waitForClient(reader, 100)) {
+                    log("INFO", "Detached " + clientName + " from job " + job.id);
+                    break;
+                }
+            }
+            if (!newline) {
+                writer.println();
+            }
+            writer.println(slice.describe(job.id));
+            return !slice.finished || (job.state == JobManager.JobState.EXITED);
+        }
+
+        /**
+         * Waits up to waitMs on the client's connection, which notices a
+         * client that went away while nothing is being written to it.
+         * Anything it sent stays in reader for the next command. False if
+         * the client closed the connection or the wait was interrupted.
+         */
+        private boolean waitForClient(BufferedReader reader, int waitMs) throws IOException {
+            int previous = socket.getSoTimeout();
+            try {
+                if (reader.ready()) {
+                    Thread.sleep(waitMs);
+                    return true;
+                }
+                socket.setSoTimeout(waitMs);
+                reader.mark(1);
+                if (reader.read() < 0) {
+                    return false;
+                }
+                reader.reset();
+                return true;
+            } catch (SocketTimeoutException e) {
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (IOException e) {
+                // Reset by the client
+                return false;
+            } finally {
+                if (!socket.isClosed()) {
+                    socket.setSoTimeout(previous);
+                }
+            }
+        }
+
+        /**
+         * Prints the last bytes of a captured job: "-tail &lt;jobId&gt; [bytes]".
+         */
+        private boolean handleTailCommand(String args, PrintWriter writer) throws IOException {
+            String[] parts = args.split("\\s+");
+            OutputRing ring = findCapture(parts[0]);
+            if (ring == null) {
+                writer.println("No captured output for job: " + parts[0]);
+                return false;
+            }
+            int bytes = parts.length > 1 ? Integer.parseInt(parts[1]) : 4096;
+            printSlice(ring, ring.tail(bytes), writer);
+            return true;
+        }
+
+        /**
+         * Prints captured output from an absolute offset:
+         * "-seek &lt;jobId&gt; &lt;offset&gt; [bytes]". Following a job means seeking to
+         * the "to=" offset of the previous reply.
+         */
+        private boolean handleSeekCommand(String args, PrintWriter writer) throws IOException {
+            String[] parts = args.split("\\s+");
+            if (parts.length < 2) {
+                writer.println("Usage: -seek <jobId> <offset> [bytes]");
+                return false;
+            }
+            OutputRing ring = findCapture(parts[0]);
+            if (ring == null) {
+                writer.println("No captured output for job: " + parts[0]);
+                return false;
+            }
+            int bytes = parts.length > 2 ? Integer.parseInt(parts[2]) : 64 * 1024;
+            printSlice(ring, ring.read(Long.parseLong(parts[1]), bytes), writer);
+            return true;
+        }
+
+        private void printSlice(OutputRing ring, OutputRing.Slice slice, PrintWriter writer) throws IOException {
+            writer.println(slice.describe(ring.getId()));
+            String text = new String(slice.data, "UTF-8");
+            if (!text.isEmpty()) {
+                writer.print(text.endsWith("\n") ? text : text + "\n");
+                writer.flush();
+            }
+        }
+
+        /**
+         * Runs a PTY session; anything that prevents it is reported through
+         * the PTY protocol so the client's terminal is restored.
+         */
+        private boolean servePty(String args, BufferedReader reader, PrintWriter writer) throws IOException {
+            ResourceClass resources;
+            try {
+                resources = resources();
+            } catch (IllegalArgumentException e) {
+                PtySession.refuse(e.getMessage(), reader, writer);
+                return false;
+            }
+            limits.acquireProcess(clientIp);
+            try {
+                return PtySession.serve(args, getConfigString("pty.shell", "/bin/bash"), resources, reader, writer,
+                        executionBackend);
+            } finally {
+                limits.releaseProcess(clientIp);
+            }
+        }
+
+        /**
+         * The resource class of the current command, or null; see
+         * {@link ResourceClass}.
+         */
+        private ResourceClass resources() {
+            ResourceClass resources = ResourceClass.select(settings, requestedClass, clientIp, certificateName);
+            if (resources != null) {
+                log("INFO", "Running a command of " + clientName + " as " + resources);
+            }
+            return resources;
+        }
+
+        private boolean isLocalScript(String command) {
+            return !System.getProperty("os.name").toLowerCase().contains("win") && command.endsWith(".sh")
+                    && new File(command).exists();
+        }
+
+        /**
+         * Runs a script with bash, as before it ran in a terminal, so it
+         * needs no execute permission.
+         */
+        private String scriptCommand(String path) {
+            return "/bin/bash '" + path.replace("'", "'\\''") + "'";
+        }
+
+        /**
+         * Runs a shell command and writes its stdout, then its stderr lines
+         * prefixed with STDERR. Returns the exit code. The command counts
+         * against the client's process limit while it runs.
+         */
+        private int executeCommand(String command, PrintWriter writer) throws IOException {
+            limits.acquireProcess(clientIp);
+            try {
+                return runProcess(command, writer);
+            } finally {
+                limits.releaseProcess(clientIp);
+            }
+        }
+
+        private int runProcess(String command, PrintWriter writer) throws IOException {
             ProcessBuilder pb;
             if (System.getProperty("os.name").toLowerCase().contains("win")) {
                 if (command.endsWith(".sh")) {
-                    return "Shell scripts (.sh) are not supported on Windows.";
+                    writer.println("Shell scripts (.sh) are not supported on Windows.");
+                    return 1;
                 }
                 pb = new ProcessBuilder("cmd", "/c", command);
             } else {
-                if (new File(command).exists() && command.endsWith(".sh")) {
-                    if (new File("/usr/bin/gnome-terminal").exists()) {
-                        pb = new ProcessBuilder("gnome-terminal", "--", "/bin/bash", command);
-                    } else {
-                        return "gnome-terminal not found.";
-                    }
-                } else {
-                    pb = new ProcessBuilder("/bin/sh", "-c", command);
+                List<String> commandLine = new ArrayList<String>();
+                // Its own session, so stopping the command at the output limit reaches its children too
+                if (new File("/usr/bin/setsid").exists()) {
+                    commandLine.add("/usr/bin/setsid");
                 }
+                ResourceClass resources = resources();
+                if (resources != null) {
+                    commandLine.addAll(resources.prefix());
+                }
+                commandLine.addAll(Arrays.asList("/bin/sh", "-c", command));
+                pb = new ProcessBuilder(commandLine);
             }
 
-            pb.redirectErrorStream(true);
-            Process process = pb.start();
-            return readProcessOutput(process);
+            final Process process = pb.start();
+            final boolean processGroup = "/usr/bin/setsid".equals(pb.command().get(0));
+            final OutputRing ring = startCapture();
+            final AtomicBoolean cut = new AtomicBoolean();
+            // stderr is drained on its own thread so a full pipe can never block the process
+            final StringBuilder errors = new StringBuilder();
+            Thread stderrPump = executionBackend.start(new Runnable() {
+                public void run() {
+                    try {
+                        errors.append(readProcessOutput(process, processGroup, process.getErrorStream(), ring,
+                                ConnectionManager.STDERR_PREFIX, cut));
+                    } catch (IOException e) {
+                        // Stream closed when the process ended
+                    }
+                }
+            });
+            String output = readProcessOutput(process, processGroup, process.getInputStream(), ring, "", cut);
+            int exitCode;
+            try {
+                stderrPump.join();
+                exitCode = process.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                process.destroy();
+                exitCode = -1;
+            }
+            if (ring != null) {
+                ring.finish(exitCode);
+                output += "Output captured as job " + ring.getId() + "\n";
+            }
+            if (cut.get()) {
+                log("INFO", "Stopped a command of " + clientIp + " at its output limit: " + command);
+                output += "Output limit reached (limits.client.outputBytesPerSec); the command was stopped\n";
+            }
+            writer.println(output);
+            if (errors.length() > 0) {
+                for (String line : errors.toString().split("\n")) {
+                    writer.println(ConnectionManager.STDERR_PREFIX + line);
+                }
+            }
+            return exitCode;
         }
 
-        private String readProcessOutput(Process process) throws IOException {
+        /**
+         * Reads one of a process's streams to the end. Output beyond the
+         * client's budget is dropped and the process is stopped, with cut
+         * set for both streams. With processGroup set the process leads its
+         * own group and the whole group is stopped.
+         */
+        private String readProcessOutput(Process process, boolean processGroup, InputStream stream, OutputRing ring,
+                String ringPrefix, AtomicBoolean cut) throws IOException {
             StringBuilder output = new StringBuilder();
             BufferedReader reader = null;
             try {
-                reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+                reader = new BufferedReader(new InputStreamReader(stream));
                 String line;
                 while ((line = reader.readLine()) != null) {
+                    if (cut.get() || !limits.takeOutput(clientIp, line.getBytes("UTF-8").length + 1)) {
+                        if (!cut.getAndSet(true)) {
+                            long pid = ProcessControl.pidOf(process);
+                            if (processGroup && pid > 0) {
+                                ProcessControl.terminateGroup(pid, "output limit", 0);
+                            } else {
+                                process.destroyForcibly();
+                            }
+                        }
+                        break;
+                    }
                     output.append(line).append("\n");
+                    if (ring != null) {
+                        byte[] bytes = (ringPrefix + line + "\n").getBytes("UTF-8");
+                        ring.write(bytes, 0, bytes.length);
+                    }
                 }
             } finally {
                 if (reader != null) {
@@ -299,8 +984,10 @@ public class TerminalServer {
         FileInputStream in = null;
         try {
             in = new FileInputStream(configFile);
-            config.clear(); // Clear existing properties
-            config.load(in);
+            // Sessions keep reading the previous config until the new one is complete
+            Properties loaded = new Properties();
+            loaded.load(in);
+            config = loaded;
         } catch (IOException e) {
             log("ERROR", "Error loading config file: " + e.getMessage());
         } finally {
@@ -315,7 +1002,20 @@ public class TerminalServer {
     }
 
     private static void createDefaultConfig() {
+        Properties config = new Properties();
         config.setProperty("port", "8080");
+        config.setProperty("execution.backend", ExecutionBackend.AUTO);
+        config.setProperty("kill.gracePeriodMs", String.valueOf(ProcessControl.DEFAULT_GRACE_PERIOD_MS));
+        config.setProperty("restart.launch", "/home/user1/AiJPOS_TouchScreen/bin/linux/AiJPOS.sh");
+        config.setProperty("restart.stopPattern", ProcessControl.DEFAULT_PATTERN);
+        config.setProperty("restart.stopExclude", ProcessControl.DEFAULT_EXCLUDE);
+        config.setProperty("restart.stopTimeoutMs", String.valueOf(AppRestarter.DEFAULT_STOP_TIMEOUT_MS));
+        config.setProperty("restart.readyTimeoutMs", String.valueOf(AppRestarter.DEFAULT_READY_TIMEOUT_MS));
+        config.setProperty("restart.psjpos.launch", "/home/user1/AiJPOS_TouchScreen_Other/bin/linux/PsJPOS.sh");
+        // A class for maintenance work, e.g. "-class maintenance ./collect_diagnostics.sh"
+        config.setProperty(ResourceClass.PREFIX + "maintenance.nice", "10");
+        config.setProperty(ResourceClass.PREFIX + "maintenance.ionice", "idle");
+        TerminalServer.config = config;
         saveConfig();
     }
 
@@ -345,6 +1045,108 @@ public class TerminalServer {
         return Integer.parseInt(config.getProperty(key, String.valueOf(defaultValue)));
     }
 
+    private static File captureDir() {
+        return new File(getConfigString("capture.dir", "logs/jobs"));
+    }
+
+    /**
+     * Creates the output ring for a new job when capture.enabled is set,
+     * otherwise returns null.
+     */
+    private static OutputRing startCapture() {
+        if (!Boolean.parseBoolean(getConfigString("capture.enabled", "false"))) {
+            return null;
+        }
+        return createCapture(newJobId());
+    }
+
+    private static String newJobId() {
+        return Long.toString(nextJobId.getAndIncrement(), 36);
+    }
+
+    /**
+     * Creates a job's output ring, first pruning old rings down to
+     * capture.maxFiles. Rings still being written are kept: those of running
+     * jobs, and unfinished ones of jobs about to start or of commands
+     * running in the foreground.
+     */
+    private static OutputRing createCapture(String id) {
+        try {
+            Set<String> inUse = new HashSet<String>();
+            for (JobManager.Job job : jobManager.list()) {
+                if (job.isRunning()) {
+                    inUse.add(job.id);
+                }
+            }
+            for (OutputRing ring : captures.values()) {
+                if (!ring.isFinished()) {
+                    inUse.add(ring.getId());
+                }
+            }
+            OutputRing.prune(captureDir(), getConfigInt("capture.maxFiles", 100) - 1, inUse);
+            for (Iterator<OutputRing> it = captures.values().iterator(); it.hasNext();) {
+                OutputRing old = it.next();
+                if (!inUse.contains(old.getId()) && !new File(captureDir(), old.getId() + OutputRing.SUFFIX).exists()) {
+                    it.remove();
+                    old.close();
+                }
+            }
+            OutputRing ring = OutputRing.create(captureDir(), id, getConfigInt("capture.sizeBytes", OutputRing.DEFAULT_CAPACITY));
+            captures.put(id, ring);
+            return ring;
+        } catch (IOException e) {
+            log("ERROR", "Cannot capture output of job " + id + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Finds a job's output ring, reopening it from disk for jobs of an
+     * earlier server run.
+     */
+    private static OutputRing findCapture(String id) throws IOException {
+        if (!OutputRing.isValidId(id)) {
+            return null;
+        }
+        OutputRing ring = captures.get(id);
+        if (ring == null) {
+            ring = OutputRing.open(captureDir(), id);
+            if (ring != null) {
+                OutputRing existing = captures.putIfAbsent(id, ring);
+                if (existing != null) {
+                    ring.close();
+                    ring = existing;
+                }
+            }
+        }
+        return ring;
+    }
+
+    /**
+     * The directory transfers are confined to, or null when transfer.rootDir
+     * is unset and transfers are refused.
+     */
+    private static File transferRoot(Properties settings) {
+        String root = settings.getProperty("transfer.rootDir", "").trim();
+        return root.isEmpty() ? null : new File(root);
+    }
+
+    private static int transferChunkSize(Properties settings) {
+        return Integer.parseInt(settings.getProperty("transfer.chunkSize",
+                String.valueOf(FileTransfer.DEFAULT_CHUNK_SIZE)));
+    }
+
+    /**
+     * Client name this server uses when it connects to downstream relays.
+     */
+    private static String relayName() {
+        try {
+            return "relay:" + InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "relay";
+        }
+    }
+
     // Add this helper method for logging
     private static void log(String level, String message) {
         System.out.println(message);